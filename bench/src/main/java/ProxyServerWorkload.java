@@ -0,0 +1,40 @@
+import java.io.File;
+import java.util.Map;
+
+import benchmarks.Workload;
+
+
+/**
+ * Start the proxy on the given port with the given engine. The response cache is
+ * turned off so every request goes to the destination host.
+ * The server has no way to stop, it runs on a daemon thread until the benchmark JVM exits.
+ */
+public class ProxyServerWorkload implements Workload {
+
+	@Override
+	public void setUp(Map<String, String> params) throws Exception {
+		ServerConfig config = new ServerConfig(new File(System.getProperty("java.io.tmpdir")), "index.html",
+				Integer.parseInt(params.get("port")), 0);
+		config.setOption("engine", params.get("engine"));
+		config.setOption("cacheSize", "0");
+
+		final WebServer server = new WebServer(config);
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				server.run();
+			}
+		}, "proxy-server");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public Object run() {
+		return null;
+	}
+
+	@Override
+	public void tearDown() {
+	}
+}
@@ -0,0 +1,107 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import benchmarks.Workload;
+import benchmarks.Workloads;
+
+
+/**
+ * Relay a destination response held in memory through {@link ProxyHandler#getResponse}.
+ * Framing "length" uses Content-Length, "chunked" 8K chunks and "eof" a body that
+ * ends when the destination closes the connection.
+ */
+public class RelayWorkload implements Workload {
+
+	private static final int CHUNK_SIZE = 8 * 1024;
+
+	private ServerContext context;
+	private HTTPRequest request;
+	private byte[] response;
+	private DataOutputStream output;
+	private Workloads.NullOutputStream sink;
+
+	@Override
+	public void setUp(Map<String, String> params) throws Exception {
+		String framing = params.get("framing");
+		int size = Integer.parseInt(params.get("size"));
+
+		ServerConfig config = new ServerConfig(new File("."), "index.html", 0, 0);
+		config.setOption("cacheSize", "0");
+		context = new ServerContext(config);
+
+		ByteBuffer buffer = ByteBuffer.wrap("GET http://bench/data HTTP/1.1\r\nHost: bench\r\n\r\n".getBytes("ISO-8859-1"));
+		HttpRequestParser parser = new HttpRequestParser();
+		parser.parse(buffer);
+		request = new HTTPRequest();
+		request.parseHead(parser, buffer);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write("HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\n".getBytes("ISO-8859-1"));
+		byte[] body = new byte[size];
+		if(framing.equals("length")) {
+			out.write(("Content-Length: " + size + "\r\n\r\n").getBytes("ISO-8859-1"));
+			out.write(body);
+		} else if(framing.equals("chunked")) {
+			out.write("Transfer-Encoding: chunked\r\n\r\n".getBytes("ISO-8859-1"));
+			for(int off = 0; off < size; off += CHUNK_SIZE) {
+				int len = Math.min(CHUNK_SIZE, size - off);
+				out.write((Integer.toHexString(len) + "\r\n").getBytes("ISO-8859-1"));
+				out.write(body, off, len);
+				out.write("\r\n".getBytes("ISO-8859-1"));
+			}
+			out.write("0\r\n\r\n".getBytes("ISO-8859-1"));
+		} else {
+			out.write("Connection: close\r\n\r\n".getBytes("ISO-8859-1"));
+			out.write(body);
+		}
+		response = out.toByteArray();
+
+		sink = new Workloads.NullOutputStream();
+		output = new DataOutputStream(sink);
+	}
+
+	@Override
+	public Object run() throws Exception {
+		ProxyHandler handler = new ProxyHandler(request, 0, context);
+		handler.setHostAndPath();
+		handler.useConnection(new UpstreamConnection(handler.getTarget().getKey(), new MemorySocket(response),
+				context.getBufferPool()));
+		handler.getResponse(output);
+		return sink.getCount();
+	}
+
+	@Override
+	public void tearDown() {
+	}
+
+	/**
+	 * A socket that reads a fixed response and drops what is written to it
+	 */
+	private static class MemorySocket extends Socket {
+
+		private InputStream input;
+		private OutputStream output;
+
+		MemorySocket(byte[] response) {
+			input = new ByteArrayInputStream(response);
+			output = new Workloads.NullOutputStream();
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return input;
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return output;
+		}
+	}
+}
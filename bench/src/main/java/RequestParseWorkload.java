@@ -0,0 +1,65 @@
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import benchmarks.Workload;
+
+
+/**
+ * Parse a request head held in memory. With mode "build" the request object and its
+ * header map are created too, as the proxy does for every request.
+ */
+public class RequestParseWorkload implements Workload {
+
+	// Typical browser headers, then made up ones when more are asked for
+	private static final String[] HEADERS = {
+		"User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0",
+		"Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8",
+		"Accept-Language: en-US,en;q=0.5",
+		"Accept-Encoding: gzip, deflate",
+		"Connection: keep-alive",
+		"Referer: http://bench.example.com/",
+		"Cookie: session=4f2a9c1e7b3d45a8; theme=dark",
+		"Cache-Control: max-age=0",
+		"Upgrade-Insecure-Requests: 1",
+	};
+
+	private HttpRequestParser parser;
+	private ByteBuffer buffer;
+	private boolean build;
+
+	@Override
+	public void setUp(Map<String, String> params) throws Exception {
+		int headers = Integer.parseInt(params.get("headers"));
+		build = "build".equals(params.get("mode"));
+
+		StringBuilder head = new StringBuilder("GET http://bench.example.com/static/app.js?v=42 HTTP/1.1\r\n");
+		head.append("Host: bench.example.com\r\n");
+		for(int i = 1; i < headers; i++) {
+			if(i <= HEADERS.length)
+				head.append(HEADERS[i - 1]);
+			else
+				head.append("X-Bench-Header-" + i + ": value number " + i);
+			head.append("\r\n");
+		}
+		head.append("\r\n");
+
+		buffer = ByteBuffer.wrap(head.toString().getBytes("ISO-8859-1"));
+		parser = new HttpRequestParser();
+	}
+
+	@Override
+	public Object run() throws Exception {
+		parser.reset();
+		int result = parser.parse(buffer);
+		if(!build)
+			return result;
+
+		HTTPRequest request = new HTTPRequest();
+		request.parseHead(parser, buffer);
+		return request.getHeaders();
+	}
+
+	@Override
+	public void tearDown() {
+	}
+}
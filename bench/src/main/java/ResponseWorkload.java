@@ -0,0 +1,69 @@
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import benchmarks.Workload;
+import benchmarks.Workloads;
+
+
+/**
+ * Generate a response of the server itself: kind "error" sends a canned error page,
+ * "file" sends a file of the given size from a temporary root folder and "range" the
+ * first kilobyte of it.
+ */
+public class ResponseWorkload implements Workload {
+
+	private static final String FILE_NAME = "/bench.bin";
+
+	private String kind;
+	private File root, file;
+	private StaticFiles files;
+	private HTTPRequest request;
+	private Workloads.NullOutputStream sink;
+	private DataOutputStream output;
+
+	@Override
+	public void setUp(Map<String, String> params) throws Exception {
+		kind = params.get("kind");
+		sink = new Workloads.NullOutputStream();
+		output = new DataOutputStream(sink);
+		if(kind.equals("error"))
+			return;
+
+		root = File.createTempFile("bench", "");
+		root.delete();
+		root.mkdir();
+		file = new File(root, FILE_NAME);
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(new byte[Integer.parseInt(params.get("size"))]);
+		out.close();
+
+		String head = "GET " + FILE_NAME + " HTTP/1.1\r\nHost: bench\r\n"
+				+ (kind.equals("range") ? "Range: bytes=0-1023\r\n" : "") + "\r\n";
+		ByteBuffer buffer = ByteBuffer.wrap(head.getBytes("ISO-8859-1"));
+		HttpRequestParser parser = new HttpRequestParser();
+		parser.parse(buffer);
+		request = new HTTPRequest();
+		request.parseHead(parser, buffer);
+		files = new StaticFiles(root, "index.html", 16, 1000, null);
+	}
+
+	@Override
+	public Object run() throws Exception {
+		if(kind.equals("error"))
+			new HTTPResponse(output).generateSpecificResponse(404);
+		else
+			new HTTPResponse(request, output, files, FILE_NAME).generateResposne();
+		return sink.getCount();
+	}
+
+	@Override
+	public void tearDown() {
+		if(file != null) {
+			file.delete();
+			root.delete();
+		}
+	}
+}
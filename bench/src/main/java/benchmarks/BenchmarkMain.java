@@ -0,0 +1,35 @@
+package benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+/**
+ * Runs JMH with the given command line, writing the results as JSON to
+ * jmh-result.json unless -rf or -rff were given, so runs can be compared.
+ */
+public class BenchmarkMain {
+
+	private static final String RESULT_FILE = "jmh-result.json";
+
+	public static void main(String[] args) throws Exception {
+		for(String arg : args) {
+			// Help and the listing options do not run anything
+			if(arg.equals("-h") || arg.startsWith("-l")) {
+				org.openjdk.jmh.Main.main(args);
+				return;
+			}
+		}
+
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+		if(!commandLine.getResultFormat().hasValue())
+			options.resultFormat(ResultFormatType.JSON);
+		if(!commandLine.getResult().hasValue())
+			options.result(RESULT_FILE);
+		new Runner(options.build()).run();
+	}
+}
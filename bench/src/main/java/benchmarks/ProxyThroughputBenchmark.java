@@ -0,0 +1,161 @@
+package benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Requests per second through the whole proxy over loopback: every benchmark thread is
+ * a keep-alive client of the proxy, which fetches from a {@link StubOrigin}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class ProxyThroughputBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Servers {
+
+		@Param({ "blocking", "nio" })
+		public String engine;
+
+		@Param({ "1024", "65536" })
+		public int bodySize;
+
+		private StubOrigin origin;
+		private Workload proxy;
+		private int proxyPort;
+
+		@Setup(Level.Trial)
+		public void setUp() throws Exception {
+			origin = new StubOrigin(0, bodySize);
+			proxyPort = freePort();
+			proxy = Workloads.create("ProxyServerWorkload", "port", String.valueOf(proxyPort), "engine", engine);
+			waitForPort(proxyPort);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws Exception {
+			proxy.tearDown();
+			origin.close();
+		}
+
+		private static int freePort() throws IOException {
+			ServerSocket socket = new ServerSocket(0);
+			int port = socket.getLocalPort();
+			socket.close();
+			return port;
+		}
+
+		private static void waitForPort(int port) throws Exception {
+			long deadline = System.currentTimeMillis() + 10000;
+			while(true) {
+				try {
+					new Socket(InetAddress.getLoopbackAddress(), port).close();
+					return;
+				} catch (IOException e) {
+					if(System.currentTimeMillis() > deadline)
+						throw e;
+					Thread.sleep(50);
+				}
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Client {
+
+		private Socket socket;
+		private InputStream input;
+		private OutputStream output;
+		private byte[] request;
+		private byte[] buffer = new byte[16 * 1024];
+
+		@Setup(Level.Trial)
+		public void setUp(Servers servers) throws IOException {
+			// The stub listens on a free port, the port in the URI takes the proxy there
+			String host = "127.0.0.1:" + servers.origin.getPort();
+			request = ("GET http://" + host + "/bench HTTP/1.1\r\nHost: " + host + "\r\n\r\n").getBytes("ISO-8859-1");
+			socket = new Socket(InetAddress.getLoopbackAddress(), servers.proxyPort);
+			socket.setTcpNoDelay(true);
+			input = new BufferedInputStream(socket.getInputStream());
+			output = socket.getOutputStream();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			socket.close();
+		}
+
+		/**
+		 * Send one request and read the whole response
+		 *
+		 * @return The length of the body
+		 */
+		long fetch() throws IOException {
+			output.write(request);
+			output.flush();
+
+			long length = -1;
+			String line;
+			while(!(line = readLine()).isEmpty()) {
+				int colon = line.indexOf(':');
+				if(colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("content-length"))
+					length = Long.parseLong(line.substring(colon + 1).trim());
+			}
+			if(length < 0)
+				throw new IOException("Response without Content-Length");
+
+			long remaining = length;
+			while(remaining > 0) {
+				int len = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+				if(len == -1)
+					throw new EOFException("Proxy closed the connection in the middle of the body");
+				remaining -= len;
+			}
+			return length;
+		}
+
+		private String readLine() throws IOException {
+			StringBuilder line = new StringBuilder();
+			int b;
+			while((b = input.read()) != '\n') {
+				if(b == -1)
+					throw new EOFException("Proxy closed the connection");
+				if(b != '\r')
+					line.append((char) b);
+			}
+			return line.toString();
+		}
+	}
+
+	@Benchmark
+	public long request(Client client) throws IOException {
+		return client.fetch();
+	}
+}
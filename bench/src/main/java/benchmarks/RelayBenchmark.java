@@ -0,0 +1,48 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Relay of a destination response to the client by the proxy, for each way a body can
+ * be framed. The destination response is read from memory and the output is dropped,
+ * so only the proxy's own work is measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RelayBenchmark {
+
+	@Param({ "length", "chunked", "eof" })
+	public String framing;
+
+	@Param({ "1024", "65536", "1048576" })
+	public int bodySize;
+
+	private Workload relay;
+
+	@Setup
+	public void setUp() throws Exception {
+		relay = Workloads.create("RelayWorkload", "framing", framing, "size", String.valueOf(bodySize));
+	}
+
+	@Benchmark
+	public Object relay() throws Exception {
+		return relay.run();
+	}
+}
@@ -0,0 +1,50 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Parsing of a request head with a growing number of headers: the scan alone, and the
+ * scan followed by building the request and its header map as the proxy does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestParserBenchmark {
+
+	@Param({ "2", "8", "16", "32" })
+	public int headers;
+
+	private Workload parse, parseAndBuild;
+
+	@Setup
+	public void setUp() throws Exception {
+		parse = Workloads.create("RequestParseWorkload", "headers", String.valueOf(headers), "mode", "parse");
+		parseAndBuild = Workloads.create("RequestParseWorkload", "headers", String.valueOf(headers), "mode", "build");
+	}
+
+	@Benchmark
+	public Object parse() throws Exception {
+		return parse.run();
+	}
+
+	@Benchmark
+	public Object parseAndBuildRequest() throws Exception {
+		return parseAndBuild.run();
+	}
+}
@@ -0,0 +1,64 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Responses generated by the server itself: a canned error page and files of several
+ * sizes, sent whole or as a range of their first kilobyte. The output is dropped.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseBenchmark {
+
+	@Param({ "1024", "65536", "1048576" })
+	public int fileSize;
+
+	private Workload error, file, fileRange;
+
+	@Setup
+	public void setUp() throws Exception {
+		error = Workloads.create("ResponseWorkload", "kind", "error");
+		file = Workloads.create("ResponseWorkload", "kind", "file", "size", String.valueOf(fileSize));
+		fileRange = Workloads.create("ResponseWorkload", "kind", "range", "size", String.valueOf(fileSize));
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		error.tearDown();
+		file.tearDown();
+		fileRange.tearDown();
+	}
+
+	@Benchmark
+	public Object errorResponse() throws Exception {
+		return error.run();
+	}
+
+	@Benchmark
+	public Object fileResponse() throws Exception {
+		return file.run();
+	}
+
+	@Benchmark
+	public Object fileRangeResponse() throws Exception {
+		return fileRange.run();
+	}
+}
@@ -0,0 +1,114 @@
+package benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+
+/**
+ * A destination host on the loopback interface that answers every request with the
+ * same response (closing the connection only when asked to), so the end to end
+ * benchmark measures the proxy and not the origin.
+ */
+public class StubOrigin implements Runnable {
+
+	private static final int KEEP_ALIVE = 0;
+	private static final int CLOSE = 1;
+	private static final int END = -1;
+
+	private ServerSocket server;
+	private byte[] response;
+
+	public StubOrigin(int port, int bodySize) throws IOException {
+		server = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+		byte[] head = ("HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\nContent-Length: "
+				+ bodySize + "\r\n\r\n").getBytes("ISO-8859-1");
+		response = new byte[head.length + bodySize];
+		System.arraycopy(head, 0, response, 0, head.length);
+		for(int i = head.length; i < response.length; i++) {
+			response[i] = (byte) ('a' + i % 26);
+		}
+
+		Thread acceptor = new Thread(this, "stub-origin");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	@Override
+	public void run() {
+		while(!server.isClosed()) {
+			try {
+				final Socket socket = server.accept();
+				Thread connection = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						serve(socket);
+					}
+				}, "stub-origin-connection");
+				connection.setDaemon(true);
+				connection.start();
+			} catch (IOException e) {
+				// Closed
+			}
+		}
+	}
+
+	private void serve(Socket socket) {
+		try {
+			socket.setTcpNoDelay(true);
+			InputStream input = new BufferedInputStream(socket.getInputStream());
+			OutputStream output = socket.getOutputStream();
+			int request;
+			while((request = readRequest(input)) != END) {
+				output.write(response);
+				output.flush();
+				if(request == CLOSE)
+					break;
+			}
+		} catch (IOException e) {
+			// Proxy closed the connection
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Nothing to do
+			}
+		}
+	}
+
+	/**
+	 * Read up to the empty line that ends a request head (the requests have no body)
+	 *
+	 * @return {@link #KEEP_ALIVE}, {@link #CLOSE} if the request asked to close the
+	 * connection after the response, or {@link #END} at the end of the stream
+	 */
+	private static int readRequest(InputStream input) throws IOException {
+		StringBuilder line = new StringBuilder();
+		boolean close = false;
+		int b;
+		while((b = input.read()) != -1) {
+			if(b == '\n') {
+				if(line.length() == 0)
+					return close ? CLOSE : KEEP_ALIVE;
+				if(line.toString().equalsIgnoreCase("connection: close"))
+					close = true;
+				line.setLength(0);
+			} else if(b != '\r') {
+				line.append((char) b);
+			}
+		}
+		return END;
+	}
+
+	public void close() throws IOException {
+		server.close();
+	}
+}
@@ -0,0 +1,22 @@
+package benchmarks;
+
+import java.util.Map;
+
+
+/**
+ * One operation of the server that is measured.
+ * The server classes are in the default package, which a JMH benchmark can not use
+ * directly, so the code that touches them lives in default package classes of this
+ * module that implement this interface. The benchmarks create them by name.
+ */
+public interface Workload {
+
+	void setUp(Map<String, String> params) throws Exception;
+
+	/**
+	 * @return A value that depends on the work, for the benchmark to consume
+	 */
+	Object run() throws Exception;
+
+	void tearDown() throws Exception;
+}
@@ -0,0 +1,54 @@
+package benchmarks;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+
+
+public final class Workloads {
+
+	private Workloads() {
+	}
+
+	/**
+	 * Create and set up a workload. The server log goes to System.out, which is replaced
+	 * by a stream that drops everything before the log starts, so the benchmark output
+	 * stays readable.
+	 *
+	 * @param params Pairs of name and value
+	 */
+	public static Workload create(String className, String... params) throws Exception {
+		System.setOut(new PrintStream(new NullOutputStream()));
+
+		Map<String, String> map = new HashMap<String, String>();
+		for(int i = 0; i + 1 < params.length; i += 2) {
+			map.put(params[i], params[i + 1]);
+		}
+		Workload workload = (Workload) Class.forName(className).newInstance();
+		workload.setUp(map);
+		return workload;
+	}
+
+	/**
+	 * Counts and drops what is written
+	 */
+	public static class NullOutputStream extends OutputStream {
+
+		private long count = 0;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+
+		public long getCount() {
+			return count;
+		}
+	}
+}
@@ -0,0 +1,169 @@
+import java.text.DateFormat;
+import java.util.Date;
+
+
+/**
+ * One line of the access log. The request thread only fills the fields, the text is
+ * built by the log thread.
+ */
+public class AccessLogEntry {
+
+	public static final int COMMON = 0;
+	public static final int COMBINED = 1;
+	public static final int JSON = 2;
+
+	private String client;
+	private long time;
+	private HTTPRequest request;
+	private int status;
+	private long bytes;
+	private long durationNanos;
+	private long connectNanos = -1;
+	private long firstByteNanos = -1;
+	private boolean cacheHit = false;
+
+	/**
+	 * @param time When the request arrived (milliseconds since the epoch)
+	 */
+	public AccessLogEntry(String client, HTTPRequest request, long time) {
+		this.client = client;
+		this.request = request;
+		this.time = time;
+	}
+
+	public static int parseFormat(String name) {
+		if(name.equalsIgnoreCase("combined"))
+			return COMBINED;
+		if(name.equalsIgnoreCase("json"))
+			return JSON;
+		return COMMON;
+	}
+
+	public void setResponse(int status, long bytes, long durationNanos) {
+		this.status = status;
+		this.bytes = bytes;
+		this.durationNanos = durationNanos;
+	}
+
+	/**
+	 * @param connectNanos Time to get a connection to the destination host, -1 if none was used
+	 * @param firstByteNanos Time from sending the request until the status line arrived, -1 if none
+	 */
+	public void setUpstream(long connectNanos, long firstByteNanos, boolean cacheHit) {
+		this.connectNanos = connectNanos;
+		this.firstByteNanos = firstByteNanos;
+		this.cacheHit = cacheHit;
+	}
+
+	/**
+	 * @param commonDate Format of the date in the Common and Combined formats
+	 * @param isoDate Format of the date in JSON
+	 */
+	public void format(int format, StringBuilder out, DateFormat commonDate, DateFormat isoDate) {
+		String requestLine = request != null ? request.getFirstLine() : null;
+
+		if(format == JSON) {
+			String[] parts = requestLine != null ? requestLine.split(" ", 3) : new String[0];
+			out.append("{\"time\":");
+			appendJson(out, isoDate.format(new Date(time)));
+			out.append(",\"client\":");
+			appendJson(out, client);
+			out.append(",\"method\":");
+			appendJson(out, parts.length > 0 ? parts[0] : null);
+			out.append(",\"uri\":");
+			appendJson(out, parts.length > 1 ? parts[1] : null);
+			out.append(",\"protocol\":");
+			appendJson(out, parts.length > 2 ? parts[2] : null);
+			out.append(",\"status\":").append(status);
+			out.append(",\"bytes\":").append(bytes);
+			out.append(",\"referer\":");
+			appendJson(out, getHeader("referer"));
+			out.append(",\"user_agent\":");
+			appendJson(out, getHeader("user-agent"));
+			out.append(",\"duration_ms\":");
+			appendMillis(out, durationNanos);
+			out.append(",\"connect_ms\":");
+			appendMillis(out, connectNanos);
+			out.append(",\"first_byte_ms\":");
+			appendMillis(out, firstByteNanos);
+			out.append(",\"cache\":\"").append(cacheHit ? "hit" : "miss").append("\"}");
+			return;
+		}
+
+		// 127.0.0.1 - - [10/Oct/2000:13:55:36 -0700] "GET /a.gif HTTP/1.0" 200 2326 "referer" "agent"
+		out.append(client).append(" - - [").append(commonDate.format(new Date(time))).append("] ");
+		appendQuoted(out, requestLine);
+		out.append(' ').append(status).append(' ');
+		if(bytes > 0)
+			out.append(bytes);
+		else
+			out.append('-');
+		if(format == COMBINED) {
+			out.append(' ');
+			appendQuoted(out, getHeader("referer"));
+			out.append(' ');
+			appendQuoted(out, getHeader("user-agent"));
+		}
+	}
+
+	private String getHeader(String name) {
+		return request != null ? request.getHeader(name) : null;
+	}
+
+	private static void appendQuoted(StringBuilder out, String value) {
+		if(value == null) {
+			out.append("\"-\"");
+			return;
+		}
+		out.append('"');
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if(c == '"' || c == '\\')
+				out.append('\\');
+			out.append(c);
+		}
+		out.append('"');
+	}
+
+	private static void appendJson(StringBuilder out, String value) {
+		if(value == null) {
+			out.append("null");
+			return;
+		}
+		out.append('"');
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch(c) {
+			case '"':
+				out.append("\\\"");
+				break;
+			case '\\':
+				out.append("\\\\");
+				break;
+			default:
+				if(c < 0x20) {
+					out.append(String.format("\\u%04x", (int) c));
+				} else {
+					out.append(c);
+				}
+			}
+		}
+		out.append('"');
+	}
+
+	private static void appendMillis(StringBuilder out, long nanos) {
+		if(nanos < 0) {
+			out.append("null");
+			return;
+		}
+		// Milliseconds with microsecond precision
+		long micros = nanos / 1000;
+		out.append(micros / 1000).append('.');
+		long fraction = micros % 1000;
+		if(fraction < 100)
+			out.append('0');
+		if(fraction < 10)
+			out.append('0');
+		out.append(fraction);
+	}
+}
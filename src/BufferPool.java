@@ -0,0 +1,71 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Reusable fixed size buffers for relaying bodies, so the memory used by a relay
+ * does not depend on the size of the response. Heap arrays are used by the stream
+ * based connections and direct buffers by the channel based ones.
+ * At most maxPooled buffers of each kind are kept, extra ones are left to the GC.
+ */
+public class BufferPool {
+
+	private int bufferSize, maxPooled;
+	private ConcurrentLinkedQueue<byte[]> arrays;
+	private ConcurrentLinkedQueue<ByteBuffer> directBuffers;
+	private AtomicInteger arraysCount, directCount;
+
+	public BufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+		arrays = new ConcurrentLinkedQueue<byte[]>();
+		directBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+		arraysCount = new AtomicInteger();
+		directCount = new AtomicInteger();
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public byte[] take() {
+		byte[] buffer = arrays.poll();
+		if(buffer == null)
+			return new byte[bufferSize];
+		arraysCount.decrementAndGet();
+		return buffer;
+	}
+
+	public void give(byte[] buffer) {
+		if(buffer == null || buffer.length != bufferSize)
+			return;
+		if(arraysCount.incrementAndGet() > maxPooled) {
+			arraysCount.decrementAndGet();
+			return;
+		}
+		arrays.offer(buffer);
+	}
+
+	/**
+	 * @return A cleared direct buffer
+	 */
+	public ByteBuffer takeDirect() {
+		ByteBuffer buffer = directBuffers.poll();
+		if(buffer == null)
+			return ByteBuffer.allocateDirect(bufferSize);
+		directCount.decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	public void giveDirect(ByteBuffer buffer) {
+		if(buffer == null || !buffer.isDirect() || buffer.capacity() != bufferSize)
+			return;
+		if(directCount.incrementAndGet() > maxPooled) {
+			directCount.decrementAndGet();
+			return;
+		}
+		directBuffers.offer(buffer);
+	}
+}
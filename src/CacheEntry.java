@@ -0,0 +1,93 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * A cached response: the status line and end to end headers as they were received
+ * from the destination host, the decoded body with its Content-Length and the
+ * request header values the response varies on.
+ */
+public class CacheEntry {
+
+	private static final String CRLF = "\r\n";
+
+	private String key;
+	private String head;
+	private byte[] body;
+	private long created;
+	private long expires;
+	private HashMap<String, String> vary;
+
+	public CacheEntry(String key, String head, byte[] body, long expires, HashMap<String, String> vary) {
+		this.key = key;
+		this.head = head;
+		this.body = body;
+		this.expires = expires;
+		this.vary = vary;
+		created = System.currentTimeMillis();
+	}
+
+	public boolean isFresh(long now) {
+		return now < expires;
+	}
+
+	/**
+	 * Check that the request has the same values for the headers the response varies on
+	 */
+	public boolean matches(HashMap<String, String> requestHeaders) {
+		return matches(vary, requestHeaders);
+	}
+
+	static boolean matches(HashMap<String, String> vary, HashMap<String, String> requestHeaders) {
+		for(Map.Entry<String, String> header : vary.entrySet()) {
+			String value = requestHeaders.get(header.getKey());
+			if(value == null ? header.getValue() != null : !value.equals(header.getValue()))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Write the response to the client, with an Age header
+	 *
+	 * @param headers Header lines for this client (its Connection header), may be empty
+	 */
+	public void writeTo(DataOutputStream output, String headers) throws IOException {
+		output.write(ResponseWriter.encode(head + "Age: " + ((System.currentTimeMillis() - created) / 1000) + CRLF + headers + CRLF));
+		output.write(body);
+		output.flush();
+	}
+
+	/**
+	 * @return The size of the entry in bytes, used to bound the cache
+	 */
+	public int size() {
+		return head.length() + body.length + key.length();
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public String getHead() {
+		return head;
+	}
+
+	public byte[] getBody() {
+		return body;
+	}
+
+	public long getCreated() {
+		return created;
+	}
+
+	public long getExpires() {
+		return expires;
+	}
+
+	public HashMap<String, String> getVary() {
+		return vary;
+	}
+}
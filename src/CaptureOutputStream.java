@@ -0,0 +1,60 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * Writes everything to the client stream and keeps a copy of it, up to a limit.
+ * Used to store a response in the cache while it is relayed to the client.
+ */
+public class CaptureOutputStream extends OutputStream {
+
+	private OutputStream output;
+	private ByteArrayOutputStream copy;
+	private long limit;
+	private boolean overflow = false;
+
+	public CaptureOutputStream(OutputStream output, long limit) {
+		this.output = output;
+		this.limit = limit;
+		copy = new ByteArrayOutputStream();
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		output.write(b);
+		if(keep(1))
+			copy.write(b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		output.write(b, off, len);
+		if(keep(len))
+			copy.write(b, off, len);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		output.flush();
+	}
+
+	private boolean keep(int len) {
+		if(overflow)
+			return false;
+		if(copy.size() + len > limit) {
+			// Too big to cache, drop what was kept so far
+			overflow = true;
+			copy = null;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return The bytes written so far, or null if they passed the limit
+	 */
+	public byte[] getCopy() {
+		return overflow ? null : copy.toByteArray();
+	}
+}
@@ -0,0 +1,143 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Decodes a chunked body (RFC 7230 section 4.1) from a stream.
+ * The size lines are parsed byte by byte as they are read, chunk extensions are
+ * skipped and the trailer header lines are kept for the caller. The payload is read
+ * straight into the caller's buffer so no buffer is allocated per chunk.
+ */
+public class ChunkedDecoder {
+
+	private enum State {
+		SIZE, EXTENSION, DATA, DATA_END, TRAILER, DONE
+	}
+
+	private static final int MAX_SIZE_DIGITS = 15;
+	private static final int MAX_TRAILER_LINE = 8 * 1024;
+	private static final int MAX_TRAILERS = 100;
+
+	private InputStream input;
+	private State state = State.SIZE;
+	private long chunkRemaining = 0;
+	private int sizeDigits = 0;
+	private List<String> trailers;
+
+	public ChunkedDecoder(InputStream input) {
+		this.input = input;
+		trailers = new ArrayList<String>();
+	}
+
+	/**
+	 * Read payload bytes of the body
+	 *
+	 * @return The number of bytes read, or -1 after the last chunk and the trailer were read
+	 */
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		while(state != State.DATA) {
+			if(state == State.DONE)
+				return -1;
+			readControl();
+		}
+
+		int len = input.read(buffer, offset, (int) Math.min(length, chunkRemaining));
+		if(len == -1)
+			throw new EOFException("Connection closed in the middle of a chunk");
+		chunkRemaining -= len;
+		if(chunkRemaining == 0)
+			state = State.DATA_END;
+		return len;
+	}
+
+	/**
+	 * @return True if the last chunk and the trailer were read
+	 */
+	public boolean isDone() {
+		return state == State.DONE;
+	}
+
+	/**
+	 * @return The trailer header lines, valid after the body was read
+	 */
+	public List<String> getTrailers() {
+		return trailers;
+	}
+
+	/**
+	 * Advance over a size line, the CRLF after a chunk or the trailer
+	 */
+	private void readControl() throws IOException {
+		switch(state) {
+		case SIZE:
+			int b = nextByte();
+			int digit = Character.digit(b, 16);
+			if(digit >= 0) {
+				if(++sizeDigits > MAX_SIZE_DIGITS)
+					throw new IOException("Chunk size is too long");
+				chunkRemaining = chunkRemaining * 16 + digit;
+			} else if(b == ';' || b == ' ' || b == '\t') {
+				state = State.EXTENSION;
+			} else if(b == '\r') {
+				// Wait for the LF
+			} else if(b == '\n') {
+				endSizeLine();
+			} else {
+				throw new IOException("Invalid chunk size character: " + b);
+			}
+			break;
+		case EXTENSION:
+			if(nextByte() == '\n')
+				endSizeLine();
+			break;
+		case DATA_END:
+			b = nextByte();
+			if(b == '\n')
+				state = State.SIZE;
+			else if(b != '\r')
+				throw new IOException("Missing CRLF after a chunk");
+			break;
+		case TRAILER:
+			String line = readLine();
+			if(line.isEmpty()) {
+				state = State.DONE;
+			} else {
+				if(trailers.size() >= MAX_TRAILERS)
+					throw new IOException("Too many trailer headers");
+				trailers.add(line);
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	private void endSizeLine() throws IOException {
+		if(sizeDigits == 0)
+			throw new IOException("Missing chunk size");
+		sizeDigits = 0;
+		state = chunkRemaining == 0 ? State.TRAILER : State.DATA;
+	}
+
+	private String readLine() throws IOException {
+		StringBuilder line = new StringBuilder();
+		int b;
+		while((b = nextByte()) != '\n') {
+			if(b != '\r')
+				line.append((char) b);
+			if(line.length() > MAX_TRAILER_LINE)
+				throw new IOException("Trailer line is too long");
+		}
+		return line.toString();
+	}
+
+	private int nextByte() throws IOException {
+		int b = input.read();
+		if(b == -1)
+			throw new EOFException("Connection closed in the middle of a chunked body");
+		return b;
+	}
+}
@@ -0,0 +1,119 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+
+/**
+ * Writes a chunked body (RFC 7230 section 4.1) to a stream.
+ * Written bytes are collected in one fixed buffer and sent as a single chunk when the
+ * buffer is full or when {@link #flush()} is called, so many small writes (or small
+ * chunks from the destination host) leave as fewer, larger chunks.
+ */
+public class ChunkedEncoder extends OutputStream {
+
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final byte[] LAST_CHUNK = { '0', '\r', '\n' };
+	private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+	private OutputStream output;
+	private byte[] buffer;
+	private int count = 0;
+	private byte[] sizeLine = new byte[18];
+	private boolean finished = false;
+
+	/**
+	 * @param buffer The buffer to collect a chunk in, its length is the largest chunk size
+	 */
+	public ChunkedEncoder(OutputStream output, byte[] buffer) {
+		this.output = output;
+		this.buffer = buffer;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if(count == buffer.length)
+			writeChunk();
+		buffer[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while(len > 0) {
+			if(count == 0 && len >= buffer.length) {
+				// Big enough to be a chunk by itself, skip the copy
+				writeChunk(b, off, len);
+				return;
+			}
+			int n = Math.min(len, buffer.length - count);
+			System.arraycopy(b, off, buffer, count, n);
+			count += n;
+			off += n;
+			len -= n;
+			if(count == buffer.length)
+				writeChunk();
+		}
+	}
+
+	/**
+	 * Send what was collected as a chunk
+	 */
+	@Override
+	public void flush() throws IOException {
+		writeChunk();
+		output.flush();
+	}
+
+	/**
+	 * Send the collected bytes, the last chunk and the trailer
+	 *
+	 * @param trailers Trailer header lines, or null
+	 */
+	public void finish(List<String> trailers) throws IOException {
+		if(finished)
+			return;
+		finished = true;
+		writeChunk();
+		output.write(LAST_CHUNK);
+		if(trailers != null) {
+			for(String trailer : trailers) {
+				for(int i = 0; i < trailer.length(); i++) {
+					output.write(trailer.charAt(i));
+				}
+				output.write(CRLF);
+			}
+		}
+		output.write(CRLF);
+		output.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		finish(null);
+	}
+
+	byte[] getBuffer() {
+		return buffer;
+	}
+
+	private void writeChunk() throws IOException {
+		if(count == 0)
+			return;
+		writeChunk(buffer, 0, count);
+		count = 0;
+	}
+
+	private void writeChunk(byte[] b, int off, int len) throws IOException {
+		// Size line in hex without building a String
+		int pos = sizeLine.length;
+		sizeLine[--pos] = '\n';
+		sizeLine[--pos] = '\r';
+		int size = len;
+		do {
+			sizeLine[--pos] = HEX[size & 0xf];
+			size >>>= 4;
+		} while(size != 0);
+		output.write(sizeLine, pos, sizeLine.length - pos);
+		output.write(b, off, len);
+		output.write(CRLF);
+	}
+}
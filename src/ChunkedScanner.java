@@ -0,0 +1,116 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Follows the framing of a chunked body (RFC 7230 section 4.1) without changing it, so
+ * a chunked request body can be relayed as it is and the proxy still knows where it
+ * ends and the next request starts. Chunk data is skipped in bulk, only the size lines
+ * and the trailer are looked at byte by byte.
+ */
+public class ChunkedScanner {
+
+	private enum State {
+		SIZE, EXTENSION, SIZE_LF, DATA, DATA_CR, DATA_LF, TRAILER_START, TRAILER, TRAILER_LF, LAST_LF, DONE
+	}
+
+	private static final int MAX_SIZE_DIGITS = 15;
+	private static final int MAX_TRAILER_SIZE = 8 * 1024;
+
+	private State state = State.SIZE;
+	private long chunkRemaining = 0;
+	private int sizeDigits = 0;
+	private int trailerSize = 0;
+
+	/**
+	 * Go over bytes of the body in the buffer, the position and limit are not changed
+	 *
+	 * @return How many of the bytes from the index from on belong to the body
+	 * @throws IOException If the framing is broken
+	 */
+	public int scan(ByteBuffer buffer, int from, int to) throws IOException {
+		int i = from;
+		while(i < to && state != State.DONE) {
+			if(state == State.DATA) {
+				int len = (int) Math.min(chunkRemaining, to - i);
+				i += len;
+				chunkRemaining -= len;
+				if(chunkRemaining == 0)
+					state = State.DATA_CR;
+				continue;
+			}
+			next(buffer.get(i++) & 0xff);
+		}
+		return i - from;
+	}
+
+	/**
+	 * @return True if the last chunk and the trailer were seen
+	 */
+	public boolean isDone() {
+		return state == State.DONE;
+	}
+
+	private void next(int b) throws IOException {
+		switch(state) {
+		case SIZE:
+			int digit = Character.digit(b, 16);
+			if(digit >= 0) {
+				if(++sizeDigits > MAX_SIZE_DIGITS)
+					throw new IOException("Chunk size is too long");
+				chunkRemaining = chunkRemaining * 16 + digit;
+			} else if(sizeDigits > 0 && (b == ';' || b == ' ' || b == '\t')) {
+				state = State.EXTENSION;
+			} else if(sizeDigits > 0 && b == '\r') {
+				state = State.SIZE_LF;
+			} else {
+				throw new IOException("Invalid chunk size character: " + b);
+			}
+			break;
+		case EXTENSION:
+			if(b == '\r')
+				state = State.SIZE_LF;
+			else if(++trailerSize > MAX_TRAILER_SIZE)
+				throw new IOException("Chunk extension is too long");
+			break;
+		case SIZE_LF:
+			expect(b, '\n');
+			sizeDigits = 0;
+			trailerSize = 0;
+			state = chunkRemaining == 0 ? State.TRAILER_START : State.DATA;
+			break;
+		case DATA_CR:
+			expect(b, '\r');
+			state = State.DATA_LF;
+			break;
+		case DATA_LF:
+			expect(b, '\n');
+			state = State.SIZE;
+			break;
+		case TRAILER_START:
+			state = b == '\r' ? State.LAST_LF : State.TRAILER;
+			break;
+		case TRAILER:
+			if(b == '\r')
+				state = State.TRAILER_LF;
+			else if(++trailerSize > MAX_TRAILER_SIZE)
+				throw new IOException("Trailer is too long");
+			break;
+		case TRAILER_LF:
+			expect(b, '\n');
+			state = State.TRAILER_START;
+			break;
+		case LAST_LF:
+			expect(b, '\n');
+			state = State.DONE;
+			break;
+		default:
+			break;
+		}
+	}
+
+	private static void expect(int b, char expected) throws IOException {
+		if(b != expected)
+			throw new IOException("Broken chunked body, expected " + (int) expected + " but got " + b);
+	}
+}
@@ -0,0 +1,105 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Admission control for the server.
+ * Counts open client connections (in total and per client IP) and open connections to
+ * every destination host. All the counters are updated with CAS so no lock is shared
+ * between connections.
+ */
+public class ConnectionLimiter {
+
+	// A counter that reached zero is retired with this value before it is removed from the map
+	private static final int RETIRED = -1;
+
+	private int maxConnections, maxPerClient, maxPerHost;
+	private AtomicInteger connections;
+	private ConcurrentHashMap<String, AtomicInteger> clients, hosts;
+
+	public ConnectionLimiter(int maxConnections, int maxPerClient, int maxPerHost) {
+		this.maxConnections = maxConnections;
+		this.maxPerClient = maxPerClient;
+		this.maxPerHost = maxPerHost;
+		connections = new AtomicInteger();
+		clients = new ConcurrentHashMap<String, AtomicInteger>();
+		hosts = new ConcurrentHashMap<String, AtomicInteger>();
+	}
+
+	/**
+	 * Reserve a place for a new client connection
+	 *
+	 * @return True if the connection is allowed, the caller must call {@link #releaseClient(String)} when it closes
+	 */
+	public boolean tryAcquireClient(String clientAddress) {
+		if(!increment(connections, maxConnections))
+			return false;
+		if(!acquire(clients, clientAddress, maxPerClient)) {
+			connections.decrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	public void releaseClient(String clientAddress) {
+		release(clients, clientAddress);
+		connections.decrementAndGet();
+	}
+
+	/**
+	 * Reserve a place for a new connection to a destination host
+	 *
+	 * @return True if the connection is allowed, the caller must call {@link #releaseHost(String)} when it closes
+	 */
+	public boolean tryAcquireHost(String host) {
+		return acquire(hosts, host, maxPerHost);
+	}
+
+	public void releaseHost(String host) {
+		release(hosts, host);
+	}
+
+	public int getConnections() {
+		return connections.get();
+	}
+
+	private static boolean acquire(ConcurrentHashMap<String, AtomicInteger> counters, String key, int max) {
+		while(true) {
+			AtomicInteger counter = counters.get(key);
+			if(counter == null) {
+				counter = new AtomicInteger();
+				AtomicInteger previous = counters.putIfAbsent(key, counter);
+				if(previous != null)
+					counter = previous;
+			}
+			int current = counter.get();
+			if(current == RETIRED) {
+				// Being removed by a releasing thread, a fresh counter will take its place
+				counters.remove(key, counter);
+				continue;
+			}
+			if(current >= max)
+				return false;
+			if(counter.compareAndSet(current, current + 1))
+				return true;
+		}
+	}
+
+	private static void release(ConcurrentHashMap<String, AtomicInteger> counters, String key) {
+		AtomicInteger counter = counters.get(key);
+		if(counter == null)
+			return;
+		if(counter.decrementAndGet() == 0 && counter.compareAndSet(0, RETIRED))
+			counters.remove(key, counter);
+	}
+
+	private static boolean increment(AtomicInteger counter, int max) {
+		while(true) {
+			int current = counter.get();
+			if(current >= max)
+				return false;
+			if(counter.compareAndSet(current, current + 1))
+				return true;
+		}
+	}
+}
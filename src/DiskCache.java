@@ -0,0 +1,469 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+
+/**
+ * Second tier of the response cache, entries that are evicted from memory are
+ * appended to a log of segment files in the cache directory.
+ *
+ * Every record is checksummed, a record that was cut by a crash is detected when the
+ * segment is scanned and the segment is truncated right before it. A full segment is
+ * sealed with an index file, so a restart reads the small index files and scans only
+ * the last segment. Segments with mostly dead records (replaced or expired) are
+ * compacted by copying their live records to the end of the log, and the oldest
+ * segments are dropped when the log passes its size.
+ *
+ * Record layout: magic, length, created, expires, key, vary, head, body length, body, CRC32.
+ */
+public class DiskCache {
+
+	private static final int RECORD_MAGIC = 0x48435250;
+	private static final int INDEX_MAGIC = 0x48434958;
+	private static final int RECORD_PREFIX = 8;
+	private static final int CRC_SIZE = 8;
+	private static final long COMPACT_INTERVAL = 60000;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private File directory;
+	private long maxSize, segmentSize;
+	private ConcurrentHashMap<String, DiskEntry> index;
+	private ConcurrentSkipListMap<Integer, DiskSegment> segments;
+	private DiskSegment active;
+	private ScheduledExecutorService writer;
+
+	public DiskCache(File directory, long maxSize, long segmentSize) throws IOException {
+		this.directory = directory;
+		this.maxSize = maxSize;
+		this.segmentSize = segmentSize;
+		index = new ConcurrentHashMap<String, DiskEntry>();
+		segments = new ConcurrentSkipListMap<Integer, DiskSegment>();
+
+		if(!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Failed to create the cache directory " + directory);
+		load();
+
+		// All the writes happen on one thread, requests never wait for the disk
+		writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "disk-cache-writer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		writer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					compact();
+				} catch (IOException e) {
+					Log.error("Failed to compact the disk cache: " + e.getMessage());
+				}
+			}
+		}, COMPACT_INTERVAL, COMPACT_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Store an entry that was evicted from the memory cache, in the background
+	 */
+	public void spill(final CacheEntry entry) {
+		writer.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					put(entry);
+				} catch (IOException e) {
+					Log.error("Failed to write to the disk cache: " + e.getMessage());
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return A fresh entry for the key that matches the request headers, or null
+	 */
+	public DiskEntry get(String key, HashMap<String, String> requestHeaders) {
+		DiskEntry entry = index.get(key);
+		if(entry == null)
+			return null;
+		if(!entry.isFresh(System.currentTimeMillis())) {
+			drop(entry);
+			return null;
+		}
+		return entry.matches(requestHeaders) ? entry : null;
+	}
+
+	synchronized void put(CacheEntry entry) throws IOException {
+		if(!entry.isFresh(System.currentTimeMillis()))
+			return;
+		ByteArrayOutputStream meta = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(meta);
+		data.writeLong(entry.getCreated());
+		data.writeLong(entry.getExpires());
+		writeString(data, entry.getKey());
+		writeVary(data, entry.getVary());
+		writeString(data, entry.getHead());
+		data.writeLong(entry.getBody().length);
+
+		byte[] body = entry.getBody();
+		int length = meta.size() + body.length + CRC_SIZE;
+		ByteBuffer record = ByteBuffer.allocate(RECORD_PREFIX + length);
+		record.putInt(RECORD_MAGIC);
+		record.putInt(length);
+		record.put(meta.toByteArray());
+		record.put(body);
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), RECORD_PREFIX, length - CRC_SIZE);
+		record.putLong(crc.getValue());
+		record.flip();
+
+		append(record, entry.getKey(), entry.getHead(), entry.getVary(), entry.getCreated(), entry.getExpires(),
+				RECORD_PREFIX + meta.size(), body.length);
+		enforceSize();
+	}
+
+	/**
+	 * Write a record at the end of the log. The size of the log is not enforced here,
+	 * a compaction appends the records of the oldest segment which must not be dropped
+	 * before they are all copied.
+	 */
+	private void append(ByteBuffer record, String key, String head, HashMap<String, String> vary,
+			long created, long expires, long bodyStart, long bodyLength) throws IOException {
+		if(active.size() > 0 && active.size() + record.remaining() > segmentSize) {
+			seal(active);
+			active = newSegment(active.getId() + 1);
+		}
+
+		FileChannel channel = active.getChannel();
+		long offset = channel.size();
+		long recordLength = record.remaining();
+		long position = offset;
+		while(record.hasRemaining()) {
+			position += channel.write(record, position);
+		}
+
+		DiskEntry entry = new DiskEntry(key, head, vary, created, expires, active,
+				offset, recordLength, offset + bodyStart, bodyLength);
+		DiskEntry previous = index.put(key, entry);
+		if(previous != null)
+			previous.getSegment().addDead(previous.getRecordLength());
+	}
+
+	private void drop(DiskEntry entry) {
+		if(index.remove(entry.getKey(), entry))
+			entry.getSegment().addDead(entry.getRecordLength());
+	}
+
+	/**
+	 * Delete the oldest segments while the log is bigger than its size
+	 */
+	private void enforceSize() throws IOException {
+		long total = 0;
+		for(DiskSegment segment : segments.values()) {
+			total += segment.size();
+		}
+		while(total > maxSize && segments.size() > 1) {
+			DiskSegment oldest = segments.firstEntry().getValue();
+			total -= oldest.size();
+			removeSegment(oldest);
+		}
+	}
+
+	private void removeSegment(DiskSegment segment) {
+		if(!segments.remove(segment.getId(), segment))
+			return;
+		for(DiskEntry entry : index.values()) {
+			if(entry.getSegment() == segment)
+				index.remove(entry.getKey(), entry);
+		}
+		segment.delete();
+	}
+
+	/**
+	 * Copy the live records of mostly dead segments to the end of the log
+	 */
+	synchronized void compact() throws IOException {
+		long now = System.currentTimeMillis();
+		for(DiskEntry entry : index.values()) {
+			if(!entry.isFresh(now))
+				drop(entry);
+		}
+
+		for(DiskSegment segment : new ArrayList<DiskSegment>(segments.values())) {
+			if(segment == active || segment.size() == 0 || segment.getDeadBytes() * 2 < segment.size())
+				continue;
+
+			for(DiskEntry entry : index.values()) {
+				if(entry.getSegment() != segment)
+					continue;
+				ByteBuffer record = ByteBuffer.allocate((int) entry.getRecordLength());
+				long position = entry.getOffset();
+				while(record.hasRemaining()) {
+					if(segment.getChannel().read(record, position + record.position()) < 0)
+						throw new IOException("Cache segment " + segment.getId() + " is shorter than its index");
+				}
+				record.flip();
+				append(record, entry.getKey(), entry.getHead(), entry.getVary(), entry.getCreated(),
+						entry.getExpires(), entry.getBodyOffset() - entry.getOffset(), entry.getBodyLength());
+			}
+			removeSegment(segment);
+		}
+		enforceSize();
+	}
+
+	private DiskSegment newSegment(int id) throws IOException {
+		DiskSegment segment = new DiskSegment(directory, id);
+		segments.put(id, segment);
+		return segment;
+	}
+
+	/**
+	 * Flush a full segment and write its index next to it
+	 */
+	private void seal(DiskSegment segment) throws IOException {
+		segment.getChannel().force(true);
+
+		ArrayList<DiskEntry> entries = new ArrayList<DiskEntry>();
+		for(DiskEntry entry : index.values()) {
+			if(entry.getSegment() == segment)
+				entries.add(entry);
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(bytes);
+		data.writeInt(INDEX_MAGIC);
+		data.writeInt(entries.size());
+		for(DiskEntry entry : entries) {
+			data.writeLong(entry.getOffset());
+			data.writeLong(entry.getRecordLength());
+			data.writeLong(entry.getBodyOffset());
+			data.writeLong(entry.getBodyLength());
+			data.writeLong(entry.getCreated());
+			data.writeLong(entry.getExpires());
+			writeString(data, entry.getKey());
+			writeVary(data, entry.getVary());
+			writeString(data, entry.getHead());
+		}
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		data.writeLong(crc.getValue());
+
+		// Write to a temporary file and rename it, a crash never leaves half an index
+		File temp = new File(directory, segment.getIndexFile().getName() + ".tmp");
+		FileOutputStream output = new FileOutputStream(temp);
+		try {
+			output.write(bytes.toByteArray());
+			output.getFD().sync();
+		} finally {
+			output.close();
+		}
+		Files.move(temp.toPath(), segment.getIndexFile().toPath(), StandardCopyOption.ATOMIC_MOVE);
+		segment.setSealed();
+	}
+
+	/**
+	 * Rebuild the index from the segment files in the cache directory
+	 */
+	private void load() throws IOException {
+		String[] names = directory.list();
+		if(names == null)
+			names = new String[0];
+		Arrays.sort(names);
+
+		int lastId = -1;
+		for(String name : names) {
+			if(!name.startsWith("segment-") || !name.endsWith(".log"))
+				continue;
+			int id;
+			try {
+				id = Integer.parseInt(name.substring(8, name.length() - 4));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			DiskSegment segment = newSegment(id);
+			if(!loadIndex(segment))
+				scan(segment);
+			lastId = id;
+		}
+
+		// Dead bytes are everything in a segment that is not indexed anymore
+		HashMap<DiskSegment, Long> live = new HashMap<DiskSegment, Long>();
+		for(DiskEntry entry : index.values()) {
+			Long sum = live.get(entry.getSegment());
+			live.put(entry.getSegment(), (sum == null ? 0 : sum) + entry.getRecordLength());
+		}
+		for(DiskSegment segment : segments.values()) {
+			Long sum = live.get(segment);
+			segment.addDead(segment.size() - (sum == null ? 0 : sum));
+		}
+
+		if(lastId >= 0 && !segments.get(lastId).isSealed())
+			active = segments.get(lastId);
+		else
+			active = newSegment(lastId + 1);
+
+		// Segments that were full but lost their index (crash while sealing)
+		for(DiskSegment segment : segments.values()) {
+			if(segment != active && !segment.isSealed())
+				seal(segment);
+		}
+		Log.info("Disk cache loaded " + index.size() + " entries from " + segments.size() + " segments");
+	}
+
+	private boolean loadIndex(DiskSegment segment) {
+		File file = segment.getIndexFile();
+		if(!file.isFile())
+			return false;
+		try {
+			byte[] bytes = Files.readAllBytes(file.toPath());
+			if(bytes.length < CRC_SIZE)
+				return false;
+			CRC32 crc = new CRC32();
+			crc.update(bytes, 0, bytes.length - CRC_SIZE);
+			if(ByteBuffer.wrap(bytes, bytes.length - CRC_SIZE, CRC_SIZE).getLong() != crc.getValue())
+				return false;
+
+			DataInputStream data = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - CRC_SIZE));
+			if(data.readInt() != INDEX_MAGIC)
+				return false;
+			int count = data.readInt();
+			long now = System.currentTimeMillis();
+			for(int i = 0; i < count; i++) {
+				long offset = data.readLong();
+				long recordLength = data.readLong();
+				long bodyOffset = data.readLong();
+				long bodyLength = data.readLong();
+				long created = data.readLong();
+				long expires = data.readLong();
+				String key = readString(data);
+				HashMap<String, String> vary = readVary(data);
+				String head = readString(data);
+				if(expires > now)
+					index.put(key, new DiskEntry(key, head, vary, created, expires, segment,
+							offset, recordLength, bodyOffset, bodyLength));
+			}
+			segment.setSealed();
+			return true;
+		} catch (IOException e) {
+			Log.warn("Failed to read cache index " + file + ", scanning the segment");
+			return false;
+		}
+	}
+
+	/**
+	 * Read the records of a segment one by one and check their checksums.
+	 * The segment is truncated at the first record that is cut or corrupted.
+	 */
+	private void scan(DiskSegment segment) throws IOException {
+		FileChannel channel = segment.getChannel();
+		long size = channel.size();
+		long position = 0;
+		long now = System.currentTimeMillis();
+		ByteBuffer prefix = ByteBuffer.allocate(RECORD_PREFIX);
+
+		while(position + RECORD_PREFIX <= size) {
+			prefix.clear();
+			readFully(channel, prefix, position);
+			prefix.flip();
+			int magic = prefix.getInt();
+			int length = prefix.getInt();
+			if(magic != RECORD_MAGIC || length < CRC_SIZE || position + RECORD_PREFIX + length > size)
+				break;
+
+			ByteBuffer record = ByteBuffer.allocate(length);
+			readFully(channel, record, position + RECORD_PREFIX);
+			byte[] bytes = record.array();
+			CRC32 crc = new CRC32();
+			crc.update(bytes, 0, length - CRC_SIZE);
+			if(ByteBuffer.wrap(bytes, length - CRC_SIZE, CRC_SIZE).getLong() != crc.getValue())
+				break;
+
+			DataInputStream data = new DataInputStream(new ByteArrayInputStream(bytes));
+			long created = data.readLong();
+			long expires = data.readLong();
+			String key = readString(data);
+			HashMap<String, String> vary = readVary(data);
+			String head = readString(data);
+			long bodyLength = data.readLong();
+			long bodyStart = length - CRC_SIZE - bodyLength;
+
+			long recordLength = RECORD_PREFIX + length;
+			if(expires > now) {
+				index.put(key, new DiskEntry(key, head, vary, created, expires, segment,
+						position, recordLength, position + RECORD_PREFIX + bodyStart, bodyLength));
+			} else {
+				index.remove(key);
+			}
+			position += recordLength;
+		}
+
+		if(position < size) {
+			Log.warn("Cache segment " + segment.getId() + " has a broken record at " + position + ", truncating it");
+			channel.truncate(position);
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			if(channel.read(buffer, position + buffer.position()) < 0)
+				throw new IOException("Unexpected end of cache segment");
+		}
+	}
+
+	private static void writeString(DataOutputStream data, String value) throws IOException {
+		if(value == null) {
+			data.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(UTF_8);
+		data.writeInt(bytes.length);
+		data.write(bytes);
+	}
+
+	private static String readString(DataInputStream data) throws IOException {
+		int length = data.readInt();
+		if(length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		data.readFully(bytes);
+		return new String(bytes, UTF_8);
+	}
+
+	private static void writeVary(DataOutputStream data, HashMap<String, String> vary) throws IOException {
+		data.writeInt(vary.size());
+		for(Map.Entry<String, String> header : vary.entrySet()) {
+			writeString(data, header.getKey());
+			writeString(data, header.getValue());
+		}
+	}
+
+	private static HashMap<String, String> readVary(DataInputStream data) throws IOException {
+		int count = data.readInt();
+		HashMap<String, String> vary = new HashMap<String, String>();
+		for(int i = 0; i < count; i++) {
+			vary.put(readString(data), readString(data));
+		}
+		return vary;
+	}
+}
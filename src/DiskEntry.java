@@ -0,0 +1,118 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+
+
+/**
+ * Index entry of a response stored in a {@link DiskSegment}.
+ * The head and the vary values are kept in memory, the body stays in the file.
+ */
+public class DiskEntry {
+
+	private static final String CRLF = "\r\n";
+
+	private String key;
+	private String head;
+	private HashMap<String, String> vary;
+	private long created, expires;
+	private DiskSegment segment;
+	private long offset, recordLength;
+	private long bodyOffset, bodyLength;
+
+	public DiskEntry(String key, String head, HashMap<String, String> vary, long created, long expires,
+			DiskSegment segment, long offset, long recordLength, long bodyOffset, long bodyLength) {
+		this.key = key;
+		this.head = head;
+		this.vary = vary;
+		this.created = created;
+		this.expires = expires;
+		this.segment = segment;
+		this.offset = offset;
+		this.recordLength = recordLength;
+		this.bodyOffset = bodyOffset;
+		this.bodyLength = bodyLength;
+	}
+
+	/**
+	 * Write the response to the client, the body is read from the segment file. The
+	 * client stream is not a channel, so the body is copied through a buffer on its way
+	 * and does not take the zero copy path of a file to socket transfer.
+	 *
+	 * @param headers Header lines for this client (its Connection header), may be empty
+	 * @return False if the segment was deleted meanwhile and nothing was written
+	 */
+	public boolean writeTo(DataOutputStream output, String headers) throws IOException {
+		if(!segment.acquire())
+			return false;
+		try {
+			output.write(ResponseWriter.encode(head + "Age: " + ((System.currentTimeMillis() - created) / 1000) + CRLF + headers + CRLF));
+			output.flush();
+
+			FileChannel channel = segment.getChannel();
+			WritableByteChannel target = Channels.newChannel(output);
+			long position = bodyOffset, remaining = bodyLength;
+			while(remaining > 0) {
+				long sent = channel.transferTo(position, remaining, target);
+				if(sent <= 0)
+					throw new IOException("Cache segment " + segment.getId() + " is shorter than its index");
+				position += sent;
+				remaining -= sent;
+			}
+			output.flush();
+			return true;
+		} finally {
+			segment.release();
+		}
+	}
+
+	public boolean isFresh(long now) {
+		return now < expires;
+	}
+
+	public boolean matches(HashMap<String, String> requestHeaders) {
+		return CacheEntry.matches(vary, requestHeaders);
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public String getHead() {
+		return head;
+	}
+
+	public HashMap<String, String> getVary() {
+		return vary;
+	}
+
+	public long getCreated() {
+		return created;
+	}
+
+	public long getExpires() {
+		return expires;
+	}
+
+	public DiskSegment getSegment() {
+		return segment;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public long getRecordLength() {
+		return recordLength;
+	}
+
+	public long getBodyOffset() {
+		return bodyOffset;
+	}
+
+	public long getBodyLength() {
+		return bodyLength;
+	}
+}
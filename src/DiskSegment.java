@@ -0,0 +1,108 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * One append only log file of the {@link DiskCache}.
+ * The segment is reference counted: the cache holds one reference until it deletes
+ * the segment, and every reader holds one while it sends a body from the file. The
+ * file is closed and removed when the last reference is given back, so deleting a
+ * segment never waits for a slow client.
+ */
+public class DiskSegment {
+
+	private int id;
+	private File file, indexFile;
+	private FileChannel channel;
+	// The reference of the cache and one per reader, 0 once the segment is gone
+	private AtomicInteger references;
+	private AtomicBoolean deleted;
+	private AtomicLong deadBytes;
+	private boolean sealed = false;
+
+	public DiskSegment(File directory, int id) throws IOException {
+		this.id = id;
+		file = new File(directory, String.format("segment-%08d.log", id));
+		indexFile = new File(directory, String.format("segment-%08d.idx", id));
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		references = new AtomicInteger(1);
+		deleted = new AtomicBoolean();
+		deadBytes = new AtomicLong();
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public File getIndexFile() {
+		return indexFile;
+	}
+
+	public FileChannel getChannel() {
+		return channel;
+	}
+
+	public long size() throws IOException {
+		return channel.size();
+	}
+
+	public void addDead(long bytes) {
+		deadBytes.addAndGet(bytes);
+	}
+
+	public long getDeadBytes() {
+		return deadBytes.get();
+	}
+
+	public boolean isSealed() {
+		return sealed;
+	}
+
+	public void setSealed() {
+		sealed = true;
+	}
+
+	/**
+	 * Take a reference for reading the file
+	 *
+	 * @return False if the segment was already deleted, otherwise the caller must call {@link #release()}
+	 */
+	public boolean acquire() {
+		while(true) {
+			int current = references.get();
+			if(current == 0)
+				return false;
+			if(references.compareAndSet(current, current + 1))
+				return true;
+		}
+	}
+
+	public void release() {
+		if(references.decrementAndGet() == 0)
+			close();
+	}
+
+	/**
+	 * Give up the reference of the cache, the segment and its index are removed once
+	 * the readers that still send from it are done
+	 */
+	public void delete() {
+		if(deleted.compareAndSet(false, true))
+			release();
+	}
+
+	private void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Nothing to do
+		}
+		file.delete();
+		indexFile.delete();
+	}
+}
@@ -0,0 +1,265 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Caches the addresses of destination hosts so a request does not wait for a lookup.
+ * Answers are kept for a fixed time, and failed lookups for a shorter one so a bad host
+ * name does not send every request to the resolver.
+ * A host that is used close to the end of its time is looked up again in the background
+ * while the old addresses are still handed out, so a busy host never waits for a lookup.
+ * When a host has several addresses they are handed out in turn.
+ * Requests that miss the same host together wait for one lookup.
+ * The non blocking engine must not wait for a lookup at all, it asks with
+ * {@link #resolveAll(String, Callback)} and a miss is looked up on the lookup threads.
+ */
+public class DnsCache {
+
+	private static final int LOOKUP_THREADS = 4;
+
+	/**
+	 * Receives the answer of a lookup that did not block
+	 */
+	public interface Callback {
+
+		/**
+		 * @param addresses All the addresses of the host, starting with the one whose turn it is, null if it has none
+		 */
+		void resolved(InetAddress[] addresses);
+	}
+
+	private HostResolver resolver;
+	private long ttl, negativeTtl, refreshAhead;
+	private int maxEntries;
+	private ConcurrentHashMap<String, Entry> entries;
+	// Runs the refreshes, and the lookups of the callers that can not wait
+	private ExecutorService lookups;
+
+	/**
+	 * @param ttl Milliseconds to keep the addresses of a host, 0 to not cache at all
+	 * @param negativeTtl Milliseconds to remember that a host has no addresses
+	 * @param refreshAhead Milliseconds before the addresses expire at which a request starts a new lookup
+	 * @param maxEntries The number of hosts to keep
+	 */
+	public DnsCache(HostResolver resolver, long ttl, long negativeTtl, long refreshAhead, int maxEntries) {
+		this.resolver = resolver;
+		this.ttl = ttl;
+		this.negativeTtl = negativeTtl;
+		this.refreshAhead = Math.min(refreshAhead, ttl);
+		this.maxEntries = maxEntries;
+		entries = new ConcurrentHashMap<String, Entry>();
+		lookups = Executors.newFixedThreadPool(LOOKUP_THREADS, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "dns-lookup");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * @return All the addresses of the host, starting with the one whose turn it is
+	 * @throws UnknownHostException If the host has no addresses, the failure is cached too
+	 */
+	public InetAddress[] resolveAll(String host) throws UnknownHostException {
+		if(ttl <= 0)
+			return resolver.resolve(host);
+		return find(host).rotation();
+	}
+
+	/**
+	 * Look up the host without blocking. A cached answer is given to the callback at once
+	 * on the calling thread, a miss is looked up on a lookup thread and the callback is
+	 * called there.
+	 */
+	public void resolveAll(final String host, final Callback callback) {
+		if(ttl > 0) {
+			Entry entry = findAnswered(host);
+			if(entry != null) {
+				InetAddress[] addresses;
+				try {
+					addresses = entry.rotation();
+				} catch (UnknownHostException e) {
+					addresses = null;
+				}
+				callback.resolved(addresses);
+				return;
+			}
+		}
+		lookups.execute(new Runnable() {
+			@Override
+			public void run() {
+				InetAddress[] addresses;
+				try {
+					addresses = resolveAll(host);
+				} catch (UnknownHostException e) {
+					addresses = null;
+				}
+				callback.resolved(addresses);
+			}
+		});
+	}
+
+	/**
+	 * @return The entry of the host if it holds an answer that did not expire, null if the host has to be looked up
+	 */
+	private Entry findAnswered(String host) {
+		host = host.toLowerCase();
+		long now = System.currentTimeMillis();
+		Entry entry = entries.get(host);
+		if(entry == null || !entry.isAnswered() || entry.isExpired(now))
+			return null;
+		if(now >= entry.refreshAt)
+			refresh(host, entry);
+		return entry;
+	}
+
+	private Entry find(String host) {
+		host = host.toLowerCase();
+		long now = System.currentTimeMillis();
+		Entry entry = entries.get(host);
+		if(entry == null || entry.isExpired(now))
+			entry = lookup(host, entry);
+		else if(now >= entry.refreshAt)
+			refresh(host, entry);
+		return entry;
+	}
+
+	/**
+	 * Look up a host that is not in the cache or expired, or wait for the request that
+	 * already does it
+	 */
+	private Entry lookup(String host, Entry expired) {
+		Entry pending = new Entry();
+		while(true) {
+			Entry current;
+			if(expired == null) {
+				current = entries.putIfAbsent(host, pending);
+			} else if(entries.replace(host, expired, pending)) {
+				current = null;
+			} else {
+				current = entries.get(host);
+				if(current == null) {
+					expired = null;
+					continue;
+				}
+			}
+			if(current != null)
+				return current;
+
+			if(Log.isDebug())
+				Log.debug("Resolving " + host);
+			pending.fill(host);
+			if(entries.size() > maxEntries)
+				evict();
+			return pending;
+		}
+	}
+
+	/**
+	 * Look up the host again on a lookup thread, the old addresses are used until it is done
+	 */
+	private void refresh(final String host, final Entry entry) {
+		if(!entry.refreshing.compareAndSet(false, true))
+			return;
+		lookups.execute(new Runnable() {
+			@Override
+			public void run() {
+				Entry fresh = new Entry();
+				fresh.fill(host);
+				// When the lookup fails the old addresses stay until they expire
+				if(fresh.error == null)
+					entries.replace(host, entry, fresh);
+			}
+		});
+	}
+
+	/**
+	 * Drop the expired hosts, and then any hosts while there are too many
+	 */
+	private void evict() {
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+		while(iterator.hasNext()) {
+			if(iterator.next().getValue().isExpired(now))
+				iterator.remove();
+		}
+		iterator = entries.entrySet().iterator();
+		while(entries.size() > maxEntries && iterator.hasNext()) {
+			iterator.next();
+			iterator.remove();
+		}
+	}
+
+	private class Entry {
+		private volatile InetAddress[] addresses;
+		private volatile UnknownHostException error;
+		private volatile long expires = Long.MAX_VALUE;
+		private volatile long refreshAt = Long.MAX_VALUE;
+		private AtomicInteger next = new AtomicInteger();
+		private AtomicBoolean refreshing = new AtomicBoolean();
+		private CountDownLatch ready = new CountDownLatch(1);
+
+		void fill(String host) {
+			try {
+				addresses = resolver.resolve(host);
+				long now = System.currentTimeMillis();
+				refreshAt = now + ttl - refreshAhead;
+				expires = now + ttl;
+			} catch (UnknownHostException e) {
+				error = e;
+				expires = System.currentTimeMillis() + negativeTtl;
+			} catch (RuntimeException e) {
+				// Not an answer about the host, it is not kept
+				error = new UnknownHostException(host + ": " + e);
+				expires = 0;
+			} finally {
+				ready.countDown();
+			}
+		}
+
+		boolean isAnswered() {
+			return ready.getCount() == 0;
+		}
+
+		boolean isExpired(long now) {
+			return now >= expires;
+		}
+
+		InetAddress[] rotation() throws UnknownHostException {
+			awaitAnswer();
+			int first = (next.getAndIncrement() & Integer.MAX_VALUE) % addresses.length;
+			InetAddress[] rotated = new InetAddress[addresses.length];
+			for(int i = 0; i < rotated.length; i++) {
+				rotated[i] = addresses[(first + i) % addresses.length];
+			}
+			return rotated;
+		}
+
+		private void awaitAnswer() throws UnknownHostException {
+			boolean interrupted = false;
+			while(true) {
+				try {
+					ready.await();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if(interrupted)
+				Thread.currentThread().interrupt();
+			if(error != null)
+				throw new UnknownHostException(error.getMessage());
+		}
+	}
+}
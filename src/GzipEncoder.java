@@ -0,0 +1,117 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+
+/**
+ * Writes a gzip stream (RFC 1952) of the bytes written to it.
+ * The deflater and the output buffer are given by the caller, so they can come from
+ * pools and a response costs no zlib allocation. {@link #flush()} ends the deflate
+ * block with a sync flush, a streamed response is not held back by the compressor.
+ */
+public class GzipEncoder extends OutputStream {
+
+	private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+	private OutputStream output;
+	private Deflater deflater;
+	private byte[] buffer;
+	private CRC32 crc = new CRC32();
+	private boolean headerSent = false;
+	private boolean finished = false;
+
+	/**
+	 * @param deflater A deflater without a zlib wrapper (nowrap), it is reset first
+	 * @param buffer The buffer compressed bytes are collected in
+	 */
+	public GzipEncoder(OutputStream output, Deflater deflater, byte[] buffer) {
+		this.output = output;
+		this.deflater = deflater;
+		this.buffer = buffer;
+		deflater.reset();
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if(len == 0)
+			return;
+		writeHeader();
+		crc.update(b, off, len);
+		deflater.setInput(b, off, len);
+		while(!deflater.needsInput())
+			deflate(Deflater.NO_FLUSH);
+	}
+
+	/**
+	 * Send everything that was written so far
+	 */
+	@Override
+	public void flush() throws IOException {
+		if(headerSent && !finished)
+			deflate(Deflater.SYNC_FLUSH);
+		output.flush();
+	}
+
+	/**
+	 * Send the rest of the compressed stream and the gzip trailer. The output stream
+	 * is not closed, and the deflater and buffer may be given back afterwards.
+	 */
+	public void finish() throws IOException {
+		if(finished)
+			return;
+		writeHeader();
+		finished = true;
+		deflater.finish();
+		while(!deflater.finished()) {
+			int len = deflater.deflate(buffer, 0, buffer.length);
+			output.write(buffer, 0, len);
+		}
+		int size = (int) deflater.getBytesRead();
+		long value = crc.getValue();
+		byte[] trailer = new byte[8];
+		for(int i = 0; i < 4; i++) {
+			trailer[i] = (byte) (value >>> (8 * i));
+			trailer[4 + i] = (byte) (size >>> (8 * i));
+		}
+		output.write(trailer);
+		output.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		finish();
+	}
+
+	Deflater getDeflater() {
+		return deflater;
+	}
+
+	byte[] getBuffer() {
+		return buffer;
+	}
+
+	private void writeHeader() throws IOException {
+		if(headerSent)
+			return;
+		headerSent = true;
+		output.write(HEADER);
+	}
+
+	/**
+	 * Deflate until the deflater has nothing more to give for the flush mode
+	 */
+	private void deflate(int flush) throws IOException {
+		int len;
+		do {
+			len = deflater.deflate(buffer, 0, buffer.length, flush);
+			if(len > 0)
+				output.write(buffer, 0, len);
+		} while(len == buffer.length);
+	}
+}
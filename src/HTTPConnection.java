@@ -1,118 +1,514 @@
-import java.io.BufferedReader;
 import java.io.DataOutputStream;
-import java.io.File;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class HTTPConnection implements Runnable {
+	// Also the largest request head that is accepted
+	private static final int INPUT_BUFFER_SIZE = 16 * 1024;
+	
 	private static int counter = 0;
 	
 	private Socket socket;
-	private BufferedReader input;
-	private DataOutputStream output;
-	private File root;
-	private String defaultPage;
+	private InputStream input;
+	private ByteBuffer inputBuffer;
+	private HttpRequestParser parser;
+	private SocketOutput output;
+	private ServerContext context;
+	private ServerMetrics metrics;
+	private String clientAddress;
 	private int myCounter;
+	private ExecutorService workers;
+	private int pipelineDepth, pipelineBufferSize;
+	private int tunnelIdleTimeout;
+	private AtomicInteger pipelined;
+	private PipelinedResponse lastResponse = null;
+	private int keepAliveTimeout, requestHeadTimeout, maxKeepAliveRequests;
+	private TimerWheel reaper;
+	private TimerWheel.Timeout idleDeadline;
 
-	public HTTPConnection(Socket socket, File root, String defaultPage) throws IOException {
+	public HTTPConnection(Socket socket, ServerContext context) throws IOException {
 		this.socket = socket;
-		this.root = root;
-		this.defaultPage = defaultPage;
-		input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-		output = new DataOutputStream(socket.getOutputStream());
+		this.context = context;
+		metrics = context.getMetrics();
+		clientAddress = socket.getInetAddress().getHostAddress();
+		input = socket.getInputStream();
+		inputBuffer = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+		inputBuffer.flip();
+		parser = new HttpRequestParser();
+		// Responses are flushed when they are finished, see PipelinedResponse
+		output = new SocketOutput(clientOutput(), context.getBufferPool());
+		workers = context.getWorkers();
+		pipelineDepth = context.getConfig().getInt("pipelineDepth", 8);
+		pipelineBufferSize = context.getConfig().getInt("pipelineBufferSize", 256 * 1024);
+		pipelined = new AtomicInteger();
+		tunnelIdleTimeout = context.getConfig().getInt("tunnelIdleTimeout", 300000);
+		keepAliveTimeout = context.getConfig().getInt("keepAliveTimeout", 5000);
+		requestHeadTimeout = context.getConfig().getInt("requestHeadTimeout", 10000);
+		maxKeepAliveRequests = context.getConfig().getInt("maxKeepAliveRequests", 100);
+		reaper = context.getReaper();
 		myCounter = counter++;
 	}
 
 	@Override
 	public void run() {
+		metrics.connectionOpened();
 		boolean keepAlive = true;
+		int requests = 0;
 		while(keepAlive) {
 			HTTPRequest request  = new HTTPRequest();
+			PipelinedResponse response = null;
+			DataOutputStream output = null;
+			AccessLogEntry entry = null;
+			long start = 0;
 			
 			try {
-				switch(request.parseFirstLine(input)) {
+				int code = readRequestHead(request);
+				// A pipelined response before this request ends the connection, the request is not answered
+				if(lastResponse != null && lastResponse.isClosing())
+					break;
+				start = System.nanoTime();
+				if(Log.isAccessEnabled())
+					entry = new AccessLogEntry(clientAddress, request, System.currentTimeMillis());
+				response = nextResponse();
+				output = new UnlockedDataOutputStream(response);
+				// The server limits how many requests a connection may send
+				boolean lastAllowed = maxKeepAliveRequests > 0 && ++requests >= maxKeepAliveRequests;
+				
+				switch(code) {
 				case 0:
-					break; // Parsed OK, continue to headers
-				case 400:
-					new HTTPResponse(output).generateSpecificResponse(400);
-					//closeConnection();
-					continue;
+					break; // Parsed OK
 				case 501:
-					new HTTPResponse(output).generateSpecificResponse(501);
-					//closeConnection();
+					sendSpecific(request, output, 501, entry, start);
+					response.finish(true);
+					keepAlive = !lastAllowed && !request.announcesBody();
 					continue;
 				default:
-					new HTTPResponse(output).generateSpecificResponse(500);
-					//closeConnection();
+					// The head is broken, the next request can not be found in the stream
+					sendSpecific(request, output, code, entry, start);
+					response.finish(true);
+					keepAlive = false;
 					continue;
 				}
 				
-				request.readHeaders(input);
-				
+				boolean persistent = !lastAllowed && request.wantsKeepAlive();
 				if(request.checkVersion()) {
-					new HTTPResponse(output).generateSpecificResponse(400);
-					//closeConnection();
+					sendSpecific(request, output, 400, entry, start);
+					response.finish(true);
+					keepAlive = persistent && !request.announcesBody();
 					continue;
 				}
 				
-				//request.parseQuery(false);
+				//request.parseQuery();
 				
-				switch(request.readBody(input)) {
-				case 0:
-					break; // Parsed OK
-				case 411:
-					new HTTPResponse(output).generateSpecificResponse(411);
-					//closeConnection();
-					continue;
-				case 500:
-					new HTTPResponse(output).generateSpecificResponse(500);
-					//closeConnection();
+				code = request.prepareBody(input, inputBuffer);
+				if(code != 0) {
+					// 411, 400 or 501, a body that can not be framed can not be skipped either
+					sendSpecific(request, output, code, entry, start);
+					response.finish(true);
+					keepAlive = persistent && code == 411;
 					continue;
 				}
 				
-				ProxyHandler proxyHandler = new ProxyHandler(request, myCounter);
-				
-				if(!proxyHandler.isRequestLegal()) {
-					new HTTPResponse(output).generateSpecificResponse(403);
-					//closeConnection();
+				if(request.getMethod() == Method.CONNECT) {
+					// Once the tunnel is open the connection belongs to it
+					keepAlive = !tunnel(request, response, output, entry, start);
 					continue;
 				}
 				
-				proxyHandler.connectToHost();
-				
-				proxyHandler.sendRequest();
-				
-				proxyHandler.getResponse(output);
-				
-				proxyHandler.closeConnection();
+				if(persistent && canPipeline(request)) {
+					dispatch(request, response, entry, start);
+					continue;
+				}
 				
-				//HTTPResponse resposne = new HTTPResponse(request, output, root, defaultPage);
-				//resposne.generateResposne();
-				//keepAlive = request.getHeaders().get("connection").equalsIgnoreCase("keep-alive");
+				int status = forward(request, response, output, true, persistent, entry);
+				finishRequest(request, entry, status, output, start);
+				response.finish(true);
+				keepAlive = persistent && !response.isClosing();
+				// The rest of an unsent body is still in the stream, the next request can not be found
+				if(request.getBody() != null && !request.getBody().isComplete())
+					keepAlive = false;
 
+			} catch (EOFException e) {
+				// The client closed the connection between requests
+				if(response != null)
+					response.finish(false);
+				break;
 			} catch (IOException e) {
 				// Connection has been closed
-				System.out.println(myCounter + " | ### IOException! ###");
-				System.out.println(e.getMessage());
-				e.printStackTrace();
+				if(Log.isDebug())
+					Log.debug(myCounter + " | Connection failed: " + e.getMessage());
+				if(response != null)
+					response.finish(false);
 				break;
 			} catch (Exception e) {
-				System.out.println(e.getMessage());
-				e.printStackTrace();
-				try {
-					if(output != null)
-						new HTTPResponse(output).generateSpecificResponse(500);
-				} catch (IOException e1) {
-					// Nothing to do
+				Log.error(myCounter + " | Failed to handle the request", e);
+				if(response != null) {
+					sendError(output);
+					finishRequest(request, entry, 500, output, start);
+					response.finish(true);
 				}
 			}	
 		}
-		System.out.println(myCounter + " | ### Connection is closing ###");
+		
+		// Let the pipelined responses reach the client before closing
+		try {
+			if(lastResponse != null)
+				lastResponse.awaitSent();
+		} catch (IOException e) {
+			// Closing anyway
+		}
+		if(Log.isDebug())
+			Log.debug(myCounter + " | Connection is closing");
+		metrics.connectionClosed();
 		closeConnection();
 	}
 	
+	/**
+	 * Proxy a request and write the response
+	 * 
+	 * @param response The place of the response, it is told when the connection has to be closed after it
+	 * @param mayWait False if the request must not wait for another request to fill the cache
+	 * @param keepAlive False if the connection is closed after the response
+	 * @param entry Gets the timings of the destination host, may be null
+	 * @return The status code sent to the client
+	 */
+	private int forward(HTTPRequest request, PipelinedResponse response, DataOutputStream output, boolean mayWait,
+			boolean keepAlive, AccessLogEntry entry) throws IOException {
+		if(!isRequestAllowed()) {
+			new HTTPResponse(output).generateSpecificResponse(429);
+			return 429;
+		}
+		
+		ProxyHandler proxyHandler = new ProxyHandler(request, myCounter, context);
+		proxyHandler.setKeepAlive(keepAlive);
+		
+		if(!proxyHandler.isRequestLegal()) {
+			new HTTPResponse(output).generateSpecificResponse(403);
+			return 403;
+		}
+		
+		StaticFiles staticFiles = context.getStaticFiles();
+		if(staticFiles != null && proxyHandler.isForProxy())
+			return new HTTPResponse(request, output, staticFiles, proxyHandler.getLocalPath()).generateResposne();
+		
+		if(!proxyHandler.setHostAndPath()) {
+			new HTTPResponse(output).generateSpecificResponse(400);
+			return 400;
+		}
+		
+		try {
+			if(proxyHandler.serveFromCache(output, mayWait))
+				return proxyHandler.getStatusCode();
+			if(proxyHandler.followInFlight(output, mayWait)) {
+				if(proxyHandler.closesClient())
+					response.closeConnection();
+				return proxyHandler.getStatusCode();
+			}
+			
+			int code = connect(proxyHandler);
+			if(code != 0) {
+				new HTTPResponse(output).generateSpecificResponse(code);
+				return code;
+			}
+			// The body is asked for only when it has somewhere to go
+			if(request.getBody() != null && request.expectsContinue()) {
+				new HTTPResponse(output).generateContinue();
+				output.flush();
+			}
+			
+			try {
+				proxyHandler.sendRequest();
+				
+				proxyHandler.getResponse(output);
+				if(proxyHandler.closesClient())
+					response.closeConnection();
+			} catch (SocketTimeoutException e) {
+				// The client can still get an answer if none of the response was sent yet
+				if(output.size() > 0)
+					throw e;
+				new HTTPResponse(output).generateSpecificResponse(504);
+				return 504;
+			}
+			return proxyHandler.getStatusCode();
+		} finally {
+			if(entry != null)
+				entry.setUpstream(proxyHandler.getConnectNanos(), proxyHandler.getFirstByteNanos(), proxyHandler.isCacheHit());
+			proxyHandler.closeConnection();
+		}
+	}
+	
+	/**
+	 * @return 0 if connected to the destination host, or the status code to send instead
+	 */
+	private int connect(ProxyHandler proxyHandler) throws IOException {
+		try {
+			return proxyHandler.connectToHost() ? 0 : 503;
+		} catch (UnknownHostException | ConnectException e) {
+			return 502;
+		} catch (SocketTimeoutException e) {
+			return 504;
+		}
+	}
+	
+	/**
+	 * Open the tunnel of a CONNECT request and relay it until both sides closed
+	 * 
+	 * @return True if the tunnel was opened, the connection can not be used for requests afterwards
+	 */
+	private boolean tunnel(HTTPRequest request, PipelinedResponse response, DataOutputStream output,
+			AccessLogEntry entry, long start) throws IOException {
+		ProxyHandler proxyHandler = new ProxyHandler(request, myCounter, context);
+		try {
+			int code = 0;
+			if(!isRequestAllowed())
+				code = 429;
+			else if(!proxyHandler.isRequestLegal())
+				code = 403;
+			else if(!proxyHandler.setHostAndPath())
+				code = 400;
+			else
+				code = connect(proxyHandler);
+			if(code != 0) {
+				sendSpecific(request, output, code, entry, start);
+				response.finish(true);
+				return false;
+			}
+			
+			new HTTPResponse(output).generateConnectionEstablished();
+			response.finish(true);
+			SocketTunnel tunnel = new SocketTunnel(socket, proxyHandler.getDestinationSocket(),
+					context.getBufferPool(), tunnelIdleTimeout);
+			try {
+				// The tunnel writes to the client directly, so the responses before it must be out
+				response.awaitSent();
+				if(Log.isDebug())
+					Log.debug(myCounter + " | Tunnel to " + proxyHandler.getTarget() + " is open");
+				tunnel.run(input, inputBuffer, workers);
+			} catch (IOException e) {
+				// The response is already finished, the connection just ends
+				if(Log.isDebug())
+					Log.debug(myCounter + " | Tunnel failed: " + e.getMessage());
+			} finally {
+				long duration = System.nanoTime() - start;
+				long sent = output.size() + tunnel.getReceived();
+				metrics.recordRequest(200, request.getReceivedLength() + tunnel.getSent(), sent, duration);
+				if(entry != null) {
+					entry.setUpstream(proxyHandler.getConnectNanos(), -1, false);
+					entry.setResponse(200, sent, duration);
+					Log.access(entry);
+				}
+			}
+			return true;
+		} finally {
+			proxyHandler.closeConnection();
+		}
+	}
+	
+	/**
+	 * @return False if the client sent more requests than its rate allows
+	 */
+	private boolean isRequestAllowed() {
+		RateLimiter rateLimiter = context.getRateLimiter();
+		return rateLimiter == null || rateLimiter.allowRequest(clientAddress);
+	}
+	
+	/**
+	 * The stream of the socket, paced when the bytes sent to the client are limited.
+	 * The connection has a thread of its own that waits for the pace, as it waits for
+	 * a slow client that does not read.
+	 */
+	private OutputStream clientOutput() throws IOException {
+		RateLimiter rateLimiter = context.getRateLimiter();
+		RateLimiter.Bandwidth bandwidth = rateLimiter == null ? null : rateLimiter.newBandwidth(clientAddress);
+		if(bandwidth == null)
+			return socket.getOutputStream();
+		return new PacedOutputStream(socket.getOutputStream(), bandwidth, rateLimiter.getSliceSize());
+	}
+	
+	private void sendSpecific(HTTPRequest request, DataOutputStream output, int code, AccessLogEntry entry, long start) throws IOException {
+		new HTTPResponse(output).generateSpecificResponse(code);
+		finishRequest(request, entry, code, output, start);
+	}
+	
+	/**
+	 * Count the request in the metrics and write it to the access log
+	 * 
+	 * @param output The stream of this response only, its size is the number of bytes sent
+	 * @param start When the request head was read (System.nanoTime())
+	 */
+	private void finishRequest(HTTPRequest request, AccessLogEntry entry, int status, DataOutputStream output, long start) {
+		long duration = System.nanoTime() - start;
+		metrics.recordRequest(status, request.getReceivedLength(), output.size(), duration);
+		if(entry == null)
+			return;
+		entry.setResponse(status, output.size(), duration);
+		Log.access(entry);
+	}
+	
+	/**
+	 * A request is handled in the background when the client already sent the next one
+	 * behind it, has no body, and is safe to send to the destination at the same time as
+	 * the requests around it.
+	 */
+	private boolean canPipeline(HTTPRequest request) {
+		if(workers == null || !inputBuffer.hasRemaining() || pipelined.get() >= pipelineDepth
+				|| !"HTTP/1.1".equals(request.getVersion()))
+			return false;
+		Method method = request.getMethod();
+		return (method == Method.GET || method == Method.HEAD)
+				&& request.getHeader("content-length") == null
+				&& request.getHeader("transfer-encoding") == null;
+	}
+	
+	/**
+	 * Handle the request on another thread while this one reads the next request.
+	 * The response keeps its place in the order of the connection.
+	 */
+	private void dispatch(final HTTPRequest request, final PipelinedResponse response,
+			final AccessLogEntry entry, final long start) {
+		pipelined.incrementAndGet();
+		if(Log.isDebug())
+			Log.debug(myCounter + " | Pipelining " + request.getMethod() + " " + request.getPath());
+		workers.execute(new Runnable() {
+			@Override
+			public void run() {
+				boolean ok = true;
+				DataOutputStream output = new UnlockedDataOutputStream(response);
+				try {
+					finishRequest(request, entry, forward(request, response, output, false, true, entry), output, start);
+				} catch (IOException e) {
+					if(Log.isDebug())
+						Log.debug(myCounter + " | Pipelined request failed: " + e.getMessage());
+					ok = false;
+				} catch (Exception e) {
+					Log.error(myCounter + " | Failed to handle the pipelined request", e);
+					sendError(output);
+					finishRequest(request, entry, 500, output, start);
+				} finally {
+					pipelined.decrementAndGet();
+					response.finish(ok);
+				}
+			}
+		});
+	}
+	
+	private PipelinedResponse nextResponse() {
+		if(lastResponse == null)
+			lastResponse = PipelinedResponse.first(output, pipelineBufferSize);
+		else
+			lastResponse = lastResponse.append();
+		return lastResponse;
+	}
+	
+	private void sendError(DataOutputStream output) {
+		try {
+			new HTTPResponse(output).generateSpecificResponse(500);
+		} catch (IOException e) {
+			// Nothing to do
+		}
+	}
+	
+	/**
+	 * Read from the client until the parser finds a complete request head.
+	 * Bytes read after the head stay in the input buffer for the body and the next request.
+	 * A client that sends nothing for the keep alive timeout, or does not finish the head
+	 * within the request head timeout, gets its socket closed by the reaper.
+	 * 
+	 * @return 0 if OK or the error number to send to the user.
+	 * @throws EOFException If the client closed the connection
+	 */
+	private int readRequestHead(HTTPRequest request) throws IOException {
+		parser.reset();
+		// Move the bytes that were not used yet to the start of the buffer
+		inputBuffer.compact();
+		inputBuffer.flip();
+		
+		boolean idle = !inputBuffer.hasRemaining();
+		startDeadline(idle ? keepAliveTimeout : requestHeadTimeout);
+		long parseNanos = 0;
+		try {
+			while(true) {
+				long start = System.nanoTime();
+				int result = parser.parse(inputBuffer);
+				if(result == HttpRequestParser.OK) {
+					result = request.parseHead(parser, inputBuffer);
+					inputBuffer.position(parser.getHeadEnd());
+					metrics.recordPhase(ServerMetrics.PARSE, parseNanos + System.nanoTime() - start);
+					return result;
+				}
+				parseNanos += System.nanoTime() - start;
+				if(result != HttpRequestParser.INCOMPLETE)
+					return result;
+				if(inputBuffer.limit() == inputBuffer.capacity())
+					return 431; // Head does not fit the buffer
+				
+				int len = input.read(inputBuffer.array(), inputBuffer.limit(), inputBuffer.capacity() - inputBuffer.limit());
+				if(len == -1)
+					throw new EOFException("Client closed the connection");
+				inputBuffer.limit(inputBuffer.limit() + len);
+				if(idle && len > 0) {
+					// The head started, from now on it has to arrive in time
+					idle = false;
+					startDeadline(requestHeadTimeout);
+				}
+			}
+		} finally {
+			stopDeadline();
+		}
+	}
+	
+	private synchronized void startDeadline(int timeout) {
+		stopDeadline();
+		if(reaper != null && timeout > 0)
+			scheduleIdle(timeout);
+	}
+	
+	private synchronized void scheduleIdle(int timeout) {
+		IdleCheck check = new IdleCheck();
+		check.deadline = reaper.schedule(check, timeout);
+		idleDeadline = check.deadline;
+	}
+	
+	private synchronized void stopDeadline() {
+		if(idleDeadline != null)
+			idleDeadline.cancel();
+		idleDeadline = null;
+	}
+	
+	/**
+	 * Called by the reaper when a request head did not arrive in time. The blocked read
+	 * fails once the socket is closed. A client that still waits for pipelined responses
+	 * is not idle, it gets another period.
+	 */
+	private void closeIdle(IdleCheck check) {
+		synchronized(this) {
+			// The head arrived meanwhile
+			if(idleDeadline == null || idleDeadline != check.deadline)
+				return;
+			idleDeadline = null;
+			if(pipelined.get() > 0) {
+				scheduleIdle(keepAliveTimeout);
+				return;
+			}
+		}
+		if(Log.isDebug())
+			Log.debug(myCounter + " | Closing the connection of an idle client");
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Nothing to do
+		}
+	}
+	
 	/*
 	 * Closing the connection 
 	 */
@@ -129,5 +525,16 @@ public class HTTPConnection implements Runnable {
 		} catch (IOException e) {
 			// Noting to do
 		}
+		context.getLimiter().releaseClient(clientAddress);
+	}
+	
+	private class IdleCheck implements Runnable {
+		
+		private TimerWheel.Timeout deadline;
+		
+		@Override
+		public void run() {
+			closeIdle(this);
+		}
 	}
 }
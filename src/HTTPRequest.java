@@ -1,7 +1,8 @@
-import java.io.BufferedReader;
-import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.HashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -11,18 +12,27 @@ public class HTTPRequest {
 	private static final String HTTP_11 = "HTTP/1.1";
 	private static final String HTTP_10 = "HTTP/1.0";
 	private static final String CONTENT_LENGTH = "content-length";
+	private static final String TRANSFER_ENCODING = "transfer-encoding";
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	private static final Method[] METHODS = Method.values();
 	
-	private static Pattern requestLine = Pattern.compile("(\\S+)\\s+([^\\s?]+)(\\?(\\S+))?\\s+(HTTP/[0-9.]+)");
-	private static Pattern headerLine = Pattern.compile("([^:]+):\\s*(.*)");
 	private static Pattern queryLine = Pattern.compile("([^&=]+)=([^&=]+)");
 	
 	
 	private Method method;
-	private String path, query, version, body, firstLine;
-	private HashMap<String, String> headersMap, parametersMap;	
+	private String path, query, version, firstLine, target;
+	private RequestBody body;
+	private long bodyLength;
+	private HashMap<String, String> headersMap, parametersMap;
+	
+	// The head as it was read, headers are turned into Strings only when asked for
+	private byte[] head;
+	private int headerCount;
+	private int[] headerOffsets;
+	private int firstLineEnd;
+	private int targetStart, targetEnd;
 	
 	public HTTPRequest () {
-		headersMap = new HashMap<String, String>();
 		parametersMap = new HashMap<String, String>();
 	}
 
@@ -33,53 +43,192 @@ public class HTTPRequest {
 	 * @return True if version is HTTP/1.1 and does NOT have host header
 	 */
 	public boolean checkVersion() {
-		System.out.println("iS1.1: " + version.equalsIgnoreCase(HTTP_11));
-		System.out.println("hasHost: " + headersMap.containsKey("host"));
-		return version.equalsIgnoreCase(HTTP_11) && !headersMap.containsKey("host");
+		return version.equalsIgnoreCase(HTTP_11) && getHeader("host") == null;
+	}
+
+	/**
+	 * Take the request head that the parser found in the buffer.
+	 * The head bytes are copied once, the request line is split into its parts and
+	 * the headers are kept as offsets into the copy.
+	 * 
+	 * @param parser A parser that returned {@link HttpRequestParser#OK} for the buffer
+	 * @return 0 if OK or the error number to send to the user.
+	 */
+	public int parseHead(HttpRequestParser parser, ByteBuffer buffer) {
+		int start = parser.getMethodStart();
+		head = new byte[parser.getHeadEnd() - start];
+		for(int i = 0; i < head.length; i++) {
+			head[i] = buffer.get(start + i);
+		}
+		
+		headerCount = parser.getHeaderCount();
+		headerOffsets = new int[headerCount * 4];
+		for(int i = 0; i < headerCount; i++) {
+			headerOffsets[i * 4] = parser.getNameStart(i) - start;
+			headerOffsets[i * 4 + 1] = parser.getNameEnd(i) - start;
+			headerOffsets[i * 4 + 2] = parser.getValueStart(i) - start;
+			headerOffsets[i * 4 + 3] = parser.getValueEnd(i) - start;
+		}
+		firstLineEnd = parser.getVersionEnd() - start;
+		targetStart = parser.getTargetStart() - start;
+		targetEnd = parser.getTargetEnd() - start;
+		
+		method = findMethod(0, parser.getMethodEnd() - start);
+		if(method == null) {
+			// Not a supported method. Generate 501
+			return 501;
+		}
+		
+		path = new String(head, parser.getTargetStart() - start, parser.getPathEnd() - parser.getTargetStart(), ISO_8859_1);
+		if(parser.getQueryStart() >= 0)
+			query = new String(head, parser.getQueryStart() - start, parser.getTargetEnd() - parser.getQueryStart(), ISO_8859_1);
+		version = new String(head, parser.getVersionStart() - start, parser.getVersionEnd() - parser.getVersionStart(), ISO_8859_1).toUpperCase();
+		
+		return 0;
+	}
+	
+	private Method findMethod(int from, int to) {
+		for(Method candidate : METHODS) {
+			String name = candidate.name();
+			if(name.length() != to - from)
+				continue;
+			int i = 0;
+			while(i < name.length() && Character.toUpperCase((char) head[from + i]) == name.charAt(i))
+				i++;
+			if(i == name.length())
+				return candidate;
+		}
+		return null;
+	}
+
+	/**
+	 * Find a header value without building the headers map
+	 * 
+	 * @param name Header name in lower case
+	 * @return The value, or null if the request does not have the header
+	 */
+	public String getHeader(String name) {
+		if(headersMap != null)
+			return headersMap.get(name);
+		// The last header wins, like in the map
+		for(int i = headerCount - 1; i >= 0; i--) {
+			int nameStart = headerOffsets[i * 4], nameEnd = headerOffsets[i * 4 + 1];
+			if(nameEnd - nameStart != name.length())
+				continue;
+			int j = 0;
+			while(j < name.length() && Character.toLowerCase((char) head[nameStart + j]) == name.charAt(j))
+				j++;
+			if(j == name.length())
+				return new String(head, headerOffsets[i * 4 + 2], headerOffsets[i * 4 + 3] - headerOffsets[i * 4 + 2], ISO_8859_1);
+		}
+		return null;
 	}
 
 	/**
-	 * Read a request body only if it is a POST request and has Content-Length Header
+	 * Find out how the body of the request is framed, from Content-Length or from
+	 * Transfer-Encoding: chunked (which wins when both are there, RFC 7230 3.3.3)
 	 * 
-	 * @param input
 	 * @return 0 if OK, or the response code that should be generated.
-	 * @throws IOException 
 	 */
-	public int readBody(BufferedReader input) throws IOException {
-		if(method != Method.POST)
+	public int checkBody() {
+		bodyLength = 0;
+		String transferEncoding = getHeader(TRANSFER_ENCODING);
+		if(transferEncoding != null) {
+			// Chunked must be the last coding, other codings are not supported
+			String last = transferEncoding.substring(transferEncoding.lastIndexOf(',') + 1).trim();
+			if(!last.equalsIgnoreCase("chunked"))
+				return 501;
+			bodyLength = -1;
 			return 0;
+		}
 		
-		if(!headersMap.containsKey(CONTENT_LENGTH))
-			return 411; // Length Required!
-		
-		int bufferSize = -1;
+		String contentLength = getHeader(CONTENT_LENGTH);
+		if(contentLength == null)
+			return method == Method.POST ? 411 : 0; // Length Required!
 		try {
-			bufferSize = Integer.parseInt(headersMap.get(CONTENT_LENGTH));
+			bodyLength = Long.parseLong(contentLength.trim());
 		} catch (NumberFormatException e) {
-			System.out.println("ERROR: Failed to parse Content-Length header.");
-			return 500;
+			Log.warn("Failed to parse Content-Length header: " + contentLength);
+			return 400;
 		}
-		if(bufferSize < 0) {
-			return 500;
+		if(bodyLength < 0) {
+			bodyLength = 0;
+			return 400;
 		}
-		
-		char buffer[] = new char[bufferSize];
-		input.read(buffer, 0, bufferSize);
-		body = new String(buffer);
-		//parseQuery(true);
-		
 		return 0;
 	}
 	
+	/**
+	 * A request that is refused before its body is framed leaves the body in the stream,
+	 * where it would be read as the next request. The connection has to be closed then.
+	 *
+	 * @return True if the head announces a body, with any Transfer-Encoding or a
+	 * Content-Length other than 0
+	 */
+	public boolean announcesBody() {
+		if(getHeader(TRANSFER_ENCODING) != null)
+			return true;
+		String contentLength = getHeader(CONTENT_LENGTH);
+		return contentLength != null && !contentLength.trim().equals("0");
+	}
+	
+	/**
+	 * Check the framing of the body and prepare it to be streamed to the destination host.
+	 * Nothing is read here, the body is read while it is sent.
+	 * 
+	 * @param input The client stream
+	 * @param buffer Bytes that were already read from the client, the body starts at its position
+	 * @return 0 if OK, or the response code that should be generated.
+	 */
+	public int prepareBody(InputStream input, ByteBuffer buffer) {
+		int code = checkBody();
+		if(code == 0 && bodyLength != 0)
+			body = new RequestBody(input, buffer, bodyLength);
+		return code;
+	}
+	
+	/**
+	 * @return The length of the body, -1 if it is chunked and 0 if there is none
+	 */
+	public long getBodyLength() {
+		return bodyLength;
+	}
+	
+	/**
+	 * @return True if the client waits for 100 Continue before it sends the body
+	 */
+	public boolean expectsContinue() {
+		String expect = getHeader("expect");
+		return expect != null && expect.trim().equalsIgnoreCase("100-continue") && version.equals(HTTP_11);
+	}
+
+	/**
+	 * HTTP/1.1 connections persist unless the client says close, HTTP/1.0 connections
+	 * only when the client asks for keep-alive (RFC 7230 section 6.3)
+	 *
+	 * @return True if the client wants to send more requests on the connection
+	 */
+	public boolean wantsKeepAlive() {
+		String connection = getHeader("connection");
+		boolean http11 = version.equals(HTTP_11);
+		if(connection == null)
+			return http11;
+		for(String option : connection.split(",")) {
+			option = option.trim();
+			if(option.equalsIgnoreCase("close"))
+				return false;
+			if(option.equalsIgnoreCase("keep-alive"))
+				return true;
+		}
+		return http11;
+	}
+
 
 	/**
 	 * Parse the query.
 	 */
-	public void parseQuery(boolean toParseBody) {
+	public void parseQuery() {
 		String parseStr = query;
-		if(toParseBody) {
-			parseStr = body;
-		}
 		if(parseStr == null)
 			return;
 		
@@ -94,86 +243,35 @@ public class HTTPRequest {
 				parametersMap.put(key, URLDecoder.decode(value, "UTF-8"));
 			} catch (UnsupportedEncodingException e) {
 				// Not supposer to happen
-				System.out.println("WARN: Failed to parse one the the parameters in the query.");
-				e.printStackTrace();
+				Log.warn("Failed to parse one the the parameters in the query: " + e.getMessage());
 			}
 		}
 		
 	}
 
-	/**
-	 * Read HTTP request headers
-	 * @param input
-	 * @throws IOException
-	 */
-	public void readHeaders(BufferedReader input) throws IOException {
-		//System.out.println("GOT HERE");
-		String line;
-		while ((line = input.readLine()) != null && !line.isEmpty()) {
-			System.out.println(line);
-			Matcher matcher = headerLine.matcher(line);
-			if(!matcher.matches())
-				continue; // Not a valid header line, skip it
-			headersMap.put(matcher.group(1).toLowerCase(), matcher.group(2).toLowerCase());
-		}
-		System.out.println("## FINISHED READING HEADERS ##");
-		
-	}
-
-	/**
-	 * Parse the first line of a HTTP request
-	 * 
-	 * @param input
-	 * @return 0 if OK or the error number to send to the user.
-	 * @throws IOException
-	 */
-	public int parseFirstLine(BufferedReader input) throws IOException {
-		String line;
-		while (true) {
-			line = input.readLine();
-			if(line == null)
-				return 500;
-			
-			if(!line.isEmpty())
-				break;
-		}
-		System.out.println(line);
-		
-		Matcher matcher = requestLine.matcher(line);
-		
-		if(!matcher.matches()) {
-			System.out.println("WARN: Failed to match the method line. returning 400!");
-			return 400;
-		}
-		
-		String methodString = matcher.group(1).toUpperCase();
-		try {
-			method = Method.valueOf(methodString);
-		} catch(IllegalArgumentException e) {
-			// Not a supported method. Generate 501
-			System.out.println("Not supported method");
-			return 501;
-		}
-		
-		path = matcher.group(2);
-		query = matcher.group(4);
-		version = matcher.group(5).toUpperCase();
-		
-		firstLine = line;
-		
-		return 0;		
-	}
-	
 	public Method getMethod() {
 		return method;
 	}
 
 
+	/**
+	 * @return All the headers with lower case names, built on the first call
+	 */
 	public HashMap<String, String> getHeaders() {
+		if(headersMap == null) {
+			headersMap = new HashMap<String, String>();
+			for(int i = 0; i < headerCount; i++) {
+				String name = new String(head, headerOffsets[i * 4], headerOffsets[i * 4 + 1] - headerOffsets[i * 4], ISO_8859_1);
+				String value = new String(head, headerOffsets[i * 4 + 2], headerOffsets[i * 4 + 3] - headerOffsets[i * 4 + 2], ISO_8859_1);
+				headersMap.put(name.toLowerCase(), value);
+			}
+		}
 		return headersMap;
 	}
 	
 	public String getFirstLine() {
+		if(firstLine == null && head != null)
+			firstLine = new String(head, 0, firstLineEnd, ISO_8859_1);
 		return firstLine;
 	}
 
@@ -181,6 +279,15 @@ public class HTTPRequest {
 	public String getPath() {
 		return path;
 	}
+	
+	/**
+	 * @return The request target as it is in the request line, with the query
+	 */
+	public String getTarget() {
+		if(target == null && head != null)
+			target = new String(head, targetStart, targetEnd - targetStart, ISO_8859_1);
+		return target;
+	}
 
 
 	public HashMap<String, String> getParamsMap() {
@@ -188,9 +295,19 @@ public class HTTPRequest {
 	}
 
 
-	public String getBody() {
+	/**
+	 * @return The body after {@link #prepareBody}, null if the request has none
+	 */
+	public RequestBody getBody() {
 		return body;
 	}
+	
+	/**
+	 * @return The number of bytes of the head and the body that were read from the client
+	 */
+	public long getReceivedLength() {
+		return (head != null ? head.length : 0) + (body != null ? body.getReceived() : 0);
+	}
 
 
 	public String getVersion() {
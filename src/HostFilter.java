@@ -0,0 +1,72 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The {@link HostPolicy} of the proxy, compiled from a rules file that is watched for
+ * changes. A changed file is compiled into a new policy on the side, which then
+ * replaces the old one with a single write, so a request sees either the old rules
+ * or the new ones and never a mix. A file that can not be read keeps the old rules.
+ */
+public class HostFilter {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private File file;
+	private volatile HostPolicy policy;
+	private long lastModified;
+
+	/**
+	 * @param checkInterval Milliseconds between checks of the file, 0 to never load it again
+	 * @throws IOException If the file can not be read
+	 */
+	public HostFilter(File file, long checkInterval) throws IOException {
+		this.file = file;
+		load();
+
+		if(checkInterval > 0) {
+			ScheduledExecutorService watcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "host-rules-watcher");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			watcher.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					reloadIfChanged();
+				}
+			}, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public HostPolicy getPolicy() {
+		return policy;
+	}
+
+	private void reloadIfChanged() {
+		if(file.lastModified() == lastModified)
+			return;
+		try {
+			load();
+		} catch (IOException e) {
+			Log.error("Failed to load the host rules from '" + file + "', keeping the old ones: " + e.getMessage());
+		}
+	}
+
+	private void load() throws IOException {
+		long modified = file.lastModified();
+		HostPolicy loaded = HostPolicy.compile(Files.readAllLines(file.toPath(), UTF_8), file.getPath());
+		policy = loaded;
+		lastModified = modified;
+		Log.info("Loaded " + loaded.getRuleCount() + " host rules from '" + file + "'");
+	}
+}
@@ -0,0 +1,432 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+
+/**
+ * The allow and deny rules for destination hosts, compiled for lookups that do not
+ * depend on the number of rules.
+ * Host names go into a trie of their labels from the last one (com, example, www), so
+ * a name is checked in one walk over its labels, and the labels are matched in place
+ * without splitting the name. Address ranges go into a binary trie of the address
+ * bits. A policy is never changed after it was compiled, see {@link HostFilter}.
+ *
+ * <p>Each line of the rules holds one rule, # starts a comment:
+ * <pre>
+ * deny example.com          the host only
+ * deny *.example.com        the hosts under example.com
+ * deny .example.com         example.com and the hosts under it
+ * deny 10.0.0.0/8           the addresses of the range, or a single address
+ * deny example.com/admin/   the paths of the host that start with the prefix
+ * allow *                   every host
+ * default deny              the decision when no rule matches (allow if not given)
+ * </pre>
+ * The most specific rule that matches the host, path or addresses decides: the one that
+ * names the most labels of the host, then the one with the longest path prefix, then
+ * the one with the longest address prefix, and deny if an allow and a deny are equal.
+ * So "allow *" lets a "deny 10.0.0.0/8" stand, and "deny example.com/admin/" wins over
+ * "allow .example.com". A request no rule matches gets the default.
+ * Paths are compared decoded, without empty, . and .. segments, as the destination
+ * host reads them, so //admin/ and /%61dmin/ are /admin/ too.
+ */
+public class HostPolicy {
+
+	private static final int ALLOW = 1, DENY = 2;
+	private static final Pattern IPV4 = Pattern.compile("\\d{1,3}(\\.\\d{1,3}){3}");
+	private static final Pattern PREFIX_LENGTH = Pattern.compile("\\d{1,3}");
+	private static final long NO_MATCH = -1, DENY_RANK = 1;
+
+	private Node names = new Node();
+	private Bit ipv4 = new Bit(), ipv6 = new Bit();
+	private boolean defaultDeny = false;
+	private boolean addressRules = false;
+	private int ruleCount = 0;
+
+	/**
+	 * Compile the rules, a line that is not a rule is logged and skipped
+	 *
+	 * @param source Where the rules came from, for the log
+	 */
+	public static HostPolicy compile(List<String> lines, String source) {
+		HostPolicy policy = new HostPolicy();
+		int number = 0;
+		for(String line : lines) {
+			number++;
+			int comment = line.indexOf('#');
+			if(comment != -1)
+				line = line.substring(0, comment);
+			line = line.trim();
+			if(line.isEmpty())
+				continue;
+			if(!policy.add(line))
+				Log.warn("Skipping the rule in line " + number + " of " + source + ": " + line);
+		}
+		return policy;
+	}
+
+	/**
+	 * @param host The destination host, a name or an address
+	 * @param path The path of the request with its query, null for a tunnel
+	 * @param addresses The addresses of the host, null if they are not known
+	 * @return True if the request may go to the host
+	 */
+	public boolean isAllowed(String host, String path, InetAddress[] addresses) {
+		long best = matchName(host, normalizePath(path));
+		if(addresses != null) {
+			for(InetAddress address : addresses) {
+				best = Math.max(best, matchAddress(address.getAddress()));
+			}
+		}
+		if(best == NO_MATCH)
+			return !defaultDeny;
+		return (best & DENY_RANK) == 0;
+	}
+
+	/**
+	 * Decode the escaped bytes of a path and drop its empty, . and .. segments.
+	 * The query is kept as it is.
+	 *
+	 * @return The path, the same string if there was nothing to change
+	 */
+	private static String normalizePath(String path) {
+		if(path == null || !path.startsWith("/"))
+			return path;
+		int end = path.indexOf('?');
+		if(end == -1)
+			end = path.length();
+		if(path.indexOf('%') == -1 && path.lastIndexOf("//", end) == -1 && path.lastIndexOf("/.", end) == -1)
+			return path;
+
+		StringBuilder decoded = new StringBuilder(end);
+		for(int i = 0; i < end; i++) {
+			char c = path.charAt(i);
+			int high, low;
+			if(c == '%' && i + 2 < end
+					&& (high = Character.digit(path.charAt(i + 1), 16)) != -1
+					&& (low = Character.digit(path.charAt(i + 2), 16)) != -1) {
+				c = (char) (high << 4 | low);
+				i += 2;
+			}
+			decoded.append(c);
+		}
+
+		ArrayList<String> segments = new ArrayList<String>();
+		String[] parts = decoded.toString().split("/", -1);
+		boolean directory = false;
+		for(int i = 1; i < parts.length; i++) {
+			String part = parts[i];
+			directory = part.isEmpty() || part.equals(".") || part.equals("..");
+			if(part.equals("..")) {
+				if(!segments.isEmpty())
+					segments.remove(segments.size() - 1);
+			} else if(!directory) {
+				segments.add(part);
+			}
+		}
+		StringBuilder normal = new StringBuilder(path.length());
+		for(String segment : segments) {
+			normal.append('/').append(segment);
+		}
+		if(directory || segments.isEmpty())
+			normal.append('/');
+		return normal.append(path, end, path.length()).toString();
+	}
+
+	/**
+	 * @return True if some rules are address ranges, the addresses of the host are needed to check it
+	 */
+	public boolean hasAddressRules() {
+		return addressRules;
+	}
+
+	public int getRuleCount() {
+		return ruleCount;
+	}
+
+	private boolean add(String line) {
+		String[] parts = line.split("\\s+");
+		if(parts.length != 2)
+			return false;
+		String action = parts[0].toLowerCase();
+		if(action.equals("default")) {
+			if(!parts[1].equalsIgnoreCase("allow") && !parts[1].equalsIgnoreCase("deny"))
+				return false;
+			defaultDeny = parts[1].equalsIgnoreCase("deny");
+			return true;
+		}
+		int bits;
+		if(action.equals("allow"))
+			bits = ALLOW;
+		else if(action.equals("deny"))
+			bits = DENY;
+		else
+			return false;
+
+		String pattern = parts[1];
+		String path = null;
+		int slash = pattern.indexOf('/');
+		if(slash != -1) {
+			path = pattern.substring(slash);
+			pattern = pattern.substring(0, slash);
+		}
+		if(isAddress(pattern) && (path == null || PREFIX_LENGTH.matcher(path.substring(1)).matches())) {
+			if(!addRange(pattern, path != null ? Integer.parseInt(path.substring(1)) : -1, bits))
+				return false;
+		} else if(!addName(pattern.toLowerCase(), normalizePath(path), bits)) {
+			return false;
+		}
+		ruleCount++;
+		return true;
+	}
+
+	private boolean addName(String pattern, String path, int action) {
+		if(pattern.equals("*")) {
+			names.addBelow(path, action);
+			return true;
+		}
+		boolean below = false, exact = true;
+		if(pattern.startsWith("*.")) {
+			pattern = pattern.substring(2);
+			below = true;
+			exact = false;
+		} else if(pattern.startsWith(".")) {
+			pattern = pattern.substring(1);
+			below = true;
+		}
+		if(pattern.endsWith("."))
+			pattern = pattern.substring(0, pattern.length() - 1);
+		if(pattern.isEmpty() || pattern.contains("*"))
+			return false;
+
+		Node node = names;
+		int end = pattern.length();
+		while(end >= 0) {
+			int start = pattern.lastIndexOf('.', end - 1) + 1;
+			if(start == end)
+				return false;
+			node = node.addChild(pattern.substring(start, end));
+			end = start - 1;
+		}
+		if(exact)
+			node.addExact(path, action);
+		if(below)
+			node.addBelow(path, action);
+		return true;
+	}
+
+	private boolean addRange(String address, int prefixLength, int action) {
+		byte[] bytes;
+		try {
+			// Only literals get here, nothing is looked up
+			bytes = InetAddress.getByName(address).getAddress();
+		} catch (UnknownHostException e) {
+			return false;
+		}
+		int length = bytes.length * 8;
+		if(prefixLength < 0)
+			prefixLength = length;
+		if(prefixLength > length)
+			return false;
+		Bit bit = bytes.length == 4 ? ipv4 : ipv6;
+		for(int i = 0; i < prefixLength; i++) {
+			bit = bit.addChild((bytes[i / 8] >>> (7 - i % 8)) & 1);
+		}
+		bit.actions |= action;
+		addressRules = true;
+		return true;
+	}
+
+	/**
+	 * Walk the labels of the host from the last one. Every node on the way contributes
+	 * the rules for the names below it, the node of the whole name its exact rules.
+	 *
+	 * @return The rank of the most specific rule, or NO_MATCH
+	 */
+	private long matchName(String host, String path) {
+		long best = NO_MATCH;
+		int end = host.length();
+		if(end > 0 && host.charAt(end - 1) == '.')
+			end--;
+		Node node = names;
+		int labels = 0;
+		while(true) {
+			if(end < 0)
+				return Math.max(best, Node.match(node.exact, node.exactPaths, path, labels));
+			best = Math.max(best, Node.match(node.below, node.belowPaths, path, labels));
+			int start = host.lastIndexOf('.', end - 1) + 1;
+			node = node.child(host, start, end);
+			if(node == null)
+				return best;
+			labels++;
+			end = start - 1;
+		}
+	}
+
+	private long matchAddress(byte[] bytes) {
+		Bit bit = bytes.length == 4 ? ipv4 : ipv6;
+		long best = rank(bit.actions, 0, 0, 0);
+		for(int i = 0; i < bytes.length * 8; i++) {
+			bit = (bytes[i / 8] >>> (7 - i % 8) & 1) == 0 ? bit.zero : bit.one;
+			if(bit == null)
+				break;
+			best = Math.max(best, rank(bit.actions, 0, 0, i + 1));
+		}
+		return best;
+	}
+
+	/**
+	 * Put the specificity of a match in one number, so that the most specific match is
+	 * the largest: the labels of the host, the length of the path prefix, the bits of the
+	 * address prefix and a last bit that is set for deny.
+	 *
+	 * @param actions The actions of the rules that matched there, deny wins if both are set
+	 */
+	private static long rank(int actions, int labels, int pathLength, int prefixBits) {
+		if(actions == 0)
+			return NO_MATCH;
+		long rank = (long) labels << 40 | (long) pathLength << 9 | prefixBits << 1;
+		return (actions & DENY) != 0 ? rank | DENY_RANK : rank;
+	}
+
+	private static boolean isAddress(String pattern) {
+		return IPV4.matcher(pattern).matches() || (pattern.indexOf(':') != -1 && pattern.matches("[0-9a-fA-F:.]+"));
+	}
+
+	/**
+	 * A label of a host name. The children are kept in an open addressing table whose
+	 * keys are compared with the label in place, a lookup allocates nothing.
+	 */
+	private static class Node {
+
+		private String[] labels;
+		private Node[] children;
+		private int count = 0;
+		private int exact = 0, below = 0;
+		private PathRule[] exactPaths, belowPaths;
+
+		Node child(String host, int start, int end) {
+			if(labels == null)
+				return null;
+			int length = end - start;
+			int mask = labels.length - 1;
+			for(int i = hash(host, start, end) & mask; labels[i] != null; i = (i + 1) & mask) {
+				if(labels[i].length() == length && labels[i].regionMatches(true, 0, host, start, length))
+					return children[i];
+			}
+			return null;
+		}
+
+		Node addChild(String label) {
+			Node child = child(label, 0, label.length());
+			if(child != null)
+				return child;
+			if(labels == null || (count + 1) * 2 > labels.length)
+				grow();
+			child = new Node();
+			put(label, child);
+			return child;
+		}
+
+		void addExact(String path, int action) {
+			if(path == null)
+				exact |= action;
+			else
+				exactPaths = PathRule.add(exactPaths, path, action);
+		}
+
+		void addBelow(String path, int action) {
+			if(path == null)
+				below |= action;
+			else
+				belowPaths = PathRule.add(belowPaths, path, action);
+		}
+
+		static long match(int actions, PathRule[] rules, String path, int labels) {
+			long best = rank(actions, labels, 0, 0);
+			if(rules == null || path == null)
+				return best;
+			for(PathRule rule : rules) {
+				if(path.startsWith(rule.prefix))
+					best = Math.max(best, rank(rule.action, labels, rule.prefix.length(), 0));
+			}
+			return best;
+		}
+
+		private void grow() {
+			String[] oldLabels = labels;
+			Node[] oldChildren = children;
+			labels = new String[oldLabels == null ? 4 : oldLabels.length * 2];
+			children = new Node[labels.length];
+			count = 0;
+			if(oldLabels == null)
+				return;
+			for(int i = 0; i < oldLabels.length; i++) {
+				if(oldLabels[i] != null)
+					put(oldLabels[i], oldChildren[i]);
+			}
+		}
+
+		private void put(String label, Node child) {
+			int mask = labels.length - 1;
+			int i = hash(label, 0, label.length()) & mask;
+			while(labels[i] != null)
+				i = (i + 1) & mask;
+			labels[i] = label;
+			children[i] = child;
+			count++;
+		}
+
+		private static int hash(String text, int start, int end) {
+			int hash = 0;
+			for(int i = start; i < end; i++) {
+				hash = 31 * hash + Character.toLowerCase(text.charAt(i));
+			}
+			return hash ^ (hash >>> 16);
+		}
+	}
+
+	/**
+	 * A path prefix rule, a host has few of them so they are checked one by one
+	 */
+	private static class PathRule {
+
+		private String prefix;
+		private int action;
+
+		static PathRule[] add(PathRule[] rules, String prefix, int action) {
+			ArrayList<PathRule> list = new ArrayList<PathRule>();
+			if(rules != null) {
+				for(PathRule rule : rules) {
+					list.add(rule);
+				}
+			}
+			PathRule rule = new PathRule();
+			rule.prefix = prefix;
+			rule.action = action;
+			list.add(rule);
+			return list.toArray(new PathRule[list.size()]);
+		}
+	}
+
+	/**
+	 * A bit of an address prefix, a range ends at the node of its last bit
+	 */
+	private static class Bit {
+
+		private Bit zero, one;
+		private int actions = 0;
+
+		Bit addChild(int value) {
+			if(value == 0) {
+				if(zero == null)
+					zero = new Bit();
+				return zero;
+			}
+			if(one == null)
+				one = new Bit();
+			return one;
+		}
+	}
+}
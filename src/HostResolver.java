@@ -0,0 +1,27 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+
+/**
+ * Turns a host name into its addresses. The {@link DnsCache} asks a resolver only when it
+ * has no fresh answer; a stub resolver that answers from a table lets the cache be used
+ * without a network.
+ */
+public interface HostResolver {
+
+	/**
+	 * The resolver of the JVM
+	 */
+	HostResolver SYSTEM = new HostResolver() {
+		@Override
+		public InetAddress[] resolve(String host) throws UnknownHostException {
+			return InetAddress.getAllByName(host);
+		}
+	};
+
+	/**
+	 * @return All the addresses of the host, never empty
+	 * @throws UnknownHostException If the host has no addresses
+	 */
+	InetAddress[] resolve(String host) throws UnknownHostException;
+}
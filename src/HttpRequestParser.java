@@ -0,0 +1,266 @@
+import java.nio.ByteBuffer;
+
+
+/**
+ * Incremental parser of a HTTP/1.1 request head (request line and headers).
+ *
+ * The parser works directly on the bytes of a buffer and only records where every
+ * part starts and ends, no String is created. It keeps its state between calls so a
+ * head that arrives in several reads is scanned only once: call {@link #parse(ByteBuffer)}
+ * again after more bytes were added to the buffer. The bytes of the head must stay at
+ * the same indexes of the buffer until the head is complete.
+ */
+public class HttpRequestParser {
+
+	public static final int INCOMPLETE = -1;
+	public static final int OK = 0;
+
+	public static final int MAX_REQUEST_LINE = 8 * 1024;
+	public static final int MAX_HEADER_LINE = 8 * 1024;
+	public static final int MAX_HEADERS = 100;
+
+	private enum State {
+		START, METHOD, TARGET, VERSION, REQUEST_LINE_END,
+		HEADER_START, NAME, VALUE_START, VALUE, HEADER_LINE_END, HEAD_END, DONE
+	}
+
+	private State state;
+	private int index;
+	private int lineStart;
+	private int methodStart, methodEnd, targetStart, targetEnd, queryStart, versionStart, versionEnd;
+	private int headerCount;
+	private int[] nameStarts, nameEnds, valueStarts, valueEnds;
+	private int headEnd;
+
+	public HttpRequestParser() {
+		nameStarts = new int[MAX_HEADERS];
+		nameEnds = new int[MAX_HEADERS];
+		valueStarts = new int[MAX_HEADERS];
+		valueEnds = new int[MAX_HEADERS];
+		reset();
+	}
+
+	/**
+	 * Prepare for a new request head
+	 */
+	public void reset() {
+		state = State.START;
+		index = -1;
+		headerCount = 0;
+		queryStart = -1;
+		headEnd = -1;
+	}
+
+	/**
+	 * Scan the bytes between the position and the limit of the buffer that were not scanned yet.
+	 * The position of the buffer is not changed.
+	 *
+	 * @return {@link #INCOMPLETE} if more bytes are needed, {@link #OK} when the head is complete,
+	 * or the response code to send for a bad request (400, 414, 431)
+	 */
+	public int parse(ByteBuffer buffer) {
+		if(index < 0)
+			index = buffer.position();
+		int limit = buffer.limit();
+
+		while(index < limit) {
+			byte b = buffer.get(index);
+			switch(state) {
+			case START:
+				// Empty lines before the request line are ignored
+				if(b != '\r' && b != '\n') {
+					if(!isTokenChar(b))
+						return 400;
+					methodStart = index;
+					lineStart = index;
+					state = State.METHOD;
+				}
+				break;
+			case METHOD:
+				if(b == ' ') {
+					methodEnd = index;
+					targetStart = index + 1;
+					state = State.TARGET;
+				} else if(!isTokenChar(b)) {
+					return 400;
+				}
+				break;
+			case TARGET:
+				if(b == ' ') {
+					if(index == targetStart)
+						return 400;
+					targetEnd = index;
+					versionStart = index + 1;
+					state = State.VERSION;
+				} else if(b == '?' && queryStart < 0) {
+					queryStart = index + 1;
+				} else if(b == '\r' || b == '\n' || b == '\t') {
+					return 400;
+				}
+				break;
+			case VERSION:
+				if(b == '\r' || b == '\n') {
+					versionEnd = index;
+					if(!isVersion(buffer))
+						return 400;
+					state = b == '\r' ? State.REQUEST_LINE_END : State.HEADER_START;
+				}
+				break;
+			case REQUEST_LINE_END:
+				if(b != '\n')
+					return 400;
+				state = State.HEADER_START;
+				break;
+			case HEADER_START:
+				lineStart = index;
+				if(b == '\r') {
+					state = State.HEAD_END;
+				} else if(b == '\n') {
+					return done(index + 1);
+				} else if(b == ' ' || b == '\t') {
+					// Obsolete line folding is not supported (RFC 7230 section 3.2.4)
+					return 400;
+				} else {
+					if(headerCount == MAX_HEADERS)
+						return 431;
+					if(!isTokenChar(b))
+						return 400;
+					nameStarts[headerCount] = index;
+					state = State.NAME;
+				}
+				break;
+			case NAME:
+				if(b == ':') {
+					nameEnds[headerCount] = index;
+					state = State.VALUE_START;
+				} else if(!isTokenChar(b)) {
+					return 400;
+				}
+				break;
+			case VALUE_START:
+				if(b == ' ' || b == '\t')
+					break;
+				valueStarts[headerCount] = index;
+				valueEnds[headerCount] = index;
+				state = State.VALUE;
+				// The same byte is looked at again as the first byte of the value (or the end of an empty one)
+				continue;
+			case VALUE:
+				if(b == '\r' || b == '\n') {
+					headerCount++;
+					state = b == '\r' ? State.HEADER_LINE_END : State.HEADER_START;
+				} else if(b != ' ' && b != '\t') {
+					valueEnds[headerCount] = index + 1;
+				}
+				break;
+			case HEADER_LINE_END:
+				if(b != '\n')
+					return 400;
+				state = State.HEADER_START;
+				break;
+			case HEAD_END:
+				if(b != '\n')
+					return 400;
+				return done(index + 1);
+			default:
+				return OK;
+			}
+
+			index++;
+			int lineLength = index - lineStart;
+			if(state == State.METHOD || state == State.TARGET || state == State.VERSION) {
+				if(lineLength > MAX_REQUEST_LINE)
+					return 414;
+			} else if(state != State.START && lineLength > MAX_HEADER_LINE) {
+				return 431;
+			}
+		}
+		return INCOMPLETE;
+	}
+
+	private int done(int end) {
+		headEnd = end;
+		state = State.DONE;
+		index = end;
+		return OK;
+	}
+
+	private boolean isVersion(ByteBuffer buffer) {
+		if(versionEnd - versionStart < 6)
+			return false;
+		return (buffer.get(versionStart) | 0x20) == 'h' && (buffer.get(versionStart + 1) | 0x20) == 't'
+				&& (buffer.get(versionStart + 2) | 0x20) == 't' && (buffer.get(versionStart + 3) | 0x20) == 'p'
+				&& buffer.get(versionStart + 4) == '/';
+	}
+
+	private static boolean isTokenChar(byte b) {
+		return b > 32 && b < 127 && b != '(' && b != ')' && b != '<' && b != '>' && b != '@'
+				&& b != ',' && b != ';' && b != ':' && b != '\\' && b != '"' && b != '/'
+				&& b != '[' && b != ']' && b != '?' && b != '=' && b != '{' && b != '}';
+	}
+
+	/**
+	 * @return The index right after the empty line that ends the head
+	 */
+	public int getHeadEnd() {
+		return headEnd;
+	}
+
+	public int getMethodStart() {
+		return methodStart;
+	}
+
+	public int getMethodEnd() {
+		return methodEnd;
+	}
+
+	public int getTargetStart() {
+		return targetStart;
+	}
+
+	/**
+	 * @return The end of the path, the query (if any) starts after a '?' at this index
+	 */
+	public int getPathEnd() {
+		return queryStart < 0 ? targetEnd : queryStart - 1;
+	}
+
+	/**
+	 * @return The start of the query, or -1 if the target has no query
+	 */
+	public int getQueryStart() {
+		return queryStart;
+	}
+
+	public int getTargetEnd() {
+		return targetEnd;
+	}
+
+	public int getVersionStart() {
+		return versionStart;
+	}
+
+	public int getVersionEnd() {
+		return versionEnd;
+	}
+
+	public int getHeaderCount() {
+		return headerCount;
+	}
+
+	public int getNameStart(int header) {
+		return nameStarts[header];
+	}
+
+	public int getNameEnd(int header) {
+		return nameEnds[header];
+	}
+
+	public int getValueStart(int header) {
+		return valueStarts[header];
+	}
+
+	public int getValueEnd(int header) {
+		return valueEnds[header];
+	}
+}
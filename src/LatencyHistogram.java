@@ -0,0 +1,77 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A histogram of durations in the style of HdrHistogram: the values are counted in
+ * microseconds in buckets that double in width with every power of two, and every power
+ * of two is split into 16 linear sub buckets, so any value is kept within about 6%.
+ * Recording is one atomic increment on a fixed array, it takes no lock and allocates
+ * nothing, so it can be called on every request from any thread.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// Values are capped at 2^40 microseconds (about 12 days)
+	private static final int MAX_EXPONENT = 40;
+	private static final long MAX_VALUE = (1L << MAX_EXPONENT) - 1;
+	private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private AtomicLongArray counts;
+	private AtomicLong totalCount;
+	private AtomicLong totalNanos;
+
+	public LatencyHistogram() {
+		counts = new AtomicLongArray(BUCKETS);
+		totalCount = new AtomicLong();
+		totalNanos = new AtomicLong();
+	}
+
+	/**
+	 * @param nanos A duration measured with System.nanoTime(), negative values are ignored
+	 */
+	public void record(long nanos) {
+		if(nanos < 0)
+			return;
+		counts.incrementAndGet(bucketOf(Math.min(nanos / 1000, MAX_VALUE)));
+		totalCount.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+	}
+
+	public long getCount() {
+		return totalCount.get();
+	}
+
+	public long getTotalNanos() {
+		return totalNanos.get();
+	}
+
+	/**
+	 * @return The number of recorded values below the given number of microseconds
+	 * (to the precision of the buckets)
+	 */
+	public long countBelow(long micros) {
+		long count = 0;
+		for(int i = 0; i < BUCKETS && lowestValueOf(i) < micros; i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	private static int bucketOf(long micros) {
+		if(micros < SUB_BUCKETS)
+			return (int) micros;
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		int shift = exponent - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((micros >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	private static long lowestValueOf(int bucket) {
+		int group = bucket / SUB_BUCKETS;
+		int sub = bucket % SUB_BUCKETS;
+		if(group == 0)
+			return sub;
+		return (long) (SUB_BUCKETS + sub) << (group - 1);
+	}
+}
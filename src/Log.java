@@ -0,0 +1,267 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * The server log and the access log.
+ * Callers only put a record in a {@link LogRing}, one background thread formats the
+ * records and writes them in batches, so request threads never take a lock or wait
+ * for the disk. Messages under the configured level are not queued at all; callers
+ * that build a debug message should check {@link #isDebug()} first so the message
+ * is not even built.
+ */
+public final class Log {
+
+	public static final int ERROR = 0;
+	public static final int WARN = 1;
+	public static final int INFO = 2;
+	public static final int DEBUG = 3;
+
+	private static final String[] LEVEL_NAMES = { "ERROR", "WARN ", "INFO ", "DEBUG" };
+	private static final int RING_SIZE = 16 * 1024;
+	private static final long IDLE_PARK = 5 * 1000 * 1000;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static volatile int level = INFO;
+	private static volatile boolean accessEnabled = false;
+	private static volatile boolean running = true;
+	private static LogRing ring = new LogRing(RING_SIZE);
+	private static Thread writer;
+
+	static {
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				new Writer().run();
+			}
+		}, "log-writer");
+		writer.setDaemon(true);
+		writer.start();
+
+		// Write what is still in the ring when the server exits
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				running = false;
+				LockSupport.unpark(writer);
+				try {
+					writer.join(2000);
+				} catch (InterruptedException e) {
+					// Exiting anyway
+				}
+			}
+		}, "log-shutdown"));
+	}
+
+	private Log() {
+	}
+
+	/**
+	 * Apply the log settings of the config file:
+	 * logLevel (error, warn, info, debug), logFile (empty for the standard output),
+	 * accessLog (empty for no access log), accessLogFormat (common, combined, json),
+	 * logMaxSize and logMaxFiles for the rotation of both files.
+	 */
+	public static void configure(ServerConfig config) {
+		String levelName = config.getString("logLevel", "info");
+		int newLevel = INFO;
+		for(int i = 0; i < LEVEL_NAMES.length; i++) {
+			if(LEVEL_NAMES[i].trim().equalsIgnoreCase(levelName))
+				newLevel = i;
+		}
+		level = newLevel;
+
+		Settings settings = new Settings();
+		long maxSize = config.getLong("logMaxSize", 100L * 1024 * 1024);
+		int maxFiles = config.getInt("logMaxFiles", 5);
+		String logFile = config.getString("logFile", null);
+		String accessLog = config.getString("accessLog", null);
+		try {
+			if(logFile != null)
+				settings.messages = new RotatingLogFile(new File(logFile), maxSize, maxFiles);
+			if(accessLog != null)
+				settings.access = new RotatingLogFile(new File(accessLog), maxSize, maxFiles);
+		} catch (IOException e) {
+			error("Failed to open the log file: " + e.getMessage());
+		}
+		settings.accessFormat = AccessLogEntry.parseFormat(config.getString("accessLogFormat", "common"));
+		accessEnabled = settings.access != null;
+		// The writer thread owns the outputs, it switches when it reaches this record
+		while(!ring.offer(settings))
+			Thread.yield();
+	}
+
+	public static boolean isDebug() {
+		return level >= DEBUG;
+	}
+
+	public static boolean isAccessEnabled() {
+		return accessEnabled;
+	}
+
+	public static void debug(String message) {
+		log(DEBUG, message, null);
+	}
+
+	public static void info(String message) {
+		log(INFO, message, null);
+	}
+
+	public static void warn(String message) {
+		log(WARN, message, null);
+	}
+
+	public static void error(String message) {
+		log(ERROR, message, null);
+	}
+
+	public static void error(String message, Throwable cause) {
+		log(ERROR, message, cause);
+	}
+
+	public static void access(AccessLogEntry entry) {
+		if(accessEnabled)
+			ring.offer(entry);
+	}
+
+	private static void log(int recordLevel, String message, Throwable cause) {
+		if(recordLevel > level)
+			return;
+		ring.offer(new Record(recordLevel, System.currentTimeMillis(), Thread.currentThread().getName(), message, cause));
+	}
+
+	private static class Record {
+		int level;
+		long time;
+		String thread, message;
+		Throwable cause;
+
+		Record(int level, long time, String thread, String message, Throwable cause) {
+			this.level = level;
+			this.time = time;
+			this.thread = thread;
+			this.message = message;
+			this.cause = cause;
+		}
+	}
+
+	private static class Settings {
+		OutputStream messages, access;
+		int accessFormat;
+	}
+
+	/**
+	 * Takes the records from the ring in the log thread and writes them
+	 */
+	private static class Writer {
+
+		private OutputStream messages = System.out;
+		private OutputStream access = null;
+		private int accessFormat = AccessLogEntry.COMMON;
+		private DateFormat messageDate = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		private DateFormat commonDate = new SimpleDateFormat("dd/MMM/yyyy:HH:mm:ss Z", Locale.US);
+		private DateFormat isoDate = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+		private StringBuilder line = new StringBuilder();
+		private long reportedDrops = 0;
+
+		void run() {
+			while(true) {
+				boolean wrote = false;
+				Object item;
+				while((item = ring.poll()) != null) {
+					write(item);
+					wrote = true;
+				}
+				reportDrops();
+				if(wrote) {
+					flush();
+				} else if(!running && ring.isEmpty()) {
+					break;
+				} else {
+					LockSupport.parkNanos(IDLE_PARK);
+				}
+			}
+			flush();
+		}
+
+		private void write(Object item) {
+			line.setLength(0);
+			OutputStream output;
+			if(item instanceof AccessLogEntry) {
+				((AccessLogEntry) item).format(accessFormat, line, commonDate, isoDate);
+				output = access;
+			} else if(item instanceof Record) {
+				Record record = (Record) item;
+				line.append(messageDate.format(new Date(record.time))).append(' ')
+					.append(LEVEL_NAMES[record.level]).append(" [").append(record.thread).append("] ")
+					.append(record.message);
+				if(record.cause != null) {
+					StringWriter trace = new StringWriter();
+					record.cause.printStackTrace(new PrintWriter(trace));
+					line.append(System.lineSeparator()).append(trace.toString().trim());
+				}
+				output = messages;
+			} else {
+				apply((Settings) item);
+				return;
+			}
+			if(output == null)
+				return;
+			line.append(System.lineSeparator());
+			try {
+				output.write(line.toString().getBytes(UTF_8));
+			} catch (IOException e) {
+				// Nowhere left to report it
+			}
+		}
+
+		private void apply(Settings settings) {
+			flush();
+			if(settings.messages != null) {
+				close(messages);
+				messages = settings.messages;
+			}
+			close(access);
+			access = settings.access;
+			accessFormat = settings.accessFormat;
+		}
+
+		private void reportDrops() {
+			long dropped = ring.getDropped();
+			if(dropped != reportedDrops) {
+				write(new Record(WARN, System.currentTimeMillis(), "log-writer",
+						(dropped - reportedDrops) + " log records were dropped, the log could not keep up", null));
+				reportedDrops = dropped;
+			}
+		}
+
+		private void flush() {
+			try {
+				messages.flush();
+				if(access != null)
+					access.flush();
+			} catch (IOException e) {
+				// Nowhere left to report it
+			}
+		}
+
+		private void close(OutputStream output) {
+			if(output == null || output == System.out)
+				return;
+			try {
+				output.close();
+			} catch (IOException e) {
+				// Nothing to do
+			}
+		}
+	}
+}
@@ -0,0 +1,87 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A bounded queue on an array for many producers and one consumer, without locks.
+ * A producer claims a slot with one CAS on the head sequence, stores its item and then
+ * publishes the slot with an ordered write of the sequence number. The consumer takes
+ * the slots in order once they are published.
+ * When the ring is full the item is dropped and counted, so a request thread never
+ * waits for the log.
+ */
+public class LogRing {
+
+	private Object[] items;
+	private AtomicLongArray published;
+	private int mask;
+	private AtomicLong head;
+	private volatile long tail = 0;
+	private AtomicLong dropped;
+
+	/**
+	 * @param capacity Rounded up to a power of two
+	 */
+	public LogRing(int capacity) {
+		int size = 1;
+		while(size < capacity)
+			size <<= 1;
+		items = new Object[size];
+		mask = size - 1;
+		published = new AtomicLongArray(size);
+		for(int i = 0; i < size; i++) {
+			published.set(i, -1);
+		}
+		head = new AtomicLong();
+		dropped = new AtomicLong();
+	}
+
+	/**
+	 * @return False if the ring was full and the item was dropped
+	 */
+	public boolean offer(Object item) {
+		long sequence;
+		do {
+			sequence = head.get();
+			if(sequence - tail >= items.length) {
+				dropped.incrementAndGet();
+				return false;
+			}
+		} while(!head.compareAndSet(sequence, sequence + 1));
+
+		int index = (int) sequence & mask;
+		items[index] = item;
+		published.lazySet(index, sequence);
+		return true;
+	}
+
+	/**
+	 * Take the next item, only the consumer thread may call it
+	 *
+	 * @return The item, or null if the next slot was not published yet
+	 */
+	public Object poll() {
+		long sequence = tail;
+		int index = (int) sequence & mask;
+		if(published.get(index) != sequence)
+			return null;
+		Object item = items[index];
+		items[index] = null;
+		tail = sequence + 1;
+		return item;
+	}
+
+	/**
+	 * @return True if no slot was claimed after the ones that were taken
+	 */
+	public boolean isEmpty() {
+		return head.get() == tail;
+	}
+
+	/**
+	 * @return The number of items dropped since the ring was created
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+}
@@ -3,6 +3,8 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * @author Tal Kashi & Tamir Croll
@@ -15,6 +17,7 @@ public class Main {
 	private static int port = 0;
 	private static int maxThreads = 0;
 	private static File root = null;
+	private static Map<String, String> options = new LinkedHashMap<String, String>();
 	
 
 	public static void main(String[] args) {
@@ -38,18 +41,23 @@ public class Main {
 							root = new File(strArray[1]);
 							if (!root.isDirectory()) {
 								root = null;
-								System.out.println("ERROR: The given root folder '" + strArray[1] + "' does not exists or not a folder!");
+								Log.error("The given root folder '" + strArray[1] + "' does not exists or not a folder!");
 							}								
 						}
 					} else if (strArray[0].equalsIgnoreCase("defaultPage")) {
 						if(defaultPage == null)
 							defaultPage = strArray[1];
 					} else if (strArray[0].equalsIgnoreCase("maxThreads")) {
+						// Connections are limited by maxConnections, the value is only kept for old config files
 						if(maxThreads <= 0)
 							maxThreads = Integer.parseInt(strArray[1]);
+					} else {
+						// Optional keys are validated by the component that uses them
+						if(!options.containsKey(strArray[0]))
+							options.put(strArray[0], strArray[1]);
 					}
 				} catch(NumberFormatException e) {
-					System.out.println("ERROR: Failed to parse the number given to port/maxThreads!");
+					Log.error("Failed to parse the number given to port/maxThreads!");
 					// Continue to next line, maybe a correct format
 					continue;
 				}				
@@ -57,26 +65,38 @@ public class Main {
 			input.close();
 			
 		} catch (FileNotFoundException e) {
-			System.out.println("ERROR: File '" + CONFIG_FILE + "' was not found! Exiting program.");
+			Log.error("File '" + CONFIG_FILE + "' was not found! Exiting program.");
 			System.exit(1);
 		} catch (IOException e) {
-			System.out.println("ERROR: Failed to read the config file! Exiting program.");
+			Log.error("Failed to read the config file! Exiting program.");
 			System.exit(1);
 		}
 		
-		if(root == null || defaultPage == null || port <= 0 || port >= 65536 || maxThreads <= 0) {
-			System.out.println("ERROR: One of the given parameters in the config file is worng or missing! Exiting program.");
+		if(root == null || defaultPage == null || port <= 0 || port >= 65536) {
+			Log.error("One of the given parameters in the config file is worng or missing! Exiting program.");
 			System.exit(1);
 		}
 		
+		ServerConfig config = new ServerConfig(root, defaultPage, port, maxThreads);
+		for(Map.Entry<String, String> option : options.entrySet()) {
+			config.setOption(option.getKey(), option.getValue());
+		}
+		
 		WebServer server;
 		try {
-			server = new WebServer(root, defaultPage, port, maxThreads);
-			server.run();
+			Log.configure(config);
+			server = new WebServer(config);
+		} catch(IllegalArgumentException e) {
+			// A value of the config is out of range
+			Log.error(e.getMessage() + "! Exiting program.");
+			System.exit(1);
+			return;
 		} catch(IOException e) {
-			System.out.println("ERROR: Failed to create ServerSocket! Exiting program.");
+			Log.error("Failed to create ServerSocket! Exiting program.");
 			System.exit(1);
+			return;
 		}
+		server.run();
 		
 	}
 }
@@ -4,5 +4,6 @@ public enum Method {
 		POST,
 		OPTIONS,
 		HEAD,
-		TRACE
+		TRACE,
+		CONNECT
 }
@@ -0,0 +1,106 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+
+/**
+ * The admin port: answers GET /metrics with the {@link ServerMetrics} in the Prometheus
+ * text format. It runs on its own thread and handles one scrape at a time, it is meant
+ * for a local collector and not for the clients of the proxy.
+ */
+public class MetricsServer implements Runnable {
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	private static final int MAX_REQUEST_HEAD = 8 * 1024;
+	private static final int READ_TIMEOUT = 5000;
+
+	private ServerSocket server;
+	private ServerMetrics metrics;
+
+	/**
+	 * @param address The address to listen on, usually the loopback address
+	 */
+	public MetricsServer(InetAddress address, int port, ServerMetrics metrics) throws IOException {
+		this.metrics = metrics;
+		server = new ServerSocket(port, 16, address);
+	}
+
+	/**
+	 * Serve the scrapes on a daemon thread
+	 */
+	public void start() {
+		Thread thread = new Thread(this, "metrics-server");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void run() {
+		while(!server.isClosed()) {
+			Socket socket = null;
+			try {
+				socket = server.accept();
+				socket.setSoTimeout(READ_TIMEOUT);
+				handle(socket);
+			} catch (IOException e) {
+				if(Log.isDebug())
+					Log.debug("Metrics request failed: " + e.getMessage());
+			} finally {
+				if(socket != null) {
+					try {
+						socket.close();
+					} catch (IOException e) {
+						// Nothing to do
+					}
+				}
+			}
+		}
+	}
+
+	private void handle(Socket socket) throws IOException {
+		String requestLine = readRequestLine(new BufferedInputStream(socket.getInputStream()));
+		OutputStream output = socket.getOutputStream();
+		String[] parts = requestLine.split(" ");
+		if(parts.length < 2 || !parts[0].equals("GET")) {
+			respond(output, "405 Method Not Allowed", "text/plain", "Only GET is supported\n");
+		} else if(!parts[1].equals("/metrics")) {
+			respond(output, "404 Not Found", "text/plain", "Metrics are at /metrics\n");
+		} else {
+			StringBuilder body = new StringBuilder(16 * 1024);
+			metrics.writePrometheus(body);
+			respond(output, "200 OK", "text/plain; version=0.0.4", body.toString());
+		}
+	}
+
+	/**
+	 * Read the request head and return its first line
+	 */
+	private static String readRequestLine(InputStream input) throws IOException {
+		StringBuilder head = new StringBuilder();
+		int c;
+		while((c = input.read()) != -1 && head.length() < MAX_REQUEST_HEAD) {
+			head.append((char) c);
+			int length = head.length();
+			if(length >= 4 && head.charAt(length - 1) == '\n' && head.charAt(length - 3) == '\n')
+				break;
+		}
+		int lineEnd = head.indexOf("\r\n");
+		return lineEnd != -1 ? head.substring(0, lineEnd) : head.toString();
+	}
+
+	private static void respond(OutputStream output, String status, String type, String body) throws IOException {
+		byte[] bytes = body.getBytes(ISO_8859_1);
+		String head = "HTTP/1.1 " + status + "\r\n"
+				+ "Content-Type: " + type + "\r\n"
+				+ "Content-Length: " + bytes.length + "\r\n"
+				+ "Connection: close\r\n\r\n";
+		output.write(head.getBytes(ISO_8859_1));
+		output.write(bytes);
+		output.flush();
+	}
+}
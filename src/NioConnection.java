@@ -0,0 +1,1033 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A client connection of the non blocking engine.
+ * The request head is collected in a buffer, parsed with {@link HTTPRequest} and then
+ * relayed to the destination host over a non blocking {@link SocketChannel}.
+ * The response is copied back to the client as the destination socket becomes readable,
+ * reading stops while the client is not writable so a slow client never fills the heap.
+ * The relay buffers are pooled direct buffers that are held only while a request is
+ * relayed, an idle keep alive connection holds just its read buffer.
+ * A CONNECT request turns the connection into a tunnel: bytes are copied both ways by
+ * this same event loop, and a side that closes its output is half closed on the other
+ * side, so an idle tunnel costs two keys and two buffers but no thread.
+ * A request addressed to the proxy itself is answered from the {@link StaticFiles}, the
+ * file goes from the page cache to the socket with transferTo (sendfile) as the client
+ * becomes writable.
+ * The destination host is looked up without blocking the loop, the connection waits
+ * with no interest in its sockets until the addresses come back as a loop task.
+ */
+public class NioConnection {
+
+	private enum State {
+		READING_REQUEST, RESOLVING, CONNECTING, RELAYING, TUNNELING, SENDING_FILE, CLOSED
+	}
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	private static final int BUFFER_SIZE = 16 * 1024;
+	private static final int MAX_RESPONSE_HEAD = 64 * 1024;
+
+	// Shared by the event loops
+	private static final AtomicInteger counter = new AtomicInteger();
+
+	private NioEventLoop loop;
+	private Selector selector;
+	private SocketChannel client, destination;
+	private SelectionKey clientKey, destinationKey;
+	private ByteBuffer clientInput, toDestination, toClient;
+	private HttpRequestParser parser;
+	private State state = State.READING_REQUEST;
+	private ServerContext context;
+	private BufferPool buffers;
+	private String clientAddress;
+	private int myCounter;
+
+	// Long.MAX_VALUE while the end of a chunked body was not found yet
+	private long bodyRemaining;
+	private ChunkedScanner chunkScanner;
+	private boolean expectContinue;
+	private InetAddress[] addresses;
+	private int destinationPort;
+	private int nextAddress;
+	// The last time bytes moved while a request is relayed, for the timeouts
+	private long lastProgress;
+	private boolean destinationEof, clientEof;
+	private boolean tunnelRequest;
+	private int tunnelIdleTimeout;
+	private boolean closeAfterWrite;
+	private boolean headRequest;
+	private int keepAliveTimeout, requestHeadTimeout, maxKeepAliveRequests;
+	private int requests;
+	private boolean lastRequest;
+	private boolean waiting;
+	private long waitingSince;
+	// True while the lookup is asked for, an answer from the cache comes back right then
+	private boolean dispatching;
+	private long resolveStart;
+	// The file of a static response, sent after the head in toClient
+	private StaticFiles.Response fileResponse;
+	private long filePosition, fileEnd;
+
+	// Response head scanning, used to find out if the response has a length
+	private StringBuilder responseHead;
+	private int headMatch;
+	private boolean headDone;
+	private boolean responseFramed;
+	// The response head is held back in the client buffer until its hop-by-hop headers are replaced
+	private boolean holdHead;
+	private int headOffset;
+	private boolean clientHttp11;
+
+	// The writes to the client wait while the bandwidth is used up, see NioEventLoop#pause
+	private RateLimiter.Bandwidth bandwidth;
+	private int sliceSize;
+	private boolean paused;
+	private long resumeAt;
+
+	// Metrics and access log of the current request, the entry is null when the access log is off
+	private ServerMetrics metrics;
+	private AccessLogEntry accessEntry;
+	private boolean requestActive;
+	private long parseNanos, requestStart, connectStart, connected;
+	private long connectNanos, firstByteNanos;
+	private int responseStatus;
+	private long requestBytes, responseBytes;
+
+	public NioConnection(NioEventLoop loop, Selector selector, SocketChannel client, ServerContext context) {
+		this.loop = loop;
+		this.selector = selector;
+		this.client = client;
+		this.context = context;
+		clientAddress = client.socket().getInetAddress().getHostAddress();
+		buffers = context.getBufferPool();
+		metrics = context.getMetrics();
+		clientInput = ByteBuffer.allocate(BUFFER_SIZE);
+		parser = new HttpRequestParser();
+		tunnelIdleTimeout = context.getConfig().getInt("tunnelIdleTimeout", 300000);
+		keepAliveTimeout = context.getConfig().getInt("keepAliveTimeout", 5000);
+		requestHeadTimeout = context.getConfig().getInt("requestHeadTimeout", 10000);
+		maxKeepAliveRequests = context.getConfig().getInt("maxKeepAliveRequests", 100);
+		RateLimiter rateLimiter = context.getRateLimiter();
+		if(rateLimiter != null) {
+			bandwidth = rateLimiter.newBandwidth(clientAddress);
+			sliceSize = rateLimiter.getSliceSize();
+		}
+		myCounter = counter.getAndIncrement();
+	}
+
+	public void start() throws IOException {
+		clientKey = client.register(selector, SelectionKey.OP_READ, this);
+		metrics.connectionOpened();
+		waiting = true;
+		waitingSince = System.nanoTime();
+	}
+
+	/**
+	 * Handle a ready key of one of the two sockets of this connection
+	 */
+	public void handle(SelectionKey key) {
+		try {
+			if(!key.isValid())
+				return;
+			int ready = key.readyOps();
+			if(state == State.TUNNELING) {
+				relayTunnel(key, ready);
+			} else if(key == clientKey) {
+				if((ready & SelectionKey.OP_WRITE) != 0)
+					writeToClient();
+				if(state != State.CLOSED && (ready & SelectionKey.OP_READ) != 0)
+					readFromClient();
+			} else if(key == destinationKey) {
+				if((ready & SelectionKey.OP_CONNECT) != 0)
+					finishConnect();
+				if(state != State.CLOSED && (ready & SelectionKey.OP_WRITE) != 0)
+					writeToDestination();
+				if(state != State.CLOSED && (ready & SelectionKey.OP_READ) != 0)
+					readFromDestination();
+			}
+			updateInterest();
+		} catch (IOException e) {
+			if(Log.isDebug())
+				Log.debug(myCounter + " | Connection failed: " + e.getMessage());
+			close();
+		}
+	}
+
+	private void readFromClient() throws IOException {
+		int len = client.read(clientInput);
+		if(len == -1) {
+			close();
+			return;
+		}
+
+		if(state == State.READING_REQUEST)
+			processRequests();
+		else
+			pumpRequestBody();
+	}
+
+	/**
+	 * Parse every complete request head that is waiting in the client buffer.
+	 * The client buffer always keeps the next unused byte at index 0, so the
+	 * parser can go on from where it stopped after every read.
+	 */
+	private void processRequests() throws IOException {
+		while(state == State.READING_REQUEST && !closeAfterWrite) {
+			clientInput.flip();
+			long start = System.nanoTime();
+			int result = parser.parse(clientInput);
+			parseNanos += System.nanoTime() - start;
+			if(result == HttpRequestParser.INCOMPLETE) {
+				boolean full = clientInput.limit() == clientInput.capacity();
+				clientInput.compact();
+				if(full) {
+					// Request head does not fit the buffer
+					startRequest(null);
+					sendError(431);
+					closeAfterWrite = true;
+				}
+				return;
+			}
+			if(result != HttpRequestParser.OK) {
+				// The head is broken, the next request can not be found in the stream
+				clientInput.clear();
+				parseNanos = 0;
+				startRequest(null);
+				sendError(result);
+				closeAfterWrite = true;
+				return;
+			}
+
+			start = System.nanoTime();
+			HTTPRequest request = new HTTPRequest();
+			int code = request.parseHead(parser, clientInput);
+			metrics.recordPhase(ServerMetrics.PARSE, parseNanos + System.nanoTime() - start);
+			parseNanos = 0;
+			clientInput.position(parser.getHeadEnd());
+			clientInput.compact();
+			parser.reset();
+			handleRequest(request, code);
+		}
+	}
+
+	private void handleRequest(final HTTPRequest request, int code) throws IOException {
+		startRequest(request);
+		lastRequest = (maxKeepAliveRequests > 0 && ++requests >= maxKeepAliveRequests)
+				|| (code == 0 && !request.wantsKeepAlive());
+		if(code != 0) {
+			sendError(code);
+			// The body of a refused request would be read as the next request
+			if(request.announcesBody())
+				closeAfterWrite = true;
+			return;
+		}
+
+		if(request.checkVersion()) {
+			sendError(400);
+			if(request.announcesBody())
+				closeAfterWrite = true;
+			return;
+		}
+
+		bodyRemaining = 0;
+		chunkScanner = null;
+		int bodyCode = request.checkBody();
+		if(bodyCode != 0) {
+			sendError(bodyCode);
+			// A body that can not be framed can not be skipped either
+			if(bodyCode != 411)
+				closeAfterWrite = true;
+			return;
+		}
+		if(request.getBodyLength() < 0) {
+			// The body is relayed as it is, the scanner finds its end
+			chunkScanner = new ChunkedScanner();
+			bodyRemaining = Long.MAX_VALUE;
+		} else {
+			bodyRemaining = request.getBodyLength();
+		}
+		expectContinue = bodyRemaining > 0 && request.expectsContinue();
+
+		RateLimiter rateLimiter = context.getRateLimiter();
+		if(rateLimiter != null && !rateLimiter.allowRequest(clientAddress)) {
+			rejectRequest(429);
+			return;
+		}
+
+		final ProxyHandler proxyHandler = new ProxyHandler(request, myCounter, context);
+		if(!proxyHandler.setHostAndPath()) {
+			routeRequest(request, proxyHandler, null);
+			return;
+		}
+
+		state = State.RESOLVING;
+		resolveStart = System.nanoTime();
+		dispatching = true;
+		try {
+			context.getDnsCache().resolveAll(proxyHandler.getTarget().getHost(), new DnsCache.Callback() {
+				@Override
+				public void resolved(final InetAddress[] addresses) {
+					loop.execute(new Runnable() {
+						@Override
+						public void run() {
+							continueRequest(request, proxyHandler, addresses);
+						}
+					});
+				}
+			});
+		} finally {
+			dispatching = false;
+		}
+	}
+
+	/**
+	 * Go on with a request once the addresses of its destination are known, on the loop thread
+	 *
+	 * @param addresses Null if the host has none
+	 */
+	private void continueRequest(HTTPRequest request, ProxyHandler proxyHandler, InetAddress[] addresses) {
+		if(state != State.RESOLVING)
+			return;
+		metrics.recordPhase(ServerMetrics.DNS, System.nanoTime() - resolveStart);
+		state = State.READING_REQUEST;
+		try {
+			routeRequest(request, proxyHandler, addresses);
+			if(dispatching)
+				return;
+			// The requests pipelined after this one waited for it
+			if(state == State.READING_REQUEST)
+				processRequests();
+			updateInterest();
+		} catch (IOException e) {
+			if(Log.isDebug())
+				Log.debug(myCounter + " | Connection failed: " + e.getMessage());
+			close();
+		}
+	}
+
+	/**
+	 * Check the request against the host rules and relay it, or answer it locally
+	 *
+	 * @param addresses The addresses of the destination host, null if it has none or the request names none
+	 */
+	private void routeRequest(HTTPRequest request, ProxyHandler proxyHandler, InetAddress[] addresses) throws IOException {
+		if(!proxyHandler.isRequestLegal(addresses)) {
+			rejectRequest(403);
+			return;
+		}
+
+		StaticFiles staticFiles = context.getStaticFiles();
+		if(staticFiles != null && proxyHandler.isForProxy(addresses)) {
+			serveLocally(staticFiles, request, proxyHandler.getLocalPath());
+			return;
+		}
+
+		if(!proxyHandler.setHostAndPath()) {
+			rejectRequest(400);
+			return;
+		}
+
+		destinationPort = proxyHandler.getTarget().getPort();
+		if(addresses == null || ProxyHandler.isProxyItself(addresses, destinationPort, context.getConfig().getPort())) {
+			rejectRequest(502);
+			return;
+		}
+		this.addresses = addresses;
+		nextAddress = 0;
+
+		tunnelRequest = request.getMethod() == Method.CONNECT;
+		if(tunnelRequest) {
+			toDestination = buffers.takeDirect();
+		} else {
+			// The destination host closes the connection after the response,
+			// that is how the end of a response without a length is found
+			byte[] requestHead = proxyHandler.buildRequestHead(true).getBytes(ISO_8859_1);
+			if(requestHead.length <= buffers.getBufferSize())
+				toDestination = buffers.takeDirect();
+			else
+				toDestination = ByteBuffer.allocate(requestHead.length);
+			toDestination.put(requestHead);
+		}
+		if(toClient == null)
+			toClient = buffers.takeDirect();
+		pumpRequestBody();
+
+		headRequest = request.getMethod() == Method.HEAD;
+		destinationEof = false;
+		responseHead = new StringBuilder();
+		holdHead = true;
+		headOffset = -1;
+		clientHttp11 = "HTTP/1.1".equals(request.getVersion());
+		headMatch = 0;
+		headDone = false;
+		responseFramed = false;
+		responseStatus = 0;
+		responseBytes = 0;
+
+		connectStart = System.nanoTime();
+		if(!connectNext())
+			failUpstream(502);
+	}
+
+	/**
+	 * Answer a request that is not relayed. If it has a body the body is still in the
+	 * stream and the next request can not be found, so the connection is closed after it.
+	 */
+	private void rejectRequest(int code) throws IOException {
+		sendError(code);
+		if(bodyRemaining > 0)
+			closeAfterWrite = true;
+	}
+
+	/**
+	 * Answer a request that is addressed to the proxy itself. The head goes through the
+	 * client buffer, a file is sent after it by {@link #sendFile()}.
+	 */
+	private void serveLocally(StaticFiles files, HTTPRequest request, String path) throws IOException {
+		if(toClient == null)
+			toClient = buffers.takeDirect();
+		if(bodyRemaining > 0 || lastRequest)
+			closeAfterWrite = true;
+		if(!HTTPResponse.isFileRequest(request, path)) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			int status = new HTTPResponse(request, new DataOutputStream(bytes), files, path).generateResposne();
+			if(bytes.size() > toClient.remaining()) {
+				close();
+				return;
+			}
+			toClient.put(bytes.toByteArray());
+			finishRequest(status, bytes.size());
+			return;
+		}
+
+		StaticFiles.Response response = files.prepare(request, path);
+		byte[] head = response.getHead();
+		if(head.length > toClient.remaining()) {
+			response.release();
+			close();
+			return;
+		}
+		toClient.put(head);
+		if(!response.hasBody()) {
+			finishRequest(response.getStatus(), head.length);
+			return;
+		}
+		fileResponse = response;
+		filePosition = response.getPosition();
+		fileEnd = filePosition + response.getCount();
+		responseStatus = response.getStatus();
+		responseBytes = head.length;
+		state = State.SENDING_FILE;
+	}
+
+	/**
+	 * Send as much of the file (or of the compressed body) as the socket takes
+	 *
+	 * @return True if the whole file was sent
+	 */
+	private boolean sendFile() throws IOException {
+		long sent;
+		long count = fileEnd - filePosition;
+		if(bandwidth != null)
+			count = Math.min(count, sliceSize);
+		FileChannel file = null;
+		if(fileResponse.getBody() != null) {
+			sent = client.write(ByteBuffer.wrap(fileResponse.getBody(), (int) filePosition, (int) count));
+		} else {
+			file = fileResponse.getFile().getChannel();
+			sent = file.transferTo(filePosition, count, client);
+		}
+		if(sent > 0) {
+			filePosition += sent;
+			responseBytes += sent;
+			pace(sent);
+		} else if(file != null && filePosition >= file.size()) {
+			throw new IOException("File is shorter than its length");
+		}
+		if(filePosition < fileEnd)
+			return false;
+		fileResponse.release();
+		fileResponse = null;
+		state = State.READING_REQUEST;
+		finishRequest(responseStatus, responseBytes);
+		return true;
+	}
+
+	/**
+	 * Start connecting to the next address of the destination host. The addresses are
+	 * tried one after the other, the next one when a connect fails.
+	 *
+	 * @return False if no address is left
+	 */
+	private boolean connectNext() throws IOException {
+		while(nextAddress < addresses.length) {
+			InetSocketAddress address = new InetSocketAddress(addresses[nextAddress++], destinationPort);
+			destination = SocketChannel.open();
+			try {
+				destination.configureBlocking(false);
+				lastProgress = System.nanoTime();
+				if(destination.connect(address)) {
+					destinationKey = destination.register(selector, SelectionKey.OP_WRITE, this);
+					state = State.RELAYING;
+					connected();
+				} else {
+					destinationKey = destination.register(selector, SelectionKey.OP_CONNECT, this);
+					state = State.CONNECTING;
+				}
+				return true;
+			} catch (IOException e) {
+				destination.close();
+				destination = null;
+			}
+		}
+		return false;
+	}
+
+	private void finishConnect() throws IOException {
+		try {
+			if(destination.finishConnect()) {
+				state = State.RELAYING;
+				connected();
+			}
+		} catch (IOException e) {
+			if(Log.isDebug())
+				Log.debug(myCounter + " | Failed to connect to " + destination + ": " + e.getMessage());
+			destinationKey.cancel();
+			destination.close();
+			if(!connectNext())
+				failUpstream(502);
+		}
+	}
+
+	/**
+	 * Drop the destination connection and answer the client with an error instead.
+	 * If part of the response was already sent the client connection is closed.
+	 */
+	private void failUpstream(int code) throws IOException {
+		if(destinationKey != null)
+			destinationKey.cancel();
+		if(destination != null)
+			destination.close();
+		destination = null;
+		destinationKey = null;
+		if(responseBytes > 0) {
+			close();
+			return;
+		}
+		buffers.giveDirect(toDestination);
+		toDestination = null;
+		state = State.READING_REQUEST;
+		sendError(code);
+		if(bodyRemaining > 0) {
+			// The rest of the body is still in the stream, the next request can not be found
+			closeAfterWrite = true;
+			return;
+		}
+		processRequests();
+	}
+
+	/**
+	 * Called by the event loop every so often for every key
+	 *
+	 * @param now System.nanoTime()
+	 */
+	public void checkTimeout(SelectionKey key, long now) {
+		if(key == clientKey) {
+			checkIdle(now);
+			return;
+		}
+		if(key != destinationKey)
+			return;
+		long idle = (now - lastProgress) / 1000000L;
+		if(state == State.TUNNELING) {
+			if(tunnelIdleTimeout > 0 && idle >= tunnelIdleTimeout) {
+				if(Log.isDebug())
+					Log.debug(myCounter + " | Tunnel was idle for " + idle + " ms");
+				close();
+			}
+			return;
+		}
+		if(destinationEof)
+			return;
+		UpstreamConnector connector = context.getConnector();
+		try {
+			if(state == State.CONNECTING && connector.getConnectTimeout() > 0
+					&& (now - connectStart) / 1000000L >= connector.getConnectTimeout()) {
+				failUpstream(504);
+			} else if(state == State.RELAYING && connector.getReadTimeout() > 0 && idle >= connector.getReadTimeout()) {
+				if(Log.isDebug())
+					Log.debug(myCounter + " | Destination host was idle for " + idle + " ms");
+				failUpstream(504);
+			} else {
+				return;
+			}
+			updateInterest();
+		} catch (IOException e) {
+			close();
+		}
+	}
+
+	/**
+	 * Close a client connection that waits too long for its next request, or that
+	 * sends the head of a request too slowly
+	 */
+	private void checkIdle(long now) {
+		if(state != State.READING_REQUEST || toClient != null || closeAfterWrite) {
+			waiting = false;
+			return;
+		}
+		if(!waiting) {
+			waiting = true;
+			waitingSince = now;
+		}
+		int timeout = clientInput.position() > 0 ? requestHeadTimeout : keepAliveTimeout;
+		long idle = (now - waitingSince) / 1000000L;
+		if(timeout > 0 && idle >= timeout) {
+			if(Log.isDebug())
+				Log.debug(myCounter + " | Client was idle for " + idle + " ms");
+			close();
+		}
+	}
+
+	/**
+	 * Count bytes written to the client, and stop writing until the bandwidth has room again
+	 */
+	private void pace(long bytes) {
+		if(bandwidth == null)
+			return;
+		long now = System.nanoTime();
+		long wait = bandwidth.take(bytes, now);
+		if(wait > 0) {
+			paused = true;
+			resumeAt = now + wait;
+			loop.pause(this, resumeAt);
+		}
+	}
+
+	/**
+	 * Called by the event loop when the pause of the writes to the client may be over
+	 *
+	 * @param now System.nanoTime()
+	 */
+	public void resume(long now) {
+		if(state == State.CLOSED || !paused)
+			return;
+		if(now - resumeAt < 0) {
+			loop.pause(this, resumeAt);
+			return;
+		}
+		paused = false;
+		updateInterest();
+	}
+
+	private void connected() throws IOException {
+		connected = System.nanoTime();
+		connectNanos = connected - connectStart;
+		metrics.recordPhase(ServerMetrics.CONNECT, connectNanos);
+		if(tunnelRequest) {
+			openTunnel();
+		} else if(expectContinue) {
+			// The body is asked for only when it has somewhere to go
+			toClient.put(ResponseWriter.CONTINUE);
+		}
+	}
+
+	/**
+	 * Answer the CONNECT request, from now on the connection only copies bytes.
+	 * What the client sent after the request head already belongs to the tunnel.
+	 */
+	private void openTunnel() throws IOException {
+		state = State.TUNNELING;
+		toClient.put(ResponseWriter.CONNECTION_ESTABLISHED);
+		responseStatus = 200;
+		responseBytes = ResponseWriter.CONNECTION_ESTABLISHED.length;
+
+		clientInput.flip();
+		if(clientInput.remaining() > toDestination.remaining()) {
+			ByteBuffer larger = ByteBuffer.allocate(clientInput.remaining());
+			buffers.giveDirect(toDestination);
+			toDestination = larger;
+		}
+		requestBytes += clientInput.remaining();
+		toDestination.put(clientInput);
+		// The tunnel reads straight into the relay buffer
+		clientInput = null;
+		clientEof = false;
+		destinationEof = false;
+		if(Log.isDebug())
+			Log.debug(myCounter + " | Tunnel to " + destination.socket().getInetAddress() + " is open");
+	}
+
+	/**
+	 * Copy the bytes of a tunnel in the direction the key is ready for
+	 */
+	private void relayTunnel(SelectionKey key, int ready) throws IOException {
+		if(key == clientKey) {
+			if((ready & SelectionKey.OP_WRITE) != 0)
+				writeTunnel(client, toClient, destinationEof);
+			if((ready & SelectionKey.OP_READ) != 0)
+				clientEof = readTunnel(client, toDestination, destination);
+		} else if(key == destinationKey) {
+			if((ready & SelectionKey.OP_WRITE) != 0)
+				writeTunnel(destination, toDestination, clientEof);
+			if((ready & SelectionKey.OP_READ) != 0)
+				destinationEof = readTunnel(destination, toClient, client);
+		}
+		if(clientEof && destinationEof && toClient.position() == 0 && toDestination.position() == 0)
+			close();
+	}
+
+	/**
+	 * @param to The other side, half closed when this side ends and nothing is left to write
+	 * @return True if this side closed its output
+	 */
+	private boolean readTunnel(SocketChannel from, ByteBuffer buffer, SocketChannel to) throws IOException {
+		int len = from.read(buffer);
+		if(len == -1) {
+			if(buffer.position() == 0)
+				to.shutdownOutput();
+			return true;
+		}
+		if(len > 0) {
+			lastProgress = System.nanoTime();
+			if(from == client)
+				requestBytes += len;
+			else
+				responseBytes += len;
+		}
+		return false;
+	}
+
+	/**
+	 * @param sourceEof True if the other side ended, then this side is half closed once the buffer is written
+	 */
+	private void writeTunnel(SocketChannel to, ByteBuffer buffer, boolean sourceEof) throws IOException {
+		buffer.flip();
+		if(to.write(buffer) > 0)
+			lastProgress = System.nanoTime();
+		buffer.compact();
+		if(sourceEof && buffer.position() == 0)
+			to.shutdownOutput();
+	}
+
+	/**
+	 * Move request body bytes from the client buffer to the destination buffer
+	 */
+	private void pumpRequestBody() throws IOException {
+		if(bodyRemaining <= 0)
+			return;
+		clientInput.flip();
+		int len = (int) Math.min(bodyRemaining, Math.min(clientInput.remaining(), toDestination.remaining()));
+		if(chunkScanner != null)
+			len = chunkScanner.scan(clientInput, clientInput.position(), clientInput.position() + len);
+		int limit = clientInput.limit();
+		clientInput.limit(clientInput.position() + len);
+		toDestination.put(clientInput);
+		clientInput.limit(limit);
+		clientInput.compact();
+		requestBytes += len;
+		if(chunkScanner == null)
+			bodyRemaining -= len;
+		else if(chunkScanner.isDone())
+			bodyRemaining = 0;
+	}
+
+	private void writeToDestination() throws IOException {
+		toDestination.flip();
+		if(destination.write(toDestination) > 0)
+			lastProgress = System.nanoTime();
+		toDestination.compact();
+		pumpRequestBody();
+	}
+
+	private void readFromDestination() throws IOException {
+		int start = toClient.position();
+		int len = destination.read(toClient);
+		if(len == -1) {
+			destinationEof = true;
+			holdHead = false;
+			destinationKey.cancel();
+			destination.close();
+			if(toClient.position() == 0)
+				finishResponse();
+			return;
+		}
+		if(len > 0)
+			lastProgress = System.nanoTime();
+		if(firstByteNanos < 0 && len > 0) {
+			firstByteNanos = System.nanoTime() - connected;
+			metrics.recordPhase(ServerMetrics.FIRST_BYTE, firstByteNanos);
+		}
+		responseBytes += len;
+		if(holdHead && headOffset < 0 && len > 0)
+			headOffset = start;
+		if(!headDone)
+			scanResponseHead(start, toClient.position());
+		// A head larger than the buffer is sent as it is
+		if(!headDone && !toClient.hasRemaining())
+			holdHead = false;
+	}
+
+	private void writeToClient() throws IOException {
+		toClient.flip();
+		int end = toClient.limit();
+		boolean held = holdHead && headOffset >= 0;
+		if(held)
+			toClient.limit(headOffset);
+		if(bandwidth != null)
+			toClient.limit(Math.min(toClient.limit(), toClient.position() + sliceSize));
+		int written = client.write(toClient);
+		if(written > 0) {
+			lastProgress = System.nanoTime();
+			pace(written);
+		}
+		if(held)
+			headOffset -= written;
+		toClient.limit(end);
+		toClient.compact();
+
+		if(toClient.position() > 0)
+			return;
+		boolean fileSent = false;
+		if(state == State.SENDING_FILE) {
+			if(paused || !sendFile())
+				return;
+			fileSent = true;
+		}
+		if(closeAfterWrite) {
+			close();
+		} else if(state == State.RELAYING && destinationEof) {
+			finishResponse();
+		} else if(state == State.READING_REQUEST) {
+			buffers.giveDirect(toClient);
+			toClient = null;
+			// Requests that were pipelined after the file waited for it
+			if(fileSent)
+				processRequests();
+		}
+	}
+
+	/**
+	 * The destination host closed its socket and everything was written to the client
+	 */
+	private void finishResponse() throws IOException {
+		destination = null;
+		destinationKey = null;
+		buffers.giveDirect(toDestination);
+		toDestination = null;
+		buffers.giveDirect(toClient);
+		toClient = null;
+		// The destination host answered before the whole body was sent, the rest is still in the stream
+		boolean bodyLeft = bodyRemaining > 0;
+		bodyRemaining = 0;
+		finishRequest(responseStatus, responseBytes);
+		if(!responseFramed || bodyLeft || lastRequest) {
+			// The client can find the end of the response only when the connection is closed
+			close();
+			return;
+		}
+		state = State.READING_REQUEST;
+		processRequests();
+	}
+
+	/**
+	 * Look for the end of the response head and check whether the response has a length
+	 */
+	private void scanResponseHead(int from, int to) {
+		int i;
+		for(i = from; i < to && !headDone; i++) {
+			char c = (char) (toClient.get(i) & 0xff);
+			responseHead.append(c);
+			if((headMatch % 2 == 0 && c == '\r') || (headMatch % 2 == 1 && c == '\n'))
+				headMatch++;
+			else
+				headMatch = c == '\r' ? 1 : 0;
+			if(headMatch == 4 || responseHead.length() > MAX_RESPONSE_HEAD)
+				headDone = true;
+		}
+		if(headDone) {
+			String head = responseHead.toString().toLowerCase();
+			String status = head.length() > 12 ? head.substring(9, 12) : "";
+			try {
+				responseStatus = Integer.parseInt(status);
+			} catch (NumberFormatException e) {
+				responseStatus = 0;
+			}
+			responseFramed = headRequest || status.equals("204") || status.equals("304")
+					|| head.contains("\ncontent-length:")
+					|| (head.contains("\ntransfer-encoding:") && head.contains("chunked"));
+			if(holdHead && headMatch == 4)
+				rewriteHead(responseHead.toString(), i);
+			holdHead = false;
+			responseHead = null;
+		}
+	}
+
+	/**
+	 * Replace the hop-by-hop headers of the destination host, which was asked to close,
+	 * with the ones of the client connection
+	 *
+	 * @param end The index of the first byte after the head in the client buffer
+	 */
+	private void rewriteHead(String head, int end) {
+		if(responseStatus < 200)
+			return;
+		StringBuilder rewritten = new StringBuilder(head.length());
+		for(String line : head.split("\r\n")) {
+			if(!line.isEmpty() && !ProxyHandler.isHopByHop(line))
+				rewritten.append(line).append("\r\n");
+		}
+		if(lastRequest || !responseFramed)
+			rewritten.append("Connection: close\r\n");
+		else if(!clientHttp11)
+			rewritten.append("Connection: keep-alive\r\n");
+		byte[] bytes = rewritten.append("\r\n").toString().getBytes(ISO_8859_1);
+		byte[] body = new byte[toClient.position() - end];
+		if(headOffset + bytes.length + body.length > toClient.capacity())
+			return;
+		toClient.position(end);
+		toClient.get(body);
+		toClient.position(headOffset);
+		toClient.put(bytes);
+		toClient.put(body);
+	}
+
+	private void sendError(int code) throws IOException {
+		byte[] response = ResponseWriter.getError(code);
+		if(response == null)
+			response = new byte[0];
+		if(toClient == null)
+			toClient = buffers.takeDirect();
+		if(response.length > toClient.remaining()) {
+			close();
+			return;
+		}
+		toClient.put(response);
+		finishRequest(code, response.length);
+		if(lastRequest)
+			closeAfterWrite = true;
+	}
+
+	private void startRequest(HTTPRequest request) {
+		waiting = false;
+		requestActive = true;
+		requestStart = System.nanoTime();
+		requestBytes = request != null ? request.getReceivedLength() : 0;
+		connectNanos = -1;
+		firstByteNanos = -1;
+		if(Log.isAccessEnabled())
+			accessEntry = new AccessLogEntry(clientAddress, request, System.currentTimeMillis());
+	}
+
+	/**
+	 * Count the request in the metrics and write it to the access log
+	 */
+	private void finishRequest(int status, long bytes) {
+		if(!requestActive)
+			return;
+		requestActive = false;
+		long duration = System.nanoTime() - requestStart;
+		if(firstByteNanos >= 0)
+			metrics.recordPhase(ServerMetrics.RELAY, System.nanoTime() - connected - firstByteNanos);
+		metrics.recordRequest(status, requestBytes, bytes, duration);
+		if(accessEntry == null)
+			return;
+		accessEntry.setUpstream(connectNanos, firstByteNanos, false);
+		accessEntry.setResponse(status, bytes, duration);
+		Log.access(accessEntry);
+		accessEntry = null;
+	}
+
+	private void updateInterest() {
+		if(state == State.CLOSED)
+			return;
+		if(state == State.TUNNELING) {
+			int clientOps = 0, destinationOps = 0;
+			if(toClient.position() > 0)
+				clientOps |= SelectionKey.OP_WRITE;
+			if(!clientEof && toDestination.hasRemaining())
+				clientOps |= SelectionKey.OP_READ;
+			if(toDestination.position() > 0)
+				destinationOps |= SelectionKey.OP_WRITE;
+			if(!destinationEof && toClient.hasRemaining())
+				destinationOps |= SelectionKey.OP_READ;
+			clientKey.interestOps(clientOps);
+			destinationKey.interestOps(destinationOps);
+			return;
+		}
+
+		if(state == State.RESOLVING) {
+			clientKey.interestOps(0);
+			return;
+		}
+
+		int clientOps = 0;
+		int pending = toClient == null ? 0 : holdHead && headOffset >= 0 ? headOffset : toClient.position();
+		if(!paused && (pending > 0 || state == State.SENDING_FILE))
+			clientOps |= SelectionKey.OP_WRITE;
+		if(!closeAfterWrite && clientInput.hasRemaining()
+				&& (state == State.READING_REQUEST || bodyRemaining > 0))
+			clientOps |= SelectionKey.OP_READ;
+		clientKey.interestOps(clientOps);
+
+		if(destinationKey != null && destinationKey.isValid()) {
+			int destinationOps = 0;
+			if(state == State.CONNECTING) {
+				destinationOps = SelectionKey.OP_CONNECT;
+			} else {
+				if(toDestination.position() > 0)
+					destinationOps |= SelectionKey.OP_WRITE;
+				if(toClient.hasRemaining())
+					destinationOps |= SelectionKey.OP_READ;
+			}
+			destinationKey.interestOps(destinationOps);
+		}
+	}
+
+	private void close() {
+		if(state == State.CLOSED)
+			return;
+		state = State.CLOSED;
+		// A response that was cut off is logged with what was relayed
+		finishRequest(responseStatus, responseBytes);
+		metrics.connectionClosed();
+		if(Log.isDebug())
+			Log.debug(myCounter + " | Connection is closing");
+		try {
+			if(clientKey != null)
+				clientKey.cancel();
+			client.close();
+		} catch (IOException e) {
+			// Nothing to do
+		}
+		try {
+			if(destinationKey != null)
+				destinationKey.cancel();
+			if(destination != null)
+				destination.close();
+		} catch (IOException e) {
+			// Nothing to do
+		}
+		buffers.giveDirect(toDestination);
+		buffers.giveDirect(toClient);
+		toDestination = null;
+		toClient = null;
+		if(fileResponse != null) {
+			fileResponse.release();
+			fileResponse = null;
+		}
+		context.getLimiter().releaseClient(clientAddress);
+	}
+}
@@ -0,0 +1,148 @@
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+ * A single selector thread. Every channel registered to it (client and destination
+ * sockets alike) is handled only by this thread, so connections need no locking.
+ * Work that finishes on another thread, like a DNS lookup, comes back to the loop as a
+ * task, see {@link #execute(Runnable)}.
+ */
+public class NioEventLoop implements Runnable {
+
+	// How often the connections are checked for timeouts
+	private static final long TIMEOUT_CHECK_INTERVAL = 250;
+
+	private Selector selector;
+	private ConcurrentLinkedQueue<SocketChannel> pending;
+	private ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private volatile Thread thread;
+	private int id;
+	private ServerContext context;
+	private long lastTimeoutCheck;
+	// Connections whose writes to the client are paced, and the earliest time one of them resumes
+	private ArrayList<NioConnection> paused = new ArrayList<NioConnection>();
+	private long nextResume;
+
+	public NioEventLoop(int id, ServerContext context) throws IOException {
+		this.id = id;
+		this.context = context;
+		selector = Selector.open();
+		pending = new ConcurrentLinkedQueue<SocketChannel>();
+	}
+
+	/**
+	 * Hand a new client connection to this loop. Called from the accepting thread.
+	 */
+	public void register(SocketChannel channel) {
+		pending.add(channel);
+		selector.wakeup();
+	}
+
+	/**
+	 * Run a task on the thread of this loop, at once if it is called there
+	 */
+	public void execute(Runnable task) {
+		if(Thread.currentThread() == thread) {
+			task.run();
+			return;
+		}
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Have {@link NioConnection#resume(long)} called at the given time (System.nanoTime()).
+	 * Called by the connections of this loop, on its thread.
+	 */
+	public void pause(NioConnection connection, long resumeAt) {
+		if(paused.isEmpty() || resumeAt - nextResume < 0)
+			nextResume = resumeAt;
+		paused.add(connection);
+	}
+
+	@Override
+	public void run() {
+		thread = Thread.currentThread();
+		while(true) {
+			long timeout = TIMEOUT_CHECK_INTERVAL;
+			if(!paused.isEmpty())
+				timeout = Math.max(1, Math.min(timeout, (nextResume - System.nanoTime()) / 1000000L));
+			try {
+				selector.select(timeout);
+			} catch (IOException e) {
+				Log.error("Event loop " + id + " failed to select: " + e.getMessage());
+				continue;
+			}
+
+			registerPending();
+			runTasks();
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while(keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				NioConnection connection = (NioConnection) key.attachment();
+				connection.handle(key);
+			}
+
+			resumePaused();
+			checkTimeouts();
+		}
+	}
+
+	private void resumePaused() {
+		long now = System.nanoTime();
+		if(paused.isEmpty() || now - nextResume < 0)
+			return;
+		ArrayList<NioConnection> waiting = paused;
+		paused = new ArrayList<NioConnection>();
+		for(NioConnection connection : waiting) {
+			connection.resume(now);
+		}
+	}
+
+	private void checkTimeouts() {
+		long now = System.nanoTime();
+		if(now - lastTimeoutCheck < TIMEOUT_CHECK_INTERVAL * 1000000L)
+			return;
+		lastTimeoutCheck = now;
+		// A connection that times out may register a new key, so go over a copy
+		for(SelectionKey key : selector.keys().toArray(new SelectionKey[0])) {
+			if(key.isValid())
+				((NioConnection) key.attachment()).checkTimeout(key, now);
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while((task = tasks.poll()) != null) {
+			task.run();
+		}
+	}
+
+	private void registerPending() {
+		SocketChannel channel;
+		while((channel = pending.poll()) != null) {
+			try {
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				NioConnection connection = new NioConnection(this, selector, channel, context);
+				connection.start();
+			} catch (IOException e) {
+				Log.warn("Failed to register the new connection: " + e.getMessage());
+				context.getLimiter().releaseClient(channel.socket().getInetAddress().getHostAddress());
+				try {
+					channel.close();
+				} catch (IOException e1) {
+					// Nothing to do
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,53 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+
+/**
+ * Non blocking engine of the server.
+ * Accepts connections on a {@link ServerSocketChannel} and hands them to a fixed
+ * set of {@link NioEventLoop}s (one per core by default) in round robin order.
+ */
+public class NioServer {
+
+	private ServerSocketChannel server;
+	private NioEventLoop[] loops;
+	private int next = 0;
+	private ServerContext context;
+
+	public NioServer(int port, int loopsCount, ServerContext context) throws IOException {
+		this.context = context;
+		if(loopsCount <= 0)
+			loopsCount = 1;
+
+		loops = new NioEventLoop[loopsCount];
+		for(int i = 0; i < loopsCount; i++) {
+			loops[i] = new NioEventLoop(i, context);
+			Thread thread = new Thread(loops[i], "nio-loop-" + i);
+			thread.start();
+		}
+
+		server = ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.socket().bind(new InetSocketAddress(port));
+	}
+
+	public void run() {
+		while(true) {
+			try {
+				SocketChannel connection = server.accept();
+				String clientAddress = connection.socket().getInetAddress().getHostAddress();
+				if(!context.getLimiter().tryAcquireClient(clientAddress)) {
+					// Over the limits, nothing was read from the client so just close it
+					connection.close();
+					continue;
+				}
+				loops[next].register(connection);
+				next = (next + 1) % loops.length;
+			} catch (IOException e) {
+				Log.warn("Failed to create the new connection: " + e.getMessage());
+			}
+		}
+	}
+}
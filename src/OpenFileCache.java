@@ -0,0 +1,162 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+
+/**
+ * Keeps static files open together with what their responses need (length, ETag,
+ * Last-Modified), so a hot file costs no open() or stat() per request.
+ * A file is checked against the disk again when its entry is older than the check
+ * interval, and a file that changed is opened again. The least recently used files are
+ * closed when there are too many; a file that is still being sent is closed only when
+ * the last request that uses it lets it go.
+ */
+public class OpenFileCache {
+
+	private int maxOpen;
+	private long checkInterval;
+	private String canonicalRoot;
+	private LinkedHashMap<String, OpenFile> files;
+
+	/**
+	 * @param root Only files under this folder are opened
+	 * @param maxOpen The number of files to keep open
+	 * @param checkInterval Milliseconds an entry is trusted before the file is checked again
+	 */
+	public OpenFileCache(File root, int maxOpen, long checkInterval) throws IOException {
+		this.maxOpen = maxOpen;
+		this.checkInterval = checkInterval;
+		canonicalRoot = root.getCanonicalPath();
+		files = new LinkedHashMap<String, OpenFile>(16, 0.75f, true);
+	}
+
+	/**
+	 * Open a file or take it from the cache. The caller must {@link OpenFile#release()} it.
+	 *
+	 * @return The file, or null if it is not a readable file under the root
+	 */
+	public synchronized OpenFile acquire(File file) throws IOException {
+		String key = file.getPath();
+		long now = System.currentTimeMillis();
+		OpenFile open = files.get(key);
+		if(open != null && now - open.checkedAt >= checkInterval) {
+			if(file.lastModified() == open.lastModified && file.length() == open.length) {
+				open.checkedAt = now;
+			} else {
+				files.remove(key);
+				open.evict();
+				open = null;
+			}
+		}
+		if(open == null) {
+			open = open(file, now);
+			if(open == null)
+				return null;
+			files.put(key, open);
+			if(files.size() > maxOpen)
+				evictEldest();
+		}
+		open.refs++;
+		return open;
+	}
+
+	private OpenFile open(File file, long now) throws IOException {
+		if(!file.isFile() || !file.getCanonicalPath().startsWith(canonicalRoot + File.separator))
+			return null;
+		// Read the metadata first, a change while opening only makes the check fail later
+		long lastModified = file.lastModified();
+		long length = file.length();
+		FileChannel channel;
+		try {
+			channel = new FileInputStream(file).getChannel();
+		} catch (IOException e) {
+			return null;
+		}
+		return new OpenFile(channel, length, lastModified, now);
+	}
+
+	private void evictEldest() {
+		Iterator<Map.Entry<String, OpenFile>> iterator = files.entrySet().iterator();
+		while(files.size() > maxOpen && iterator.hasNext()) {
+			OpenFile eldest = iterator.next().getValue();
+			iterator.remove();
+			eldest.evict();
+		}
+	}
+
+	/**
+	 * An open file and its response headers. The channel is only read with positional
+	 * transfers, so any number of requests can send it at once.
+	 */
+	public class OpenFile {
+
+		private FileChannel channel;
+		private long length, lastModified, checkedAt;
+		private String etag, lastModifiedHeader;
+		private int refs = 0;
+		private boolean evicted = false;
+
+		private OpenFile(FileChannel channel, long length, long lastModified, long checkedAt) {
+			this.channel = channel;
+			this.length = length;
+			this.lastModified = lastModified;
+			this.checkedAt = checkedAt;
+			etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+			SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+			format.setTimeZone(TimeZone.getTimeZone("GMT"));
+			lastModifiedHeader = format.format(new Date(lastModified));
+		}
+
+		public FileChannel getChannel() {
+			return channel;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		public String getEtag() {
+			return etag;
+		}
+
+		public String getLastModifiedHeader() {
+			return lastModifiedHeader;
+		}
+
+		/**
+		 * The request is done with the file
+		 */
+		public void release() {
+			synchronized(OpenFileCache.this) {
+				if(--refs == 0 && evicted)
+					close();
+			}
+		}
+
+		private void evict() {
+			evicted = true;
+			if(refs == 0)
+				close();
+		}
+
+		private void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Nothing to do
+			}
+		}
+	}
+}
@@ -0,0 +1,55 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * A stream to a client whose bytes are limited by a {@link RateLimiter.Bandwidth}.
+ * Writes are split into slices no larger than the burst and a slice waits until the
+ * bandwidth has room for it, so a large body leaves at the rate instead of in one go.
+ * It is the last stream before the socket and the streams above it write to it with no
+ * lock held, see {@link PipelinedResponse}, so a parked writer holds up no other thread.
+ */
+public class PacedOutputStream extends FilterOutputStream {
+
+	private RateLimiter.Bandwidth bandwidth;
+	private int slice;
+
+	public PacedOutputStream(OutputStream output, RateLimiter.Bandwidth bandwidth, int slice) {
+		super(output);
+		this.bandwidth = bandwidth;
+		this.slice = slice;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		pace(1);
+		out.write(b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while(len > 0) {
+			int part = Math.min(len, slice);
+			pace(part);
+			out.write(b, off, part);
+			off += part;
+			len -= part;
+		}
+	}
+
+	private void pace(int bytes) throws IOException {
+		long wait = bandwidth.take(bytes, System.nanoTime());
+		while(wait > 0) {
+			long start = System.nanoTime();
+			LockSupport.parkNanos(this, wait);
+			if(Thread.interrupted()) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while pacing the response");
+			}
+			wait -= System.nanoTime() - start;
+		}
+	}
+}
@@ -0,0 +1,254 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * The place of one response in the order of a pipelined client connection.
+ * Responses are handled at the same time but must reach the client in the order of
+ * the requests. Until the response before this one was sent, what is written here
+ * is collected in memory, up to a limit, after which the writer waits for its turn.
+ * Once it is the first in line the collected bytes are sent and later writes go
+ * straight to the client.
+ * The lock only guards the state, the client is written, flushed and closed without it,
+ * so a thread that waits for a slow client holds no monitor (a virtual thread would be
+ * pinned to its carrier otherwise). Only the current response writes to the client.
+ */
+public class PipelinedResponse extends OutputStream {
+
+	private OutputStream client;
+	private int maxBuffered;
+	// Null while it is being sent, after which the response is current
+	private ByteArrayOutputStream pending;
+	private PipelinedResponse next;
+	private boolean current = false;
+	private boolean done = false;
+	private boolean failed = false;
+	private boolean closesConnection = false;
+	// Set once the response was sent and the turn moved on
+	private boolean passed = false;
+	// Shared by the responses of a connection, set once one of them ends it
+	private AtomicBoolean closing;
+	private ReentrantLock lock = new ReentrantLock();
+	private Condition changed = lock.newCondition();
+
+	private PipelinedResponse(OutputStream client, int maxBuffered, AtomicBoolean closing) {
+		this.client = client;
+		this.maxBuffered = maxBuffered;
+		this.closing = closing;
+		pending = new ByteArrayOutputStream();
+	}
+
+	/**
+	 * Create the first response of a connection, it may write to the client right away
+	 *
+	 * @param maxBuffered The number of bytes to collect before the writer has to wait
+	 */
+	public static PipelinedResponse first(OutputStream client, int maxBuffered) {
+		PipelinedResponse response = new PipelinedResponse(client, maxBuffered, new AtomicBoolean());
+		response.makeCurrent();
+		return response;
+	}
+
+	/**
+	 * Create the response that comes after this one
+	 */
+	public PipelinedResponse append() {
+		PipelinedResponse response = new PipelinedResponse(client, maxBuffered, closing);
+		boolean ready;
+		lock.lock();
+		try {
+			next = response;
+			// The turn was passed before there was a next response to take it
+			ready = passed;
+		} finally {
+			lock.unlock();
+		}
+		if(ready)
+			response.makeCurrent();
+		return response;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		lock.lock();
+		try {
+			while(!current) {
+				if(pending != null && pending.size() + len <= maxBuffered) {
+					pending.write(b, off, len);
+					return;
+				}
+				waitForChange();
+			}
+		} finally {
+			lock.unlock();
+		}
+		client.write(b, off, len);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if(isCurrent())
+			client.flush();
+	}
+
+	/**
+	 * The client stream is shared by all the responses, it is closed by the connection
+	 */
+	@Override
+	public void close() {
+	}
+
+	/**
+	 * Mark the response as complete. If it failed in the middle the client stream can not
+	 * be trusted anymore, so it is closed when this response gets its turn, as it is
+	 * after a response that ends the connection.
+	 */
+	public void finish(boolean ok) {
+		boolean pass;
+		lock.lock();
+		try {
+			done = true;
+			failed = !ok;
+			pass = current;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		if(pass)
+			passTurn();
+	}
+
+	/**
+	 * End the connection after this response, the client finds the end of its body by
+	 * the close or was told so. The responses after it are not sent.
+	 */
+	public void closeConnection() {
+		lock.lock();
+		try {
+			closesConnection = true;
+			closing.set(true);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return True if this response or one before it ends the connection, no more requests should be read
+	 */
+	public boolean isClosing() {
+		return closing.get();
+	}
+
+	/**
+	 * Wait until this response and all the ones before it were sent
+	 */
+	public void awaitSent() throws InterruptedIOException {
+		lock.lock();
+		try {
+			while(!passed)
+				waitForChange();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean isCurrent() {
+		lock.lock();
+		try {
+			return current;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Send what was collected and let later writes go to the client. Called once, by the
+	 * thread that passed the turn.
+	 */
+	private void makeCurrent() {
+		ByteArrayOutputStream collected;
+		lock.lock();
+		try {
+			collected = pending;
+			pending = null;
+		} finally {
+			lock.unlock();
+		}
+
+		boolean sent = true;
+		try {
+			collected.writeTo(client);
+		} catch (IOException e) {
+			sent = false;
+		}
+
+		boolean pass;
+		lock.lock();
+		try {
+			if(!sent)
+				failed = true;
+			current = true;
+			pass = done;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		if(pass)
+			passTurn();
+	}
+
+	/**
+	 * Called once the response is current and done, by the thread that found it so
+	 */
+	private void passTurn() {
+		boolean close;
+		lock.lock();
+		try {
+			close = failed || closesConnection;
+		} finally {
+			lock.unlock();
+		}
+		try {
+			if(close)
+				client.close();
+			else
+				client.flush();
+		} catch (IOException e) {
+			// The next responses will fail on the closed stream
+		}
+
+		PipelinedResponse following;
+		lock.lock();
+		try {
+			passed = true;
+			following = next;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		if(following != null)
+			following.makeCurrent();
+	}
+
+	/**
+	 * Called with the lock held
+	 */
+	private void waitForChange() throws InterruptedIOException {
+		try {
+			changed.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the previous response");
+		}
+	}
+}
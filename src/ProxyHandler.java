@@ -1,199 +1,859 @@
-import java.io.BufferedReader;
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.util.HashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.List;
 
 
 public class ProxyHandler {
 	
 	private static final String CRLF = "\r\n";
-	
-	private static final int BUFFER_SIZE = 1024;	
+	private static final int MAX_LINE = 64 * 1024;
 	
 	private HTTPRequest request;
-	private Socket destination;
-	private DataOutputStream output;
-	private DataInputStream input;
+	private UpstreamConnection destination;
+	private SocketOutput output;
+	private SocketInput input;
 	private boolean chunked = false;
 	private String contentLength = null;
 	private int myCounter;
-	private String host, path;
+	private RequestTarget target;
+	private ConnectionLimiter limiter;
+	private UpstreamPool pool;
+	private ResponseCache cache;
+	private BufferPool buffers;
+	private ServerMetrics metrics;
+	private int serverPort;
+	private DnsCache dnsCache;
+	private UpstreamConnector connector;
+	private ResponseCompressor compressor;
+	private boolean compressing = false;
+	private boolean keepAlive = true;
+	private boolean clientClose = false;
+	private RequestCoalescer coalescer;
+	private RequestCoalescer.Fetch sharing;
+	private HostFilter hostFilter;
+	private String cacheKey = null;
+	private boolean fetching = false;
+	private boolean hostAcquired = false;
+	private boolean reusable = false;
+	private boolean responseClose = false;
+	private int statusCode;
+	private boolean cacheHit = false;
+	private long connectNanos = -1, firstByteNanos = -1;
 	
-	public ProxyHandler(HTTPRequest request, int counter) {
+	public ProxyHandler(HTTPRequest request, int counter, ServerContext context) {
 		this.request = request;
 		myCounter = counter;
+		limiter = context.getLimiter();
+		pool = context.getUpstreamPool();
+		cache = context.getResponseCache();
+		buffers = context.getBufferPool();
+		metrics = context.getMetrics();
+		serverPort = context.getConfig().getPort();
+		dnsCache = context.getDnsCache();
+		connector = context.getConnector();
+		compressor = context.getCompressor();
+		coalescer = context.getCoalescer();
+		hostFilter = context.getHostFilter();
 	}
 	
+	/**
+	 * Check the destination against the host rules. The addresses of the host are
+	 * looked up only when there are address rules, from the DNS cache the connection uses.
+	 * 
+	 * @return False if the rules deny the request
+	 */
 	public boolean isRequestLegal() {
-		// TODO: Implement
+		HostPolicy policy = hostFilter != null ? hostFilter.getPolicy() : null;
+		// A request without a destination is answered by the proxy, or rejected later
+		if(policy == null || !setHostAndPath())
+			return true;
+		InetAddress[] addresses = null;
+		if(policy.hasAddressRules()) {
+			try {
+				addresses = dnsCache.resolveAll(target.getHost());
+			} catch (UnknownHostException e) {
+				// The request fails when it connects
+			}
+		}
+		return isAllowed(policy, addresses);
+	}
+	
+	/**
+	 * Check the destination against the host rules with addresses that were looked up before
+	 * 
+	 * @param addresses The addresses of the destination host, null if it has none
+	 * @return False if the rules deny the request
+	 */
+	public boolean isRequestLegal(InetAddress[] addresses) {
+		HostPolicy policy = hostFilter != null ? hostFilter.getPolicy() : null;
+		if(policy == null || !setHostAndPath())
+			return true;
+		return isAllowed(policy, addresses);
+	}
+	
+	private boolean isAllowed(HostPolicy policy, InetAddress[] addresses) {
+		if(policy.isAllowed(target.getHost(), target.getPath(), addresses))
+			return true;
+		if(Log.isDebug())
+			Log.debug(myCounter + " | The host rules deny " + target);
+		return false;
+	}
+	
+	/**
+	 * Send the response from the cache if there is a fresh one.
+	 * If several requests miss the same key together only one of them goes on to
+	 * fetch it, the others wait for it and then try the cache again.
+	 * 
+	 * @return True if the response was sent to the client
+	 */
+	public boolean serveFromCache(DataOutputStream clientOutputStream) throws IOException {
+		return serveFromCache(clientOutputStream, true);
+	}
+	
+	/**
+	 * @param mayWait False if the request must not wait for another one to fetch the response,
+	 * a pipelined request could otherwise wait for a later request of its own connection
+	 */
+	public boolean serveFromCache(DataOutputStream clientOutputStream, boolean mayWait) throws IOException {
+		if(!cache.isEnabled() || !ResponseCache.isRequestCacheable(request) || !setHostAndPath())
+			return false;
 		
+		cacheKey = target.getKey() + target.getPath();
+		if(sendCached(clientOutputStream))
+			return true;
+		// Following an identical request in flight gets the bytes as they arrive, waiting gets them at the end
+		if(!mayWait || (coalescer != null && coalescer.isFetching(RequestCoalescer.keyOf(request, target, keepAlive)))) {
+			fetching = cache.tryBeginFetch(cacheKey);
+			return false;
+		}
+		if(cache.beginFetch(cacheKey)) {
+			fetching = true;
+			return false;
+		}
+		// Another request fetched the response meanwhile
+		return sendCached(clientOutputStream);
+	}
+	
+	/**
+	 * Send the response of an identical request that is fetched right now, as it arrives.
+	 * If there is none this request fetches, and records its response for the ones that
+	 * come meanwhile.
+	 * 
+	 * @param mayWait False if the request must not wait for another one, see {@link #serveFromCache(DataOutputStream, boolean)}
+	 * @return True if the response was sent to the client
+	 */
+	public boolean followInFlight(DataOutputStream clientOutputStream, boolean mayWait) throws IOException {
+		if(coalescer == null || !setHostAndPath())
+			return false;
+		String key = RequestCoalescer.keyOf(request, target, keepAlive);
+		if(key == null)
+			return false;
+		RequestCoalescer.Follower follower = mayWait ? coalescer.follow(key) : null;
+		if(follower == null) {
+			sharing = coalescer.lead(key);
+			return false;
+		}
+		
+		try {
+			byte[] chunk;
+			while((chunk = follower.next()) != null) {
+				clientOutputStream.write(chunk);
+				if(!follower.hasNext())
+					clientOutputStream.flush();
+			}
+		} finally {
+			follower.close();
+		}
+		if(!follower.isComplete()) {
+			// Nothing was sent yet, the request can still be fetched on its own
+			if(follower.getReceived() == 0)
+				return false;
+			throw new IOException("The shared response failed in the middle");
+		}
+		if(Log.isDebug())
+			Log.debug(myCounter + " | Sent the response of an identical request in flight: " + target);
+		statusCode = follower.getStatus();
+		clientClose = follower.closesClient();
 		return true;
 	}
 	
-	public void connectToHost() throws UnknownHostException, IOException {
-		// TODO: Get host from first line
-		setHostAndPath();
+	/**
+	 * Look for the response in memory and then on disk
+	 */
+	private boolean sendCached(DataOutputStream clientOutputStream) throws IOException {
+		CacheEntry entry = cache.get(cacheKey, request.getHeaders());
+		if(entry != null) {
+			if(Log.isDebug())
+				Log.debug(myCounter + " | Sending response from cache: " + cacheKey);
+			if(!sendCompressed(entry, clientOutputStream))
+				entry.writeTo(clientOutputStream, varyHeader(entry.getHead(), entry.getBody().length) + connectionHeader(!keepAlive));
+			setCacheHit(entry.getHead());
+			return true;
+		}
 		
-		destination = new Socket(host, 80);
-		// TODO: Check if IP is legal here or in previous method
-		output = new DataOutputStream(destination.getOutputStream());
-		input = new DataInputStream(destination.getInputStream());
+		DiskCache diskCache = cache.getDiskCache();
+		DiskEntry diskEntry = diskCache != null ? diskCache.get(cacheKey, request.getHeaders()) : null;
+		if(diskEntry != null && diskEntry.writeTo(clientOutputStream,
+				varyHeader(diskEntry.getHead(), diskEntry.getBodyLength()) + connectionHeader(!keepAlive))) {
+			if(Log.isDebug())
+				Log.debug(myCounter + " | Sent response from disk cache: " + cacheKey);
+			setCacheHit(diskEntry.getHead());
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Send the compressed variant of a cached response, it is compressed once per entry
+	 * 
+	 * @return False if the client gets the response as it is
+	 */
+	private boolean sendCompressed(CacheEntry entry, DataOutputStream clientOutputStream) throws IOException {
+		if(compressor == null || !ResponseCompressor.acceptsGzip(request))
+			return false;
+		String head = entry.getHead();
+		byte[] body = entry.getBody();
+		String length = ResponseCompressor.findHeader(head, "content-length");
+		// A chunked entry keeps its framing in the body, only a plain body can be compressed
+		if(length == null || ResponseCompressor.findHeader(head, "transfer-encoding") != null
+				|| !shouldCompress(parseStatusCode(head.substring(0, head.indexOf(CRLF))), head, body.length)
+				|| !compressor.fitsVariant(body.length))
+			return false;
+		byte[] compressed = compressor.compress(entry.getKey() + "@" + entry.getCreated(), body, 0, body.length);
+		clientOutputStream.write(ResponseWriter.encode(ResponseCompressor.encodeHead(head, "Content-Length: " + compressed.length + CRLF)
+				+ "Age: " + ((System.currentTimeMillis() - entry.getCreated()) / 1000) + CRLF + connectionHeader(!keepAlive) + CRLF));
+		clientOutputStream.write(compressed);
+		clientOutputStream.flush();
+		return true;
+	}
+	
+	/**
+	 * @param head The status line and the headers of the response
+	 * @param length The length of the body, -1 if it is not known
+	 * @return True if the response is compressed for a client that accepts gzip
+	 */
+	private boolean shouldCompress(int status, String head, long length) {
+		if(status != 200 || request.getMethod() != Method.GET || !compressor.isWorthIt(length))
+			return false;
+		String cacheControl = ResponseCompressor.findHeader(head, "cache-control");
+		return ResponseCompressor.findHeader(head, "content-encoding") == null
+				&& ResponseCompressor.isCompressible(ResponseCompressor.findHeader(head, "content-type"))
+				&& (cacheControl == null || !cacheControl.toLowerCase().contains("no-transform"));
+	}
+	
+	/**
+	 * A response the proxy would compress for a client that accepts gzip varies on
+	 * Accept-Encoding even when it is sent as it is, so caches after the proxy keep
+	 * the two apart
+	 * 
+	 * @param head The status line and the headers of the response
+	 * @param length The length of the body, -1 if it is not known
+	 * @return The Vary header line to add to the identity response, or an empty string
+	 */
+	private String varyHeader(String head, long length) {
+		if(compressor == null || !shouldCompress(parseStatusCode(head.substring(0, head.indexOf(CRLF))), head, length))
+			return "";
+		String vary = ResponseCompressor.findHeader(head, "vary");
+		if(vary != null && (vary.toLowerCase().contains("accept-encoding") || vary.contains("*")))
+			return "";
+		return "Vary: Accept-Encoding" + CRLF;
+	}
+	
+	private void setCacheHit(String head) {
+		cacheHit = true;
+		int lineEnd = head.indexOf(CRLF);
+		statusCode = parseStatusCode(lineEnd != -1 ? head.substring(0, lineEnd) : head);
 	}
 	
-	private void setHostAndPath() {
-		String pathFromRequest = request.getPath().toLowerCase() + request.getQuery();
-		System.out.println(myCounter + " | DEBUG: Frist line: " + pathFromRequest);
-		Pattern pattern = Pattern.compile("http://([^/]*)(/.*)");
-		Matcher matcher = pattern.matcher(pathFromRequest);
-		if(matcher.matches()) {
-			host = matcher.group(1);
-			path = matcher.group(2);
+	/**
+	 * Open a connection to the destination host
+	 * 
+	 * @return False if there are too many open connections to the host
+	 */
+	public boolean connectToHost() throws UnknownHostException, IOException {
+		if(!setHostAndPath())
+			throw new UnknownHostException("No destination host in the request");
+		long start = System.nanoTime();
+		
+		if(!limiter.tryAcquireHost(target.getKey())) {
+			Log.warn(myCounter + " | Too many connections to " + target.getKey());
+			return false;
+		}
+		hostAcquired = true;
+		
+		// A tunnel gets a connection of its own, it can never go back to the pool
+		if(request.getMethod() != Method.CONNECT)
+			destination = pool.checkout(target.getKey());
+		if(destination == null) {
+			openConnection();
 		} else {
-			System.out.println(myCounter + " | ### Failed to match original path from request! (" + pathFromRequest + ") ###");
-			// TODO: throw exception to handle with it
+			if(Log.isDebug())
+				Log.debug(myCounter + " | Reusing connection to " + target.getKey());
+			output = destination.getOutput();
+			input = destination.getInput();
 		}
+		connectNanos = System.nanoTime() - start;
+		return true;
 	}
 	
-	public void sendRequest() throws IOException {
-		System.out.println(myCounter + " | ### Sending request from proxy ###");
-		
-		// TODO: Check if need to change request path
-		//output.writeBytes(request.getFirstLine() + CRLF);
-		output.writeBytes(request.getMethod().toString() + " " + path + " " + request.getVersion() + CRLF);
-		System.out.println(myCounter + " | DEBUG PRINT: " + request.getMethod().toString() + " " + path + " " + request.getVersion());
+	private void openConnection() throws IOException {
+		long start = System.nanoTime();
+		InetAddress[] addresses = dnsCache.resolveAll(target.getHost());
+		long resolved = System.nanoTime();
+		metrics.recordPhase(ServerMetrics.DNS, resolved - start);
+		if(isProxyItself(addresses, target.getPort(), serverPort))
+			throw new ConnectException("The request is addressed to the proxy itself");
+		destination = new UpstreamConnection(target.getKey(), connector.connect(addresses, target.getPort()), buffers);
+		metrics.recordPhase(ServerMetrics.CONNECT, System.nanoTime() - resolved);
+		output = destination.getOutput();
+		input = destination.getInput();
+	}
+	
+	/**
+	 * Use a connection that is already open instead of connecting (the benchmarks
+	 * relay from memory this way)
+	 */
+	void useConnection(UpstreamConnection connection) {
+		destination = connection;
+		output = destination.getOutput();
+		input = destination.getInput();
+	}
+	
+	/**
+	 * Find the destination host and path in the request line, or in the Host header when
+	 * the request line has only a path
+	 * 
+	 * @return True if the request names a destination
+	 */
+	boolean setHostAndPath() {
+		if(target != null)
+			return true;
+		if(request.getMethod() == Method.CONNECT)
+			target = RequestTarget.parseAuthorityForm(request.getTarget());
+		else
+			target = RequestTarget.parse(request.getTarget(), request.getHeader("host"));
+		if(target == null && Log.isDebug())
+			Log.debug(myCounter + " | No destination in the request (" + request.getTarget() + ")");
+		return target != null;
+	}
+	
+	/**
+	 * @return True if the request names the proxy itself as its destination, or names none
+	 * at all with only a path. Such requests are answered by the server and not relayed.
+	 */
+	public boolean isForProxy() {
+		if(!setHostAndPath())
+			return request.getTarget().startsWith("/");
+		if(target.getPort() != serverPort)
+			return false;
+		try {
+			return isForProxy(dnsCache.resolveAll(target.getHost()));
+		} catch (UnknownHostException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * The same as {@link #isForProxy()} with addresses that were looked up before
+	 * 
+	 * @param addresses The addresses of the destination host, null if it has none
+	 */
+	public boolean isForProxy(InetAddress[] addresses) {
+		if(!setHostAndPath())
+			return request.getTarget().startsWith("/");
+		return addresses != null && isProxyItself(addresses, target.getPort(), serverPort);
+	}
+	
+	/**
+	 * @return The path of the request without the query
+	 */
+	public String getLocalPath() {
+		String path = target != null ? target.getPath() : request.getTarget();
+		int query = path.indexOf('?');
+		return query != -1 ? path.substring(0, query) : path;
+	}
+	
+	/**
+	 * A request for the port the proxy listens on at one of its own addresses would be
+	 * sent back to the proxy again and again
+	 */
+	static boolean isProxyItself(InetAddress[] addresses, int port, int serverPort) {
+		if(port != serverPort)
+			return false;
+		for(InetAddress address : addresses) {
+			try {
+				if(address.isLoopbackAddress() || address.isAnyLocalAddress()
+						|| NetworkInterface.getByInetAddress(address) != null)
+					return true;
+			} catch (SocketException e) {
+				// Not a local address then
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Build the request line and the headers that are sent to the destination host
+	 * 
+	 * @param closeConnection True to ask the destination host to close the connection after the response,
+	 * otherwise the connection is kept alive so it can go back to the pool
+	 */
+	String buildRequestHead(boolean closeConnection) {
+		StringBuilder head = new StringBuilder();
+		head.append(request.getMethod().toString() + " " + target.getPath() + " " + request.getVersion() + CRLF);
+		// The Host header names the destination of an absolute URI (RFC 7230 5.4)
+		head.append("host: " + target.getAuthority() + CRLF);
 		
 		HashMap<String, String> headers = request.getHeaders();
 		for (String key : headers.keySet()) {
-			output.writeBytes(key + ": " + headers.get(key) + CRLF);
-		}
-		output.writeBytes(CRLF);
-		
-		String body = request.getBody();
-		if(body != null) {
-			output.write(body.getBytes());
+			// Hop by hop headers of the client connection
+			if(key.equals("connection") || key.equals("proxy-connection") || key.equals("keep-alive") || key.equals("host"))
+				continue;
+			// The proxy answers Expect itself, and a chunked body has no length (RFC 7230 3.3.3)
+			if(key.equals("expect") || (key.equals("content-length") && request.getBodyLength() < 0))
+				continue;
+			head.append(key + ": " + headers.get(key) + CRLF);
 		}
+		head.append("connection: " + (closeConnection ? "close" : "keep-alive") + CRLF);
+		head.append(CRLF);
+		return head.toString();
+	}
+	
+	public void sendRequest() throws IOException {
+		if(Log.isDebug())
+			Log.debug(myCounter + " | Sending " + request.getMethod().toString() + " " + target.getPath() + " " + request.getVersion() + " to " + target.getKey());
+		output.write(ResponseWriter.encode(buildRequestHead(false)));
 		
-		System.out.println(myCounter + " | ### Finished sending request from proxy ###");
+		RequestBody body = request.getBody();
+		if(body != null)
+			body.writeTo(output);
+		else
+			output.flush();
 	}
 	
 	public void getResponse(DataOutputStream clientOutputStream) throws IOException {
-		System.out.println(myCounter + " | ### Getting response from destination host and sending to client ###");
-		// TODO: Support chunked response?
-		boolean foundChunkedOrContentLength = false;
-		String line;
-		while((line = readLine()) != null && !line.isEmpty()) {
-			System.out.println(line);
-			clientOutputStream.writeBytes(line + CRLF);
-			if(!foundChunkedOrContentLength) {
-				foundChunkedOrContentLength = checkForContentLengthOrChunked(line);
+		RequestCoalescer.Recorder recorder = null;
+		if(sharing != null) {
+			recorder = sharing.record(clientOutputStream);
+			clientOutputStream = new UnlockedDataOutputStream(recorder);
+		}
+		long start = System.nanoTime();
+		String line = readStatusLine();
+		firstByteNanos = System.nanoTime() - start;
+		metrics.recordPhase(ServerMetrics.FIRST_BYTE, firstByteNanos);
+		if(Log.isDebug())
+			Log.debug(myCounter + " | Response from " + target.getKey() + ": " + line);
+		StringBuilder head, clientHead;
+		HashMap<String, String> responseHeaders;
+		boolean http11 = "HTTP/1.1".equals(request.getVersion());
+		while(true) {
+			head = new StringBuilder();
+			clientHead = new StringBuilder();
+			responseHeaders = new HashMap<String, String>();
+			clientHead.append(line + CRLF);
+			head.append(line + CRLF);
+			while((line = readLine()) != null && !line.isEmpty()) {
+				// HTTP/1.0 clients do not know chunks, they get the body without them
+				if(statusCode == 101 || (!isHopByHop(line) && (http11 || !isTransferEncoding(line))))
+					clientHead.append(line + CRLF);
+				checkResponseHeader(line, responseHeaders, head);
 			}
+			
+			// Interim responses (100 Continue) are followed by the real response
+			if(statusCode < 100 || statusCode >= 200 || statusCode == 101)
+				break;
+			clientOutputStream.write(ResponseWriter.encode(clientHead + CRLF));
+			clientOutputStream.flush();
+			line = readStatusLine();
 		}
-		clientOutputStream.writeBytes(CRLF);
-		int bufferSize = 0;
+		
+		long bodyLength = 0;
 		
 		try {
 			if(contentLength != null)
-				bufferSize = Integer.parseInt(contentLength);
+				bodyLength = Long.parseLong(contentLength);
 		} catch (NumberFormatException e) {
-			System.out.println(myCounter + " | ERROR: Failed to parse Content-Length header.");
 			throw new NumberFormatException(myCounter + " | ERROR: Content-Length was not a number");
 		}
-		if(bufferSize < 0) {
+		if(bodyLength < 0) {
 			throw new NumberFormatException(myCounter + " | ERROR: Content-Length was invalid number");
 		}
-		if(chunked) {
-			System.out.println(myCounter + " | ### Chunked body ###");
-			readChunked(clientOutputStream);
-		} else if (contentLength != null){
-			System.out.println(myCounter + " | ### Body has content length ###");
-			byte buffer[] = new byte[bufferSize];
-			try {
-				input.readFully(buffer, 0, bufferSize);
-			} catch(EOFException e) {
-				// Do nothing
-				System.out.println(myCounter + " | ### EOF have been reached! ###");
-			}
-			clientOutputStream.write(buffer);
-			
+		
+		// The compressed body is sent chunked, so only HTTP/1.1 clients get it
+		compressing = compressor != null && hasBody() && http11
+				&& ResponseCompressor.acceptsGzip(request)
+				&& shouldCompress(statusCode, head.toString(), contentLength != null ? bodyLength : -1);
+		// A body that ends when the destination host closes is sent chunked to HTTP/1.1 clients,
+		// other clients can only find its end when the connection is closed. A chunked body is
+		// decoded and chunked again, so the cache gets it without the chunks.
+		boolean unframed = hasBody() && !chunked && contentLength == null;
+		boolean reframing = unframed && http11 && !compressing;
+		boolean rechunking = hasBody() && chunked && http11 && !compressing;
+		clientClose = !keepAlive || ((unframed || (hasBody() && chunked)) && !http11) || statusCode == 101;
+		String connection = connectionHeader(clientClose);
+		
+		ChunkedEncoder chunks = null;
+		GzipEncoder gzip = null;
+		OutputStream body = clientOutputStream;
+		if(compressing) {
+			clientOutputStream.write(ResponseWriter.encode(ResponseCompressor.encodeHead(clientHead.toString(),
+					"Transfer-Encoding: chunked" + CRLF) + connection + CRLF));
+			chunks = new ChunkedEncoder(clientOutputStream, buffers.take());
+			gzip = compressor.open(chunks);
+			body = gzip;
 		} else {
-			// Read until end of stream
-			System.out.println(myCounter + " | ### Unkown body length ###");
-			byte buffer[] = new byte[BUFFER_SIZE];
-			int len, totalRead = 0;
-			while ((len = input.read(buffer, 0, BUFFER_SIZE)) != -1) {
+			// A chunked response already has its Transfer-Encoding header
+			clientOutputStream.write(ResponseWriter.encode(clientHead + (reframing ? "Transfer-Encoding: chunked" + CRLF : "")
+					+ varyHeader(head.toString(), contentLength != null ? bodyLength : -1) + connection + CRLF));
+			if(reframing || rechunking) {
+				chunks = new ChunkedEncoder(clientOutputStream, buffers.take());
+				body = chunks;
+			}
+		}
+		
+		long expires = cacheKey != null ? ResponseCache.expirationTime(statusCode, responseHeaders) : 0;
+		CaptureOutputStream capture = null;
+		if(expires > 0 && (chunked || contentLength != null)) {
+			capture = new CaptureOutputStream(body, cache.getMaxEntrySize());
+			body = capture;
+		}
+		
+		boolean complete = true;
+		List<String> trailers = null;
+		long relayStart = System.nanoTime();
+		try {
+			if(!hasBody()) {
+				// No body
+			} else if(chunked) {
+				trailers = readChunked(body);
+			} else if (contentLength != null){
+				complete = relayBody(body, bodyLength);
+				// The length was replaced by the chunked framing, the client must not take a cut off body for all of it
+				if(!complete && compressing)
+					throw new IOException("The destination host closed the connection in the middle of the body");
+				// The client waits for the rest of the length, or reads the next response as part of it
+				if(!complete)
+					clientClose = true;
+			} else {
+				// Read until end of stream
+				long totalRead = relayUntilEnd(body);
+				if(Log.isDebug())
+					Log.debug(myCounter + " | Finished reading after " + totalRead + " bytes");
+				complete = false;
+			}
+			if(compressing)
+				gzip.finish();
+			if(chunks != null)
+				chunks.finish(trailers);
+		} finally {
+			if(compressing)
+				compressor.close(gzip, false);
+			if(chunks != null)
+				buffers.give(chunks.getBuffer());
+		}
+		clientOutputStream.flush();
+		metrics.recordPhase(ServerMetrics.RELAY, System.nanoTime() - relayStart);
+		reusable = complete && !responseClose;
+		
+		// Only a complete response with a known length can be cached
+		if(capture != null && complete && capture.getCopy() != null) {
+			byte[] copy = capture.getCopy();
+			HashMap<String, String> vary = ResponseCache.varyValues(responseHeaders.get("vary"), request.getHeaders());
+			// The decoded body of a chunked response is cached with a length instead of the chunks
+			String cachedHead = chunked ? ResponseCompressor.replaceFraming(head.toString(),
+					"Content-Length: " + copy.length + CRLF) : head.toString();
+			cache.put(new CacheEntry(cacheKey, cachedHead, copy, expires, vary));
+		}
+		if(sharing != null) {
+			sharing.finish(true, statusCode, clientClose);
+			recorder.checkClient();
+		}
+	}
+
+	/**
+	 * Relay a body of a known length through one pooled buffer
+	 * 
+	 * @return False if the destination host closed the connection before the whole body was read
+	 */
+	private boolean relayBody(OutputStream clientOutputStream, long length) throws IOException {
+		byte[] buffer = buffers.take();
+		try {
+			long remaining = length;
+			while(remaining > 0) {
+				int len = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+				if(len == -1) {
+					if(Log.isDebug())
+						Log.debug(myCounter + " | The destination host closed the connection in the middle of the body");
+					return false;
+				}
+				clientOutputStream.write(buffer, 0, len);
+				remaining -= len;
+				flushIfIdle(clientOutputStream);
+			}
+			return true;
+		} finally {
+			buffers.give(buffer);
+		}
+	}
+	
+	/**
+	 * Relay a body that ends when the destination host closes the connection
+	 * 
+	 * @return The number of bytes relayed
+	 */
+	private long relayUntilEnd(OutputStream clientOutputStream) throws IOException {
+		byte[] buffer = buffers.take();
+		try {
+			long totalRead = 0;
+			int len;
+			while ((len = input.read(buffer, 0, buffer.length)) != -1) {
 				totalRead += len;
-				System.out.println(myCounter + " | DEBUG PRINT: Read total of " + len + " bytes");
 				clientOutputStream.write(buffer, 0, len);
+				flushIfIdle(clientOutputStream);
 			}
-			System.out.println(myCounter + " | DEBUG PRINT: Finished reading after " + totalRead + " bytes");
+			return totalRead;
+		} finally {
+			buffers.give(buffer);
 		}
-		clientOutputStream.flush();
-		System.out.println(myCounter + " | ### Finished getting response from destination host and sending to client ###");
 	}
 
-	private void readChunked(DataOutputStream clientOutputStream) throws IOException {
-		String chunkSizeHexa = readLine();
-		int chunkSize = Integer.parseInt(chunkSizeHexa, 16);
-		while(chunkSize != 0) {
-			System.out.println(myCounter + " | ### Chunk size before adding 2 = " + chunkSize);
-			chunkSize += 2; // +2 for the CRLF
-			byte buffer[] = new byte[chunkSize]; 
-			input.readFully(buffer, 0, chunkSize);
-			clientOutputStream.writeBytes(chunkSizeHexa + CRLF);
-			clientOutputStream.write(buffer);
-			chunkSizeHexa = readLine();
-			chunkSize = Integer.parseInt(chunkSizeHexa, 16);
-		}
-		clientOutputStream.writeBytes("0" + CRLF + CRLF);
+	/**
+	 * The body is held back by the client buffer and the encoders, it is sent when the destination
+	 * host has nothing more to read right now so streamed responses are not delayed
+	 */
+	private void flushIfIdle(OutputStream clientOutputStream) throws IOException {
+		if(input.available() == 0)
+			clientOutputStream.flush();
 	}
 
-	private boolean checkForContentLengthOrChunked(String line) {
-		if(line.toLowerCase().contains("content-length")) {
-			contentLength = line.split(": ")[1];
-			return true;
-		} else if (line.toLowerCase().contains("transfer-encoding") && line.toLowerCase().contains("chunked")) {
+	/**
+	 * Relay the decoded bytes of a chunked body, the stream frames them on its own (or
+	 * not at all for an HTTP/1.0 client). A write is flushed when the destination host
+	 * has nothing more to read right now so streamed responses are not held back.
+	 * 
+	 * @return The trailer lines of the body, or null
+	 */
+	private List<String> readChunked(OutputStream body) throws IOException {
+		ChunkedDecoder decoder = new ChunkedDecoder(input);
+		byte[] buffer = buffers.take();
+		try {
+			int len;
+			while((len = decoder.read(buffer, 0, buffer.length)) != -1) {
+				body.write(buffer, 0, len);
+				if(input.available() == 0)
+					body.flush();
+			}
+			return decoder.getTrailers();
+		} finally {
+			buffers.give(buffer);
+		}
+	}
+
+	/**
+	 * Read the status line of the response.
+	 * A pooled connection may have been closed by the destination host right before it
+	 * was used, in that case the request is sent again on a new connection.
+	 */
+	private String readStatusLine() throws IOException {
+		String line;
+		try {
+			line = readLine();
+		} catch (IOException e) {
+			// A timeout is the destination host being slow, not a pooled connection that was closed
+			// A streamed body is gone once it was sent
+			if(!destination.isReused() || !isIdempotent(request.getMethod()) || request.getBody() != null
+					|| e instanceof SocketTimeoutException)
+				throw e;
+			if(Log.isDebug())
+				Log.debug(myCounter + " | Pooled connection was closed, retrying on a new one");
+			destination.close();
+			openConnection();
+			sendRequest();
+			line = readLine();
+		}
+		
+		statusCode = parseStatusCode(line);
+		// HTTP/1.0 responses close the connection unless they say otherwise
+		responseClose = !line.split(" ", 2)[0].equalsIgnoreCase("HTTP/1.1");
+		return line;
+	}
+	
+	/**
+	 * Only these requests may be sent again when it is not known whether the host got them (RFC 7231 section 4.2.2)
+	 */
+	private static boolean isIdempotent(Method method) {
+		return method == Method.GET || method == Method.HEAD || method == Method.OPTIONS || method == Method.TRACE;
+	}
+	
+	/**
+	 * @return The code of a status line (HTTP/1.1 200 OK), 0 if it has none
+	 */
+	private static int parseStatusCode(String line) {
+		String[] parts = line.split(" ");
+		try {
+			return parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+	
+	private boolean hasBody() {
+		return request.getMethod() != Method.HEAD && statusCode != 204 && statusCode != 304;
+	}
+
+	private static boolean isTransferEncoding(String line) {
+		int colon = line.indexOf(':');
+		return colon >= 0 && line.substring(0, colon).trim().equalsIgnoreCase("transfer-encoding");
+	}
+	
+	/**
+	 * @param close True if the client connection is closed after the response
+	 * @return The Connection header line for the client, empty when the default of its version applies
+	 */
+	private String connectionHeader(boolean close) {
+		if(close)
+			return "Connection: close" + CRLF;
+		return "HTTP/1.1".equals(request.getVersion()) ? "" : "Connection: keep-alive" + CRLF;
+	}
+	
+	/**
+	 * @return True for the headers that only concern the connection to the destination host
+	 */
+	static boolean isHopByHop(String line) {
+		int colon = line.indexOf(':');
+		if(colon < 0)
+			return false;
+		String name = line.substring(0, colon).trim();
+		return name.equalsIgnoreCase("connection") || name.equalsIgnoreCase("keep-alive")
+				|| name.equalsIgnoreCase("proxy-connection");
+	}
+	
+	/**
+	 * @param keepAlive False if the client connection is closed after the response, the
+	 * response tells the client so
+	 */
+	public void setKeepAlive(boolean keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+	
+	/**
+	 * @return True if the client connection has to be closed after the response, its end
+	 * can not be found otherwise
+	 */
+	public boolean closesClient() {
+		return clientClose;
+	}
+	
+	/**
+	 * Check a response header line for the framing of the body and keep it
+	 * for the cache (hop by hop headers are not kept in the cached head)
+	 */
+	private void checkResponseHeader(String line, HashMap<String, String> responseHeaders, StringBuilder head) {
+		int colon = line.indexOf(':');
+		if(colon < 0)
+			return;
+		String name = line.substring(0, colon).trim();
+		String value = line.substring(colon + 1).trim();
+		String lowerName = name.toLowerCase();
+		String previous = responseHeaders.get(lowerName);
+		responseHeaders.put(lowerName, previous == null ? value : previous + ", " + value);
+		if(!lowerName.equals("connection") && !lowerName.equals("keep-alive") && !lowerName.equals("age"))
+			head.append(line + CRLF);
+		
+		if(name.equalsIgnoreCase("content-length")) {
+			contentLength = value;
+		} else if (name.equalsIgnoreCase("transfer-encoding") && value.toLowerCase().contains("chunked")) {
 			chunked = true;
-			return true;
+		} else if (name.equalsIgnoreCase("connection")) {
+			if(value.equalsIgnoreCase("close"))
+				responseClose = true;
+			else if(value.equalsIgnoreCase("keep-alive"))
+				responseClose = false;
 		}
-		return false;
 	}
 
+	/**
+	 * Release the connection to the destination host. It goes back to the pool only
+	 * if exactly one complete response was read from it.
+	 */
 	public void closeConnection() {
-		try {
-			if(input != null)
-				input.close();
-			if(output != null) {
+		if(destination != null) {
+			try {
 				output.flush();
-				output.close();
+			} catch (IOException e) {
+				reusable = false;
 			}
-			if(destination != null)
+			if(reusable)
+				pool.release(destination);
+			else
 				destination.close();
-		} catch (IOException e) {
-			// Noting to do
-		}		
+			destination = null;
+		}
+		if(fetching) {
+			fetching = false;
+			cache.endFetch(cacheKey);
+		}
+		if(sharing != null) {
+			sharing.finish(false, 0, true);
+			sharing = null;
+		}
+		if(hostAcquired) {
+			hostAcquired = false;
+			limiter.releaseHost(target.getKey());
+		}
+	}
+	
+	/**
+	 * @return The socket to the destination host after connectToHost, used by a tunnel
+	 */
+	Socket getDestinationSocket() {
+		return destination != null ? destination.getSocket() : null;
+	}
+	
+	RequestTarget getTarget() {
+		return target;
+	}
+	
+	/**
+	 * @return The status code sent to the client, from the destination host or from the cache
+	 */
+	public int getStatusCode() {
+		return statusCode;
+	}
+	
+	public boolean isCacheHit() {
+		return cacheHit;
+	}
+	
+	/**
+	 * @return Nanoseconds it took to get a connection to the destination host, -1 if none was used
+	 */
+	public long getConnectNanos() {
+		return connectNanos;
+	}
+	
+	/**
+	 * @return Nanoseconds from sending the request until the status line arrived, -1 if no request was sent
+	 */
+	public long getFirstByteNanos() {
+		return firstByteNanos;
 	}
 	
 	private String readLine() throws IOException {
-		StringBuilder msg = new StringBuilder();
-		char c;
-		while ((c = (char) input.readByte()) >= 0) {
-			switch(c) {
-			case '\r':
-				break;
-			case '\n':
-				return msg.toString();
-			default:
-				msg.append(c);
-			}
-		}
-		return msg.toString();
+		String line = input.readLine(MAX_LINE);
+		if(line == null)
+			throw new EOFException("The destination host closed the connection in the middle of the response head");
+		return line;
 	}
 
 }
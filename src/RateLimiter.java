@@ -0,0 +1,169 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Limits how fast a client may send requests and how fast responses are sent to it.
+ * Every client IP gets a {@link TokenBucket} for its requests and one for the bytes of
+ * all its connections, every connection may have a bucket for its own bytes as well.
+ * The buckets of the clients are kept in shards of a map. A bucket that is full again
+ * behaves like a new one, so a sweeper removes those, one shard per run, and the map
+ * only holds the clients that were active lately.
+ */
+public class RateLimiter {
+
+	private static final int SHARDS = 16;
+	private static final int MAX_SLICE = 64 * 1024;
+
+	private long requestRate, requestBurst;
+	private long clientByteRate, connectionByteRate, byteBurst;
+	private ArrayList<ConcurrentHashMap<String, Client>> shards;
+	private int nextShard = 0;
+
+	/**
+	 * A rate of 0 turns its limit off
+	 *
+	 * @param requestRate Requests per second of a client
+	 * @param requestBurst Requests a client may send at once after it was quiet
+	 * @param clientByteRate Bytes per second sent to all the connections of a client
+	 * @param connectionByteRate Bytes per second sent to a connection
+	 * @param byteBurst Bytes that may be sent at once after a pause
+	 * @param sweepInterval Milliseconds between the removals of the clients that are back to full buckets
+	 */
+	public RateLimiter(long requestRate, long requestBurst, long clientByteRate, long connectionByteRate,
+			long byteBurst, long sweepInterval) {
+		this.requestRate = requestRate;
+		this.requestBurst = requestBurst;
+		this.clientByteRate = clientByteRate;
+		this.connectionByteRate = connectionByteRate;
+		this.byteBurst = byteBurst;
+		shards = new ArrayList<ConcurrentHashMap<String, Client>>(SHARDS);
+		for(int i = 0; i < SHARDS; i++) {
+			shards.add(new ConcurrentHashMap<String, Client>());
+		}
+
+		if(sweepInterval > 0 && (requestRate > 0 || clientByteRate > 0)) {
+			ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "rate-limit-sweeper");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			long delay = Math.max(1, sweepInterval / SHARDS);
+			sweeper.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					sweep();
+				}
+			}, delay, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Count a request of the client
+	 *
+	 * @return False if the client sent too many requests, it should get 429
+	 */
+	public boolean allowRequest(String clientAddress) {
+		if(requestRate <= 0)
+			return true;
+		long now = System.nanoTime();
+		return client(clientAddress, now).requests.tryTake(1, now);
+	}
+
+	/**
+	 * @return The bandwidth of a new connection of the client, null if the bytes sent to it are not limited
+	 */
+	public Bandwidth newBandwidth(String clientAddress) {
+		if(clientByteRate <= 0 && connectionByteRate <= 0)
+			return null;
+		return new Bandwidth(clientAddress,
+				connectionByteRate > 0 ? new TokenBucket(connectionByteRate, byteBurst) : null);
+	}
+
+	/**
+	 * @return The most bytes that should be written at once, a larger write is split so it can be paced
+	 */
+	public int getSliceSize() {
+		return (int) Math.max(1, Math.min(byteBurst, MAX_SLICE));
+	}
+
+	/**
+	 * @param now The time of the caller, a new client is full from then on
+	 */
+	private Client client(String clientAddress, long now) {
+		ConcurrentHashMap<String, Client> shard = shards.get((clientAddress.hashCode() & 0x7fffffff) % SHARDS);
+		Client client = shard.get(clientAddress);
+		if(client == null) {
+			client = new Client();
+			if(requestRate > 0)
+				client.requests = new TokenBucket(requestRate, requestBurst, now);
+			if(clientByteRate > 0)
+				client.bytes = new TokenBucket(clientByteRate, byteBurst, now);
+			Client previous = shard.putIfAbsent(clientAddress, client);
+			if(previous != null)
+				client = previous;
+		}
+		return client;
+	}
+
+	/**
+	 * Remove the clients of the next shard whose buckets are full. A thread that got
+	 * such a client just before may still take from it, the client then starts over with
+	 * a full bucket once more, which a client that was quiet long enough had anyway.
+	 */
+	private void sweep() {
+		ConcurrentHashMap<String, Client> shard = shards.get(nextShard);
+		nextShard = (nextShard + 1) % SHARDS;
+		long now = System.nanoTime();
+		for(Iterator<Client> iterator = shard.values().iterator(); iterator.hasNext();) {
+			Client client = iterator.next();
+			if((client.requests == null || client.requests.isFull(now))
+					&& (client.bytes == null || client.bytes.isFull(now)))
+				iterator.remove();
+		}
+	}
+
+	private static class Client {
+
+		private TokenBucket requests, bytes;
+	}
+
+	/**
+	 * The byte limits of a connection, its own and the ones of its client
+	 */
+	public class Bandwidth {
+
+		private String clientAddress;
+		private TokenBucket connection;
+
+		private Bandwidth(String clientAddress, TokenBucket connection) {
+			this.clientAddress = clientAddress;
+			this.connection = connection;
+		}
+
+		/**
+		 * Count bytes that are sent to the connection
+		 *
+		 * @param now System.nanoTime()
+		 * @return The nanoseconds to wait before sending more, 0 to go on
+		 */
+		public long take(long bytes, long now) {
+			long wait = 0;
+			if(connection != null)
+				wait = connection.take(bytes, now);
+			if(clientByteRate > 0) {
+				// Looked up every time, the client may have been swept while the connection was quiet
+				wait = Math.max(wait, client(clientAddress, now).bytes.take(bytes, now));
+			}
+			return wait;
+		}
+	}
+}
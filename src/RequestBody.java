@@ -0,0 +1,93 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+
+/**
+ * The body of a client request in the blocking engine. It is not collected in memory:
+ * it is copied from the input buffer of the connection to the destination host while
+ * the client sends it, a buffer at a time.
+ * A Content-Length body is copied byte for byte. A chunked body is copied as it is,
+ * a {@link ChunkedScanner} finds where it ends. Whatever the client sent after the
+ * body stays in the buffer for the next request.
+ */
+public class RequestBody {
+
+	private InputStream input;
+	private ByteBuffer buffer;
+	private long remaining;
+	private ChunkedScanner scanner;
+	private long received = 0;
+
+	/**
+	 * @param input The client stream
+	 * @param buffer The input buffer of the connection, the body starts at its position
+	 * @param length The length of the body, or -1 for a chunked body
+	 */
+	public RequestBody(InputStream input, ByteBuffer buffer, long length) {
+		this.input = input;
+		this.buffer = buffer;
+		if(length < 0)
+			scanner = new ChunkedScanner();
+		else
+			remaining = length;
+	}
+
+	/**
+	 * Copy the rest of the body to the destination host
+	 */
+	public void writeTo(OutputStream output) throws IOException {
+		while(!isComplete()) {
+			if(!buffer.hasRemaining())
+				fill();
+			int start = buffer.position();
+			int len;
+			if(scanner != null)
+				len = scanner.scan(buffer, start, buffer.limit());
+			else
+				len = (int) Math.min(remaining, buffer.remaining());
+			output.write(buffer.array(), buffer.arrayOffset() + start, len);
+			buffer.position(start + len);
+			remaining -= scanner == null ? len : 0;
+			received += len;
+		}
+		output.flush();
+	}
+
+	/**
+	 * @return True if the whole body was read from the client
+	 */
+	public boolean isComplete() {
+		return scanner != null ? scanner.isDone() : remaining == 0;
+	}
+
+	/**
+	 * @return True if part of the body was already read, it can not be sent again then
+	 */
+	public boolean isStarted() {
+		return received > 0;
+	}
+
+	public boolean isChunked() {
+		return scanner != null;
+	}
+
+	/**
+	 * @return Bytes of the body read so far
+	 */
+	public long getReceived() {
+		return received;
+	}
+
+	private void fill() throws IOException {
+		buffer.clear();
+		int len = input.read(buffer.array(), buffer.arrayOffset(), buffer.capacity());
+		if(len == -1) {
+			buffer.limit(0);
+			throw new EOFException("Connection closed in the middle of the request body");
+		}
+		buffer.limit(len);
+	}
+}
@@ -0,0 +1,420 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Collapses identical requests that are in flight at the same time into one fetch from
+ * the destination host. The first request fetches, and the bytes it sends to its client
+ * are recorded. Requests with the same key that come meanwhile follow it and get the
+ * same bytes as they arrive, whether the response can be cached or not.
+ * A response can be followed from its start only while it is shorter than maxShared.
+ * The leading request waits for a follower that falls further behind than that, and
+ * a follower that does not catch up in time loses its response, so a slow client
+ * neither makes the proxy hold a whole body in memory nor holds the others back long.
+ * Until a request follows, only the first bytes of a response are kept, and the bytes
+ * kept by all the fetches together are bounded by maxHeld. A follower that would pass
+ * that bound is dropped, and fetches on its own if it got nothing yet.
+ */
+public class RequestCoalescer {
+
+	// Responses that depend on who asks, or on what the client already has, are not shared
+	private static final String[] PRIVATE_HEADERS = { "authorization", "proxy-authorization", "cookie",
+			"range", "if-range", "if-match", "if-none-match", "if-modified-since", "if-unmodified-since" };
+	// Requests must agree on the headers that select a variant of the response
+	private static final String[] VARIANT_HEADERS = { "accept", "accept-encoding", "accept-language" };
+	private static final long MAX_FOLLOWER_STALL = 2000;
+	// Bytes of a response that are kept while nobody follows it, later requests may still join
+	private static final long HEAD_WINDOW = 16 * 1024;
+
+	private long maxShared, maxHeld;
+	private AtomicLong held = new AtomicLong();
+	private ConcurrentHashMap<String, Fetch> inFlight = new ConcurrentHashMap<String, Fetch>();
+
+	/**
+	 * @param maxShared Bytes of a response that are kept for its followers
+	 * @param maxHeld Bytes kept by all the fetches together
+	 */
+	public RequestCoalescer(long maxShared, long maxHeld) {
+		this.maxShared = maxShared;
+		this.maxHeld = maxHeld;
+	}
+
+	/**
+	 * The key holds everything the bytes sent to the client depend on: the target, the
+	 * variant headers, and the version and persistence of the client connection, which
+	 * decide the framing and the Connection header of the response.
+	 *
+	 * @param keepAlive False if the client connection is closed after the response
+	 * @return The key of the request, or null if its response can not be shared
+	 */
+	public static String keyOf(HTTPRequest request, RequestTarget target, boolean keepAlive) {
+		Method method = request.getMethod();
+		if((method != Method.GET && method != Method.HEAD) || request.getBody() != null)
+			return null;
+		HashMap<String, String> headers = request.getHeaders();
+		for(String name : PRIVATE_HEADERS) {
+			if(headers.containsKey(name))
+				return null;
+		}
+		StringBuilder key = new StringBuilder();
+		key.append(method).append(' ').append(target.getKey()).append(target.getPath())
+				.append(' ').append(request.getVersion()).append(keepAlive ? " keep-alive" : " close");
+		for(String name : VARIANT_HEADERS) {
+			String value = headers.get(name);
+			key.append('\n').append(value != null ? value : "");
+		}
+		return key.toString();
+	}
+
+	/**
+	 * @return True if a request with the key is being fetched
+	 */
+	public boolean isFetching(String key) {
+		return key != null && inFlight.containsKey(key);
+	}
+
+	/**
+	 * Become the request that fetches the key
+	 *
+	 * @return The fetch to record the response in, or null if another request fetches the key
+	 */
+	public Fetch lead(String key) {
+		Fetch fetch = new Fetch(key);
+		return inFlight.putIfAbsent(key, fetch) == null ? fetch : null;
+	}
+
+	/**
+	 * Follow the request that fetches the key
+	 *
+	 * @return null if no request fetches it, or if its response can not be followed from the start anymore
+	 */
+	public Follower follow(String key) {
+		Fetch fetch = inFlight.get(key);
+		return fetch != null ? fetch.follow() : null;
+	}
+
+	/**
+	 * The response of a leading request, recorded in the chunks it was written in
+	 */
+	public class Fetch {
+
+		private String key;
+		private ArrayList<byte[]> chunks = new ArrayList<byte[]>();
+		// The number of the first chunk in the list, the ones before it were read by every follower
+		private long firstChunk = 0;
+		private long length = 0;
+		private ArrayList<Follower> followers = new ArrayList<Follower>();
+		// Followers may join while the response is kept from its start
+		private boolean open = true;
+		private boolean done = false, complete = false;
+		private int status;
+		private boolean closesClient;
+
+		private Fetch(String key) {
+			this.key = key;
+		}
+
+		/**
+		 * @param client The stream of the client of the leading request
+		 * @return A stream that writes to the client and records for the followers
+		 */
+		public Recorder record(OutputStream client) {
+			return new Recorder(this, client);
+		}
+
+		/**
+		 * End the response, the followers get the rest of it and are told how it ended
+		 *
+		 * @param complete False if the response failed, followers that got nothing yet may fetch it on their own
+		 * @param status The status code that was sent
+		 * @param closesClient True if the client connection has to be closed after the response
+		 */
+		public synchronized void finish(boolean complete, int status, boolean closesClient) {
+			if(done)
+				return;
+			done = true;
+			this.complete = complete;
+			this.status = status;
+			this.closesClient = closesClient;
+			close();
+			trim();
+			notifyAll();
+		}
+
+		private synchronized Follower follow() {
+			if(!open)
+				return null;
+			Follower follower = new Follower(this);
+			followers.add(follower);
+			return follower;
+		}
+
+		private synchronized void add(byte[] b, int off, int len) throws InterruptedIOException {
+			if(done)
+				return;
+			length += len;
+			if(open && (length > maxShared || (followers.isEmpty() && length > HEAD_WINDOW)))
+				close();
+			if(!open && followers.isEmpty()) {
+				trim();
+				return;
+			}
+			if(!reserve(len)) {
+				// Every follower needs these bytes
+				close();
+				for(Follower follower : followers) {
+					follower.dropped = true;
+				}
+				followers.clear();
+				trim();
+				notifyAll();
+				return;
+			}
+			chunks.add(Arrays.copyOfRange(b, off, off + len));
+			notifyAll();
+			long deadline = System.currentTimeMillis() + MAX_FOLLOWER_STALL;
+			while(isBehind(false)) {
+				long wait = deadline - System.currentTimeMillis();
+				if(wait <= 0) {
+					isBehind(true);
+					notifyAll();
+					break;
+				}
+				try {
+					wait(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for a follower");
+				}
+			}
+			trim();
+		}
+
+		/**
+		 * @param drop True to drop the followers that are behind
+		 * @return True if a follower has more than maxShared bytes left to read
+		 */
+		private boolean isBehind(boolean drop) {
+			boolean behind = false;
+			for(Iterator<Follower> iterator = followers.iterator(); iterator.hasNext();) {
+				Follower follower = iterator.next();
+				if(length - follower.position > maxShared) {
+					behind = true;
+					if(drop) {
+						follower.dropped = true;
+						iterator.remove();
+					}
+				}
+			}
+			return behind;
+		}
+
+		private synchronized boolean hasFollowers() {
+			return !followers.isEmpty();
+		}
+
+		/**
+		 * No more followers can join, later requests with the key fetch again
+		 */
+		private void close() {
+			open = false;
+			inFlight.remove(key, this);
+		}
+
+		/**
+		 * Count the bytes of a chunk in the bytes kept by all the fetches
+		 *
+		 * @return False if there is no room for them
+		 */
+		private boolean reserve(long bytes) {
+			while(true) {
+				long current = held.get();
+				if(current + bytes > maxHeld)
+					return false;
+				if(held.compareAndSet(current, current + bytes))
+					return true;
+			}
+		}
+
+		/**
+		 * Forget the chunks that every follower has read
+		 */
+		private void trim() {
+			if(open)
+				return;
+			long read = firstChunk + chunks.size();
+			for(Follower follower : followers) {
+				read = Math.min(read, follower.next);
+			}
+			int count = (int) (read - firstChunk);
+			List<byte[]> trimmed = chunks.subList(0, count);
+			long bytes = 0;
+			for(byte[] chunk : trimmed) {
+				bytes += chunk.length;
+			}
+			trimmed.clear();
+			held.addAndGet(-bytes);
+			firstChunk = read;
+		}
+	}
+
+	/**
+	 * A request that gets the response of a {@link Fetch}
+	 */
+	public class Follower {
+
+		private Fetch fetch;
+		private long next = 0;
+		private long position = 0;
+		private boolean dropped = false;
+
+		private Follower(Fetch fetch) {
+			this.fetch = fetch;
+		}
+
+		/**
+		 * Wait for the next bytes of the response
+		 *
+		 * @return The bytes, or null after the end of the response, or if it was lost before any of it was read
+		 * @throws IOException If the follower lost the response in the middle
+		 */
+		public byte[] next() throws IOException {
+			synchronized(fetch) {
+				while(!dropped && !fetch.done && next == fetch.firstChunk + fetch.chunks.size()) {
+					try {
+						fetch.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted while waiting for the shared response");
+					}
+				}
+				if(dropped) {
+					// Nothing was sent yet, the request can still be fetched on its own
+					if(position == 0)
+						return null;
+					throw new IOException("Lost the shared response in the middle");
+				}
+				if(next == fetch.firstChunk + fetch.chunks.size())
+					return null;
+				byte[] chunk = fetch.chunks.get((int) (next - fetch.firstChunk));
+				next++;
+				position += chunk.length;
+				fetch.trim();
+				// The leading request may wait for this follower
+				fetch.notifyAll();
+				return chunk;
+			}
+		}
+
+		/**
+		 * @return True if more bytes can be read without waiting
+		 */
+		public boolean hasNext() {
+			synchronized(fetch) {
+				return !dropped && next < fetch.firstChunk + fetch.chunks.size();
+			}
+		}
+
+		/**
+		 * Stop following, the chunks are not kept for this follower anymore
+		 */
+		public void close() {
+			synchronized(fetch) {
+				fetch.followers.remove(this);
+				fetch.trim();
+				fetch.notifyAll();
+			}
+		}
+
+		/**
+		 * @return True if the leading request sent the whole response, valid after {@link #next()} returned null
+		 */
+		public boolean isComplete() {
+			synchronized(fetch) {
+				return !dropped && fetch.complete;
+			}
+		}
+
+		public long getReceived() {
+			return position;
+		}
+
+		public int getStatus() {
+			synchronized(fetch) {
+				return fetch.status;
+			}
+		}
+
+		public boolean closesClient() {
+			synchronized(fetch) {
+				return fetch.closesClient;
+			}
+		}
+	}
+
+	/**
+	 * The stream of the leading request. If its client goes away while others follow,
+	 * the response is still read for them and the failure is reported at the end.
+	 */
+	public static class Recorder extends OutputStream {
+
+		private Fetch fetch;
+		private OutputStream client;
+		private IOException clientFailure;
+
+		private Recorder(Fetch fetch, OutputStream client) {
+			this.fetch = fetch;
+			this.client = client;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			fetch.add(b, off, len);
+			if(clientFailure != null)
+				return;
+			try {
+				client.write(b, off, len);
+			} catch (IOException e) {
+				failed(e);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if(clientFailure != null)
+				return;
+			try {
+				client.flush();
+			} catch (IOException e) {
+				failed(e);
+			}
+		}
+
+		/**
+		 * @throws IOException If the client of the leading request failed
+		 */
+		public void checkClient() throws IOException {
+			if(clientFailure != null)
+				throw clientFailure;
+		}
+
+		private void failed(IOException e) throws IOException {
+			if(!fetch.hasFollowers())
+				throw e;
+			clientFailure = e;
+		}
+	}
+}
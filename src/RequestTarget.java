@@ -0,0 +1,166 @@
+/**
+ * Where a proxied request goes: the destination host, its port and the path to ask for.
+ * The request target is split by hand in one pass. Absolute URIs (http://host:port/path),
+ * IPv6 literals in brackets, origin-form paths together with the Host header, and the
+ * host:port of a CONNECT request are understood.
+ * The host is lower case, because host names are not case sensitive. The path is kept as
+ * the client sent it, because paths are case sensitive.
+ * The key (host:port) names the destination for the connection pool, the connection
+ * limits and the cache.
+ */
+public class RequestTarget {
+
+	public static final int DEFAULT_PORT = 80;
+	private static final String HTTP_SCHEME = "http://";
+
+	private String host;
+	private int port;
+	private String authority;
+	private String path;
+	private String key;
+
+	private RequestTarget(String host, int port, String path) {
+		this.host = host;
+		this.port = port;
+		this.path = path;
+		String hostPart = host.indexOf(':') != -1 ? "[" + host + "]" : host;
+		authority = port == DEFAULT_PORT ? hostPart : hostPart + ":" + port;
+		key = hostPart + ":" + port;
+	}
+
+	/**
+	 * @param target The request target from the request line
+	 * @param hostHeader The Host header, used when the target is only a path
+	 * @return The target, or null if the destination can not be found in them
+	 */
+	public static RequestTarget parse(String target, String hostHeader) {
+		if(target == null || target.isEmpty())
+			return null;
+
+		String authority, path;
+		if(target.charAt(0) == '/') {
+			// Origin form: GET /path HTTP/1.1 with Host: example.com
+			if(hostHeader == null)
+				return null;
+			authority = hostHeader.trim();
+			path = target;
+		} else if(target.regionMatches(true, 0, HTTP_SCHEME, 0, HTTP_SCHEME.length())) {
+			int start = HTTP_SCHEME.length();
+			int end = start;
+			while(end < target.length() && target.charAt(end) != '/' && target.charAt(end) != '?'
+					&& target.charAt(end) != '#')
+				end++;
+			authority = target.substring(start, end);
+			if(end == target.length())
+				path = "/";
+			else if(target.charAt(end) != '/')
+				path = "/" + target.substring(end); // A query or a fragment right after the host
+			else
+				path = target.substring(end);
+		} else {
+			return null;
+		}
+
+		// The fragment is never sent to a server
+		int fragment = path.indexOf('#');
+		if(fragment != -1)
+			path = path.substring(0, fragment);
+		return parseAuthority(authority, path);
+	}
+
+	/**
+	 * @param target The target of a CONNECT request, host:port
+	 * @return The target without a path, or null if the port is missing or wrong
+	 */
+	public static RequestTarget parseAuthorityForm(String target) {
+		if(target == null || target.isEmpty() || target.indexOf('@') != -1)
+			return null;
+		int colon = target.lastIndexOf(':');
+		if(colon == -1 || colon == target.length() - 1 || target.charAt(target.length() - 1) == ']')
+			return null; // A tunnel has no default port
+		return parseAuthority(target, null);
+	}
+
+	/**
+	 * Split [user@]host[:port], the host may be an IPv6 literal in brackets
+	 */
+	private static RequestTarget parseAuthority(String authority, String path) {
+		int at = authority.lastIndexOf('@');
+		if(at != -1)
+			authority = authority.substring(at + 1);
+
+		String host;
+		int portStart;
+		if(authority.startsWith("[")) {
+			int close = authority.indexOf(']');
+			if(close == -1)
+				return null;
+			host = authority.substring(1, close);
+			portStart = close + 1;
+			if(portStart < authority.length() && authority.charAt(portStart) != ':')
+				return null;
+		} else {
+			portStart = authority.indexOf(':');
+			if(portStart == -1)
+				portStart = authority.length();
+			else if(authority.indexOf(':', portStart + 1) != -1)
+				return null; // An IPv6 literal needs brackets
+			host = authority.substring(0, portStart);
+		}
+		if(host.isEmpty())
+			return null;
+
+		int port = DEFAULT_PORT;
+		if(portStart + 1 < authority.length()) {
+			port = 0;
+			for(int i = portStart + 1; i < authority.length(); i++) {
+				char c = authority.charAt(i);
+				if(c < '0' || c > '9')
+					return null;
+				port = port * 10 + (c - '0');
+				if(port > 65535)
+					return null;
+			}
+			if(port == 0)
+				return null;
+		}
+		return new RequestTarget(host.toLowerCase(), port, path);
+	}
+
+	/**
+	 * @return The host name or address, an IPv6 address is without brackets
+	 */
+	public String getHost() {
+		return host;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * @return The value of the Host header for the destination, the port only if it is not 80
+	 */
+	public String getAuthority() {
+		return authority;
+	}
+
+	/**
+	 * @return The path with the query, as it is sent to the destination host, null for a tunnel
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * @return host:port, the same for every request to the same destination
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	@Override
+	public String toString() {
+		return path == null ? key : "http://" + authority + path;
+	}
+}
@@ -0,0 +1,289 @@
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Shared in memory cache of responses to GET requests, keyed by host + path + query.
+ *
+ * Eviction is a segmented LRU bounded by total bytes: new entries go to the probation
+ * segment, an entry that is hit again moves to the protected segment. Entries that fall
+ * out of the protected segment go back to probation, so a scan of one time requests can
+ * never push out the entries that are used repeatedly.
+ *
+ * Concurrent misses of the same key are collapsed: the first request fetches from the
+ * destination host and the others wait for it and then look in the cache again.
+ */
+public class ResponseCache {
+
+	private static final int PROTECTED_PERCENT = 80;
+	private static final long WAIT_FOR_FETCH = 30000;
+
+	private long maxSize, maxEntrySize;
+	private long probationSize = 0, protectedSize = 0;
+	private LinkedHashMap<String, CacheEntry> probation, protectedEntries;
+	private ConcurrentHashMap<String, CountDownLatch> inFlight;
+	private DiskCache diskCache = null;
+
+	public ResponseCache(long maxSize, long maxEntrySize) {
+		this.maxSize = maxSize;
+		this.maxEntrySize = maxEntrySize;
+		probation = new LinkedHashMap<String, CacheEntry>();
+		protectedEntries = new LinkedHashMap<String, CacheEntry>();
+		inFlight = new ConcurrentHashMap<String, CountDownLatch>();
+	}
+
+	public boolean isEnabled() {
+		return maxSize > 0;
+	}
+
+	public long getMaxEntrySize() {
+		return maxEntrySize;
+	}
+
+	/**
+	 * Keep the entries evicted from memory in a disk cache
+	 */
+	public void setDiskCache(DiskCache diskCache) {
+		this.diskCache = diskCache;
+	}
+
+	public DiskCache getDiskCache() {
+		return diskCache;
+	}
+
+	/**
+	 * @return A fresh entry for the key that matches the request headers, or null
+	 */
+	public synchronized CacheEntry get(String key, HashMap<String, String> requestHeaders) {
+		long now = System.currentTimeMillis();
+		boolean protectedEntry = true;
+		CacheEntry entry = protectedEntries.get(key);
+		if(entry == null) {
+			protectedEntry = false;
+			entry = probation.get(key);
+			if(entry == null)
+				return null;
+		}
+
+		if(!entry.isFresh(now)) {
+			remove(key);
+			return null;
+		}
+		// Only a hit moves the entry, a request for another variant does not use it
+		if(!entry.matches(requestHeaders))
+			return null;
+
+		if(protectedEntry) {
+			protectedEntries.remove(key);
+			protectedEntries.put(key, entry);
+		} else {
+			// Second hit, promote it
+			probation.remove(key);
+			probationSize -= entry.size();
+			protectedEntries.put(key, entry);
+			protectedSize += entry.size();
+			balance();
+		}
+		return entry;
+	}
+
+	public synchronized void put(CacheEntry entry) {
+		if(!isEnabled() || entry.size() > maxEntrySize)
+			return;
+		remove(entry.getKey());
+		probation.put(entry.getKey(), entry);
+		probationSize += entry.size();
+		balance();
+	}
+
+	public synchronized void remove(String key) {
+		CacheEntry entry = probation.remove(key);
+		if(entry != null)
+			probationSize -= entry.size();
+		entry = protectedEntries.remove(key);
+		if(entry != null)
+			protectedSize -= entry.size();
+	}
+
+	/**
+	 * Move the least recently used protected entries to probation and evict
+	 * from probation until the cache is within its size
+	 */
+	private void balance() {
+		long maxProtected = maxSize * PROTECTED_PERCENT / 100;
+		Iterator<CacheEntry> iterator = protectedEntries.values().iterator();
+		while(protectedSize > maxProtected && iterator.hasNext()) {
+			CacheEntry entry = iterator.next();
+			iterator.remove();
+			protectedSize -= entry.size();
+			probation.put(entry.getKey(), entry);
+			probationSize += entry.size();
+		}
+
+		iterator = probation.values().iterator();
+		while(probationSize + protectedSize > maxSize && iterator.hasNext()) {
+			CacheEntry entry = iterator.next();
+			iterator.remove();
+			probationSize -= entry.size();
+			evicted(entry);
+		}
+	}
+
+	/**
+	 * Called (with the cache locked) for every entry that is pushed out of the cache
+	 */
+	private void evicted(CacheEntry entry) {
+		if(diskCache != null && entry.isFresh(System.currentTimeMillis()))
+			diskCache.spill(entry);
+	}
+
+	/**
+	 * Register the caller as the one that fetches the key from the destination host.
+	 *
+	 * @return True if the caller should fetch and then call {@link #endFetch(String)},
+	 * false if another request fetched it meanwhile (the caller should look in the cache again)
+	 */
+	public boolean beginFetch(String key) {
+		CountDownLatch latch = new CountDownLatch(1);
+		CountDownLatch current = inFlight.putIfAbsent(key, latch);
+		if(current == null)
+			return true;
+
+		try {
+			current.await(WAIT_FOR_FETCH, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+
+	/**
+	 * Like {@link #beginFetch(String)} but never waits for another request
+	 *
+	 * @return True if the caller should fetch and then call {@link #endFetch(String)},
+	 * false if another request is fetching the key (the caller should fetch without storing)
+	 */
+	public boolean tryBeginFetch(String key) {
+		return inFlight.putIfAbsent(key, new CountDownLatch(1)) == null;
+	}
+
+	public void endFetch(String key) {
+		CountDownLatch latch = inFlight.remove(key);
+		if(latch != null)
+			latch.countDown();
+	}
+
+	/**
+	 * Check if a response to the request may be taken from the cache or stored in it
+	 */
+	public static boolean isRequestCacheable(HTTPRequest request) {
+		if(request.getMethod() != Method.GET)
+			return false;
+		HashMap<String, String> headers = request.getHeaders();
+		if(headers.containsKey("authorization"))
+			return false;
+		String cacheControl = headers.get("cache-control");
+		if(cacheControl != null) {
+			cacheControl = cacheControl.toLowerCase();
+			if(cacheControl.contains("no-cache") || cacheControl.contains("no-store"))
+				return false;
+		}
+		String pragma = headers.get("pragma");
+		return pragma == null || !pragma.toLowerCase().contains("no-cache");
+	}
+
+	/**
+	 * Find until when a response may be served from the cache
+	 *
+	 * @param statusCode The status code of the response
+	 * @param headers The response headers, with lower case names
+	 * @return The expiration time in millis, or 0 if the response must not be cached
+	 */
+	public static long expirationTime(int statusCode, HashMap<String, String> headers) {
+		if(statusCode != 200 && statusCode != 203 && statusCode != 301)
+			return 0;
+		if(headers.containsKey("set-cookie"))
+			return 0;
+		String vary = headers.get("vary");
+		if(vary != null && vary.contains("*"))
+			return 0;
+
+		long now = System.currentTimeMillis();
+		String cacheControl = headers.get("cache-control");
+		if(cacheControl != null) {
+			cacheControl = cacheControl.toLowerCase();
+			if(cacheControl.contains("no-store") || cacheControl.contains("no-cache") || cacheControl.contains("private"))
+				return 0;
+			long maxAge = directiveValue(cacheControl, "s-maxage");
+			if(maxAge < 0)
+				maxAge = directiveValue(cacheControl, "max-age");
+			if(maxAge >= 0)
+				return maxAge > 0 ? now + maxAge * 1000 : 0;
+		}
+
+		String expires = headers.get("expires");
+		if(expires != null) {
+			long expiresTime = parseDate(expires);
+			String date = headers.get("date");
+			long dateTime = date != null ? parseDate(date) : 0;
+			if(expiresTime <= 0)
+				return 0;
+			// Use the host clock difference, our clock may not match it
+			long lifetime = expiresTime - (dateTime > 0 ? dateTime : now);
+			return lifetime > 0 ? now + lifetime : 0;
+		}
+		return 0;
+	}
+
+	/**
+	 * Take the request header values named by the Vary header of the response
+	 */
+	public static HashMap<String, String> varyValues(String vary, HashMap<String, String> requestHeaders) {
+		HashMap<String, String> values = new HashMap<String, String>();
+		if(vary == null)
+			return values;
+		for(String name : vary.split(",")) {
+			name = name.trim().toLowerCase();
+			if(!name.isEmpty())
+				values.put(name, requestHeaders.get(name));
+		}
+		return values;
+	}
+
+	private static long directiveValue(String cacheControl, String directive) {
+		for(String part : cacheControl.split(",")) {
+			part = part.trim();
+			if(part.startsWith(directive + "=")) {
+				try {
+					return Long.parseLong(part.substring(directive.length() + 1).replace("\"", "").trim());
+				} catch (NumberFormatException e) {
+					return 0;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return The time of an HTTP date, 0 if it can not be parsed
+	 */
+	static long parseDate(String value) {
+		SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		try {
+			Date date = format.parse(value.trim());
+			return date.getTime();
+		} catch (ParseException e) {
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,284 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+
+/**
+ * Gzip encoding of responses for clients that accept it.
+ * Deflaters are pooled, a new one allocates the zlib state outside of the heap and
+ * costs more than compressing a small response. Streams compress through pooled
+ * buffers of the {@link BufferPool}.
+ * Whole bodies that are compressed (static files, cached responses) are kept in a
+ * cache of compressed variants, keyed by the entity they were made from, so repeated
+ * hits on the same entity send the compressed bytes without compressing them again.
+ */
+public class ResponseCompressor {
+
+	private static final String CRLF = "\r\n";
+	private static final int MAX_POOLED_DEFLATERS = 64;
+
+	private int level;
+	private long minLength;
+	private long maxVariantSize;
+	private long maxCacheSize;
+	private long cacheSize = 0;
+	private BufferPool buffers;
+	private ArrayDeque<Deflater> deflaters = new ArrayDeque<Deflater>();
+	private LinkedHashMap<String, byte[]> variants = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+	/**
+	 * @param level The deflate level, 1 (fast) to 9 (small)
+	 * @param minLength Bodies shorter than this are not worth compressing
+	 * @param maxCacheSize Bytes of compressed variants to keep
+	 * @param maxVariantSize The largest body that is compressed as a whole and cached, larger ones are streamed
+	 */
+	public ResponseCompressor(int level, long minLength, long maxCacheSize, long maxVariantSize, BufferPool buffers) {
+		this.level = level;
+		this.minLength = minLength;
+		this.maxCacheSize = maxCacheSize;
+		this.maxVariantSize = maxVariantSize;
+		this.buffers = buffers;
+	}
+
+	/**
+	 * @return True if the Accept-Encoding header of the request allows gzip
+	 */
+	public static boolean acceptsGzip(HTTPRequest request) {
+		String accept = request.getHeader("accept-encoding");
+		if(accept == null)
+			return false;
+		boolean star = false;
+		for(String coding : accept.split(",")) {
+			String[] parts = coding.split(";");
+			String name = parts[0].trim().toLowerCase();
+			boolean allowed = true;
+			for(int i = 1; i < parts.length; i++) {
+				String param = parts[i].trim();
+				if(param.startsWith("q=")) {
+					try {
+						allowed = Double.parseDouble(param.substring(2)) > 0;
+					} catch (NumberFormatException e) {
+						allowed = false;
+					}
+				}
+			}
+			if(name.equals("gzip") || name.equals("x-gzip"))
+				return allowed;
+			if(name.equals("*"))
+				star = allowed;
+		}
+		return star;
+	}
+
+	/**
+	 * @param contentType The Content-Type of the response, may be null
+	 * @return True for text and the other types that compress well, images and
+	 * archives are compressed already
+	 */
+	public static boolean isCompressible(String contentType) {
+		if(contentType == null)
+			return false;
+		String type = contentType.toLowerCase();
+		int semicolon = type.indexOf(';');
+		if(semicolon != -1)
+			type = type.substring(0, semicolon);
+		type = type.trim();
+		return type.startsWith("text/") || type.endsWith("+xml") || type.endsWith("+json")
+				|| type.equals("application/json") || type.equals("application/javascript")
+				|| type.equals("application/xml") || type.equals("application/wasm")
+				|| type.equals("image/svg+xml") || type.equals("image/x-icon");
+	}
+
+	/**
+	 * @param head The status line and header lines of a response
+	 * @param name Header name in lower case
+	 * @return The value of the first header with the name, or null
+	 */
+	public static String findHeader(String head, String name) {
+		int start = head.indexOf(CRLF) + 2;
+		while(start > 1 && start < head.length()) {
+			int end = head.indexOf(CRLF, start);
+			if(end == -1)
+				end = head.length();
+			int colon = head.indexOf(':', start);
+			if(colon != -1 && colon < end && head.substring(start, colon).trim().equalsIgnoreCase(name))
+				return head.substring(colon + 1, end).trim();
+			start = end + 2;
+		}
+		return null;
+	}
+
+	/**
+	 * Turn the head of a response into the head of its gzip variant: the length and
+	 * framing are replaced, the ETag is made weak since the bytes differ, and caches
+	 * are told that the response depends on Accept-Encoding.
+	 *
+	 * @param head The status line and header lines, each with its CRLF
+	 * @param framing The Content-Length or Transfer-Encoding line of the compressed body
+	 * @return The head without the empty line that ends it
+	 */
+	public static String encodeHead(String head, String framing) {
+		StringBuilder encoded = new StringBuilder(head.length() + 64);
+		boolean vary = false;
+		for(String line : head.split(CRLF)) {
+			String name = line.indexOf(':') != -1 ? line.substring(0, line.indexOf(':')).trim().toLowerCase() : "";
+			if(name.equals("content-length") || name.equals("transfer-encoding"))
+				continue;
+			if(name.equals("etag")) {
+				String etag = line.substring(line.indexOf(':') + 1).trim();
+				line = "ETag: " + (etag.startsWith("W/") ? etag : "W/" + etag);
+			} else if(name.equals("vary")) {
+				vary = true;
+				if(!line.toLowerCase().contains("accept-encoding") && !line.contains("*"))
+					line += ", Accept-Encoding";
+			}
+			encoded.append(line).append(CRLF);
+		}
+		if(!vary)
+			encoded.append("Vary: Accept-Encoding").append(CRLF);
+		encoded.append("Content-Encoding: gzip").append(CRLF);
+		encoded.append(framing);
+		return encoded.toString();
+	}
+
+	/**
+	 * @param framing The Content-Length or Transfer-Encoding line that replaces the ones of the head
+	 */
+	public static String replaceFraming(String head, String framing) {
+		StringBuilder replaced = new StringBuilder(head.length());
+		for(String line : head.split(CRLF)) {
+			String lower = line.toLowerCase();
+			if(!lower.startsWith("content-length:") && !lower.startsWith("transfer-encoding:"))
+				replaced.append(line).append(CRLF);
+		}
+		return replaced.append(framing).toString();
+	}
+
+	/**
+	 * @param length The length of the body, -1 if it is not known
+	 * @return True if a body of the length is worth compressing
+	 */
+	public boolean isWorthIt(long length) {
+		return length < 0 || length >= minLength;
+	}
+
+	/**
+	 * @return True if a body of the length is compressed as a whole and cached
+	 */
+	public boolean fitsVariant(long length) {
+		return length >= 0 && length <= maxVariantSize;
+	}
+
+	/**
+	 * Start a compressed stream, it must be given back with {@link #close(GzipEncoder, boolean)}
+	 */
+	public GzipEncoder open(OutputStream output) {
+		return new GzipEncoder(output, takeDeflater(), buffers.take());
+	}
+
+	/**
+	 * Finish the stream and give its deflater and buffer back
+	 *
+	 * @param complete False to only give them back, when the response failed or the stream was finished already
+	 */
+	public void close(GzipEncoder encoder, boolean complete) throws IOException {
+		try {
+			if(complete)
+				encoder.finish();
+		} finally {
+			giveDeflater(encoder.getDeflater());
+			buffers.give(encoder.getBuffer());
+		}
+	}
+
+	/**
+	 * @param key The entity, a key that changes whenever its bytes change
+	 * @return The cached compressed variant, or null
+	 */
+	public synchronized byte[] getVariant(String key) {
+		return variants.get(key);
+	}
+
+	/**
+	 * Compress a body and keep it as the variant of the entity
+	 */
+	public byte[] compress(String key, byte[] body, int offset, int length) throws IOException {
+		byte[] cached = getVariant(key);
+		if(cached != null)
+			return cached;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(length / 4 + 64);
+		GzipEncoder encoder = open(bytes);
+		try {
+			encoder.write(body, offset, length);
+		} finally {
+			close(encoder, true);
+		}
+		return putVariant(key, bytes.toByteArray());
+	}
+
+	/**
+	 * Compress a part of a file and keep it as the variant of the entity
+	 */
+	public byte[] compress(String key, FileChannel file, long position, long length) throws IOException {
+		byte[] cached = getVariant(key);
+		if(cached != null)
+			return cached;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) (length / 4) + 64);
+		GzipEncoder encoder = open(bytes);
+		byte[] input = buffers.take();
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(input);
+			long end = position + length;
+			while(position < end) {
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), end - position));
+				int len = file.read(buffer, position);
+				if(len <= 0)
+					throw new IOException("File is shorter than its length");
+				encoder.write(input, 0, len);
+				position += len;
+			}
+		} finally {
+			buffers.give(input);
+			close(encoder, true);
+		}
+		return putVariant(key, bytes.toByteArray());
+	}
+
+	private synchronized byte[] putVariant(String key, byte[] variant) {
+		if(variant.length > maxCacheSize)
+			return variant;
+		byte[] previous = variants.put(key, variant);
+		if(previous != null)
+			cacheSize -= previous.length;
+		cacheSize += variant.length;
+		Iterator<Map.Entry<String, byte[]>> iterator = variants.entrySet().iterator();
+		while(cacheSize > maxCacheSize && iterator.hasNext()) {
+			cacheSize -= iterator.next().getValue().length;
+			iterator.remove();
+		}
+		return variant;
+	}
+
+	private synchronized Deflater takeDeflater() {
+		Deflater deflater = deflaters.poll();
+		return deflater != null ? deflater : new Deflater(level, true);
+	}
+
+	private void giveDeflater(Deflater deflater) {
+		synchronized(this) {
+			if(deflaters.size() < MAX_POOLED_DEFLATERS) {
+				deflaters.push(deflater);
+				return;
+			}
+		}
+		deflater.end();
+	}
+}
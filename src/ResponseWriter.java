@@ -0,0 +1,135 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+
+/**
+ * Writes the responses the server makes on its own with as few writes as possible.
+ * Status lines and the complete error responses are encoded once when the class is
+ * loaded, so an error costs a single write of a shared array and no allocation.
+ * Other responses are assembled in a pooled buffer, the head together with the body
+ * when the body fits, and leave in a single write.
+ */
+public class ResponseWriter {
+
+	public static final byte[] CONTINUE = encode("HTTP/1.1 100 Continue\r\n\r\n");
+	public static final byte[] CONNECTION_ESTABLISHED = encode("HTTP/1.1 200 Connection Established\r\n\r\n");
+
+	private static final String ERROR_BODY = "<HTML><BODY><H1> %s </H1></BODY></HTML>";
+	private static final int BUFFER_SIZE = 8 * 1024;
+	private static final BufferPool BUFFERS = new BufferPool(BUFFER_SIZE, 256);
+	private static final HashMap<Integer, byte[]> STATUS_LINES = new HashMap<Integer, byte[]>();
+	private static final HashMap<Integer, byte[]> ERRORS = new HashMap<Integer, byte[]>();
+
+	static {
+		status(200, "OK");
+		error(400, "Bad Request");
+		error(403, "Forbidden");
+		error(404, "Not Found");
+		error(411, "Length Required");
+		error(414, "URI Too Long");
+		error(429, "Too Many Requests");
+		error(431, "Request Header Fields Too Large");
+		error(500, "Internal Server Error");
+		error(501, "Not Implemented");
+		error(502, "Bad Gateway");
+		error(503, "Service Unavailable");
+		error(504, "Gateway Timeout");
+	}
+
+	private OutputStream output;
+	private byte[] buffer;
+	private int count = 0;
+
+	/**
+	 * Start a response, the status line goes first into the buffer
+	 */
+	public ResponseWriter(OutputStream output, int status) {
+		this.output = output;
+		buffer = BUFFERS.take();
+		append(STATUS_LINES.get(status), 0, STATUS_LINES.get(status).length);
+	}
+
+	/**
+	 * @return The whole response (head and page) for an error status, or null if there is none
+	 */
+	public static byte[] getError(int status) {
+		return ERRORS.get(status);
+	}
+
+	public ResponseWriter header(String name, String value) throws IOException {
+		append(name);
+		append(": ");
+		append(value);
+		append("\r\n");
+		return this;
+	}
+
+	/**
+	 * End the head with the Content-Length of the body and write the response
+	 *
+	 * @param sendBody False for a HEAD request, only the length of the body is sent
+	 */
+	public void send(byte[] body, boolean sendBody) throws IOException {
+		try {
+			header("Content-Length", String.valueOf(body.length));
+			append("\r\n");
+			if(sendBody && body.length <= buffer.length - count) {
+				System.arraycopy(body, 0, buffer, count, body.length);
+				count += body.length;
+				sendBody = false;
+			}
+			output.write(buffer, 0, count);
+			if(sendBody)
+				output.write(body);
+			output.flush();
+		} finally {
+			BUFFERS.give(buffer);
+			buffer = null;
+		}
+	}
+
+	/**
+	 * Encode one byte per character, headers are ISO-8859-1
+	 */
+	static byte[] encode(String text) {
+		byte[] bytes = new byte[text.length()];
+		for(int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) text.charAt(i);
+		}
+		return bytes;
+	}
+
+	private void append(String text) throws IOException {
+		for(int i = 0; i < text.length(); i++) {
+			if(count == buffer.length)
+				drain();
+			buffer[count++] = (byte) text.charAt(i);
+		}
+	}
+
+	private void append(byte[] bytes, int off, int len) {
+		System.arraycopy(bytes, off, buffer, count, len);
+		count += len;
+	}
+
+	/**
+	 * A head larger than the buffer is written in parts
+	 */
+	private void drain() throws IOException {
+		output.write(buffer, 0, count);
+		count = 0;
+	}
+
+	private static void status(int status, String reason) {
+		STATUS_LINES.put(status, encode("HTTP/1.1 " + status + " " + reason + "\r\n"));
+	}
+
+	private static void error(int status, String reason) {
+		status(status, reason);
+		String body = String.format(ERROR_BODY, status + " " + reason);
+		ERRORS.put(status, encode("HTTP/1.1 " + status + " " + reason + "\r\n"
+				+ "Content-Type: text/html\r\n"
+				+ "Content-Length: " + body.length() + "\r\n\r\n" + body));
+	}
+}
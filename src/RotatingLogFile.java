@@ -0,0 +1,80 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * A log file that is rotated by size: when a write would make it bigger than the limit
+ * it is renamed to name.1 (name.1 to name.2 and so on) and a new file is started.
+ * Only the given number of old files are kept. Writes are buffered, the owner flushes
+ * after every batch.
+ */
+public class RotatingLogFile extends OutputStream {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private File file;
+	private long maxSize;
+	private int maxFiles;
+	private OutputStream output;
+	private long size;
+
+	/**
+	 * @param maxSize The size to rotate at, 0 to never rotate
+	 * @param maxFiles The number of rotated files to keep
+	 */
+	public RotatingLogFile(File file, long maxSize, int maxFiles) throws IOException {
+		this.file = file;
+		this.maxSize = maxSize;
+		this.maxFiles = Math.max(maxFiles, 1);
+		File parent = file.getAbsoluteFile().getParentFile();
+		if(parent != null)
+			parent.mkdirs();
+		open();
+	}
+
+	private void open() throws IOException {
+		size = file.length();
+		output = new BufferedOutputStream(new FileOutputStream(file, true), BUFFER_SIZE);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if(maxSize > 0 && size > 0 && size + len > maxSize)
+			rotate();
+		output.write(b, off, len);
+		size += len;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		output.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		output.close();
+	}
+
+	private void rotate() throws IOException {
+		output.close();
+		new File(file.getPath() + "." + maxFiles).delete();
+		for(int i = maxFiles - 1; i >= 1; i--) {
+			File older = new File(file.getPath() + "." + i);
+			if(older.exists())
+				older.renameTo(new File(file.getPath() + "." + (i + 1)));
+		}
+		if(!file.renameTo(new File(file.getPath() + ".1"))) {
+			// Could not rename (the file may be open elsewhere), start it over
+			new FileOutputStream(file).close();
+		}
+		open();
+	}
+}
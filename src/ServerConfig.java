@@ -0,0 +1,85 @@
+import java.io.File;
+import java.util.HashMap;
+
+/**
+ * Holds the values read from the config file.
+ * The mandatory values have their own fields, every other key is kept as a string
+ * and parsed on demand with a default value.
+ */
+public class ServerConfig {
+
+	private String defaultPage;
+	private int port;
+	private int maxThreads;
+	private File root;
+	private HashMap<String, String> options;
+
+	public ServerConfig(File root, String defaultPage, int port, int maxThreads) {
+		this.root = root;
+		this.defaultPage = defaultPage;
+		this.port = port;
+		this.maxThreads = maxThreads;
+		options = new HashMap<String, String>();
+	}
+
+	/**
+	 * Keep an optional key, only the first value of each key is used
+	 */
+	public void setOption(String key, String value) {
+		key = key.trim().toLowerCase();
+		if(!options.containsKey(key))
+			options.put(key, value.trim());
+	}
+
+	public String getString(String key, String defaultValue) {
+		String value = options.get(key.toLowerCase());
+		if(value == null || value.isEmpty())
+			return defaultValue;
+		return value;
+	}
+
+	/**
+	 * @throws IllegalArgumentException If the value does not fit an int, the server must not start with it
+	 */
+	public int getInt(String key, int defaultValue) {
+		long value = getLong(key, defaultValue);
+		if(value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("The value given to " + key + " is out of range: " + value);
+		return (int) value;
+	}
+
+	public long getLong(String key, long defaultValue) {
+		String value = options.get(key.toLowerCase());
+		if(value == null)
+			return defaultValue;
+		try {
+			return Long.parseLong(value);
+		} catch(NumberFormatException e) {
+			Log.error("Failed to parse the number given to " + key + ", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	public boolean getBoolean(String key, boolean defaultValue) {
+		String value = options.get(key.toLowerCase());
+		if(value == null)
+			return defaultValue;
+		return value.equalsIgnoreCase("true") || value.equalsIgnoreCase("yes") || value.equals("1");
+	}
+
+	public String getDefaultPage() {
+		return defaultPage;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public int getMaxThreads() {
+		return maxThreads;
+	}
+
+	public File getRoot() {
+		return root;
+	}
+}
@@ -0,0 +1,194 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * The objects that are shared by all the connections of the server.
+ */
+public class ServerContext {
+
+	private ServerConfig config;
+	private ConnectionLimiter limiter;
+	private UpstreamPool upstreamPool;
+	private ResponseCache responseCache;
+	private BufferPool bufferPool;
+	private ExecutorService workers;
+	private ServerMetrics metrics;
+	private DnsCache dnsCache;
+	private UpstreamConnector connector;
+	private StaticFiles staticFiles;
+	private ResponseCompressor compressor;
+	private TimerWheel reaper;
+	private RequestCoalescer coalescer;
+	private HostFilter hostFilter;
+	private RateLimiter rateLimiter;
+
+	// Read by every connection when it opens
+	private static final String[] CONNECTION_SETTINGS = { "pipelineDepth", "pipelineBufferSize", "tunnelIdleTimeout",
+			"keepAliveTimeout", "requestHeadTimeout", "maxKeepAliveRequests" };
+
+	/**
+	 * @throws IllegalArgumentException If a value of the config is out of range
+	 */
+	public ServerContext(ServerConfig config) {
+		this.config = config;
+		// A value that is out of range stops the startup instead of the first connection
+		for(String key : CONNECTION_SETTINGS) {
+			config.getInt(key, 0);
+		}
+		metrics = new ServerMetrics();
+		bufferPool = new BufferPool(config.getInt("relayBufferSize", 16 * 1024),
+				config.getInt("maxPooledBuffers", 1024));
+		limiter = new ConnectionLimiter(config.getInt("maxConnections", 10000),
+				config.getInt("maxConnectionsPerClient", 64),
+				config.getInt("maxConnectionsPerHost", 256));
+		dnsCache = new DnsCache(HostResolver.SYSTEM, config.getLong("dnsCacheTtl", 60000),
+				config.getLong("dnsNegativeTtl", 5000), config.getLong("dnsRefreshAhead", 10000),
+				config.getInt("dnsCacheSize", 4096));
+		connector = new UpstreamConnector(config.getInt("upstreamConnectTimeout", 5000),
+				config.getInt("upstreamReadTimeout", 30000), config.getInt("connectAttemptDelay", 250));
+		upstreamPool = new UpstreamPool(config.getInt("upstreamMaxIdlePerHost", 8),
+				config.getLong("upstreamIdleTimeout", 5000));
+		responseCache = new ResponseCache(config.getLong("cacheSize", 64 * 1024 * 1024),
+				config.getLong("cacheMaxEntrySize", 1024 * 1024));
+
+		if(config.getBoolean("compression", false)) {
+			compressor = new ResponseCompressor(config.getInt("compressionLevel", 6),
+					config.getLong("compressionMinLength", 256), config.getLong("compressedCacheSize", 16 * 1024 * 1024),
+					config.getLong("compressedMaxEntrySize", 1024 * 1024), bufferPool);
+		}
+
+		if(config.getBoolean("coalesceRequests", false))
+			coalescer = new RequestCoalescer(config.getLong("coalesceMaxSize", 1024 * 1024),
+					config.getLong("coalesceMemory", 32 * 1024 * 1024));
+
+		if(config.getBoolean("staticFiles", false)) {
+			try {
+				staticFiles = new StaticFiles(config.getRoot(), config.getDefaultPage(),
+						config.getInt("openFileCacheSize", 1024), config.getLong("openFileCheckInterval", 1000), compressor);
+			} catch (IOException e) {
+				Log.error("Failed to serve the files of '" + config.getRoot() + "': " + e.getMessage());
+			}
+		}
+
+		long requestRate = config.getLong("requestRate", 0);
+		long clientByteRate = config.getLong("clientByteRate", 0);
+		long connectionByteRate = config.getLong("connectionByteRate", 0);
+		if(requestRate > 0 || clientByteRate > 0 || connectionByteRate > 0) {
+			rateLimiter = new RateLimiter(requestRate, config.getLong("requestBurst", Math.max(requestRate, 1)),
+					clientByteRate, connectionByteRate, config.getLong("byteBurst", 64 * 1024),
+					config.getLong("rateLimitSweepInterval", 10000));
+		}
+
+		String hostRules = config.getString("hostRules", null);
+		if(hostRules != null) {
+			try {
+				hostFilter = new HostFilter(new File(hostRules), config.getLong("hostRulesCheckInterval", 5000));
+			} catch (IOException e) {
+				Log.error("Failed to load the host rules from '" + hostRules + "', every host is allowed: " + e.getMessage());
+			}
+		}
+
+		String cacheDir = config.getString("cacheDir", null);
+		if(cacheDir != null && responseCache.isEnabled()) {
+			try {
+				responseCache.setDiskCache(new DiskCache(new File(cacheDir),
+						config.getLong("diskCacheSize", 1024L * 1024 * 1024),
+						config.getLong("diskSegmentSize", 64 * 1024 * 1024)));
+			} catch (IOException e) {
+				Log.error("Failed to open the disk cache in '" + cacheDir + "', using memory only: " + e.getMessage());
+			}
+		}
+	}
+
+	public ServerConfig getConfig() {
+		return config;
+	}
+
+	public ConnectionLimiter getLimiter() {
+		return limiter;
+	}
+
+	public UpstreamPool getUpstreamPool() {
+		return upstreamPool;
+	}
+
+	public ResponseCache getResponseCache() {
+		return responseCache;
+	}
+
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	public ServerMetrics getMetrics() {
+		return metrics;
+	}
+
+	public DnsCache getDnsCache() {
+		return dnsCache;
+	}
+
+	public UpstreamConnector getConnector() {
+		return connector;
+	}
+
+	/**
+	 * @return The files served for requests addressed to the proxy itself, null if it serves none
+	 */
+	public StaticFiles getStaticFiles() {
+		return staticFiles;
+	}
+
+	/**
+	 * @return Null if identical requests in flight are not collapsed
+	 */
+	public RequestCoalescer getCoalescer() {
+		return coalescer;
+	}
+
+	/**
+	 * @return Null if there are no host rules
+	 */
+	public HostFilter getHostFilter() {
+		return hostFilter;
+	}
+
+	/**
+	 * @return Null if the requests and bytes of the clients are not limited
+	 */
+	public RateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+
+	/**
+	 * @return The gzip encoder of responses, null if responses are sent as they are
+	 */
+	public ResponseCompressor getCompressor() {
+		return compressor;
+	}
+
+	/**
+	 * @return The threads that run the connections, also used for pipelined requests.
+	 * Null when the server is not thread per connection.
+	 */
+	public ExecutorService getWorkers() {
+		return workers;
+	}
+
+	public void setWorkers(ExecutorService workers) {
+		this.workers = workers;
+	}
+
+	/**
+	 * @return The wheel the deadlines of idle client connections are kept on.
+	 * Null when the server is not thread per connection, the event loops check their own.
+	 */
+	public TimerWheel getReaper() {
+		return reaper;
+	}
+
+	public void setReaper(TimerWheel reaper) {
+		this.reaper = reaper;
+	}
+}
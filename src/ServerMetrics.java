@@ -0,0 +1,126 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Counters and latency histograms of the server, shared by all the connections.
+ * Every recording method only updates atomics in arrays that were allocated up front.
+ * {@link #writePrometheus(StringBuilder)} writes everything in the Prometheus text format.
+ */
+public class ServerMetrics {
+
+	public static final int PARSE = 0;
+	public static final int DNS = 1;
+	public static final int CONNECT = 2;
+	public static final int FIRST_BYTE = 3;
+	public static final int RELAY = 4;
+	public static final int TOTAL = 5;
+
+	private static final String[] PHASE_NAMES = { "parse", "dns", "connect", "first_byte", "relay", "total" };
+	// Histogram bucket bounds in microseconds and as they are written, in seconds
+	private static final long[] BOUNDS = { 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000,
+			100000, 250000, 500000, 1000000, 2500000, 5000000, 10000000 };
+	private static final String[] BOUND_LABELS = { "0.0001", "0.00025", "0.0005", "0.001", "0.0025", "0.005",
+			"0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "10" };
+
+	private LatencyHistogram[] phases;
+	private AtomicLongArray statusCodes;
+	private AtomicLong bytesIn, bytesOut;
+	private AtomicLong connections;
+	private AtomicInteger activeConnections;
+
+	public ServerMetrics() {
+		phases = new LatencyHistogram[PHASE_NAMES.length];
+		for(int i = 0; i < phases.length; i++) {
+			phases[i] = new LatencyHistogram();
+		}
+		statusCodes = new AtomicLongArray(600);
+		bytesIn = new AtomicLong();
+		bytesOut = new AtomicLong();
+		connections = new AtomicLong();
+		activeConnections = new AtomicInteger();
+	}
+
+	/**
+	 * @param phase One of the phase constants
+	 */
+	public void recordPhase(int phase, long nanos) {
+		phases[phase].record(nanos);
+	}
+
+	/**
+	 * Count a finished request
+	 *
+	 * @param bytesReceived The size of the request head and body
+	 * @param bytesSent The size of the response
+	 */
+	public void recordRequest(int status, long bytesReceived, long bytesSent, long totalNanos) {
+		statusCodes.incrementAndGet(status >= 0 && status < 600 ? status : 0);
+		bytesIn.addAndGet(bytesReceived);
+		bytesOut.addAndGet(bytesSent);
+		phases[TOTAL].record(totalNanos);
+	}
+
+	public void connectionOpened() {
+		connections.incrementAndGet();
+		activeConnections.incrementAndGet();
+	}
+
+	public void connectionClosed() {
+		activeConnections.decrementAndGet();
+	}
+
+	public void writePrometheus(StringBuilder out) {
+		out.append("# HELP proxy_requests_total Requests answered, by status code (0 when unknown).\n");
+		out.append("# TYPE proxy_requests_total counter\n");
+		for(int code = 0; code < statusCodes.length(); code++) {
+			long count = statusCodes.get(code);
+			if(count > 0)
+				out.append("proxy_requests_total{code=\"").append(code).append("\"} ").append(count).append('\n');
+		}
+
+		writeCounter(out, "proxy_received_bytes_total", "Bytes of request heads and bodies received from clients.", bytesIn.get());
+		writeCounter(out, "proxy_sent_bytes_total", "Bytes of responses sent to clients.", bytesOut.get());
+		writeCounter(out, "proxy_connections_total", "Client connections accepted.", connections.get());
+		out.append("# HELP proxy_active_connections Client connections open right now.\n");
+		out.append("# TYPE proxy_active_connections gauge\n");
+		out.append("proxy_active_connections ").append(activeConnections.get()).append('\n');
+
+		out.append("# HELP proxy_phase_duration_seconds Time spent in each phase of a request.\n");
+		out.append("# TYPE proxy_phase_duration_seconds histogram\n");
+		for(int i = 0; i < phases.length; i++) {
+			LatencyHistogram histogram = phases[i];
+			// Read the count first so the buckets are never below it
+			long count = histogram.getCount();
+			String phase = PHASE_NAMES[i];
+			for(int j = 0; j < BOUNDS.length; j++) {
+				out.append("proxy_phase_duration_seconds_bucket{phase=\"").append(phase).append("\",le=\"")
+						.append(BOUND_LABELS[j]).append("\"} ")
+						.append(Math.min(histogram.countBelow(BOUNDS[j]), count)).append('\n');
+			}
+			out.append("proxy_phase_duration_seconds_bucket{phase=\"").append(phase).append("\",le=\"+Inf\"} ")
+					.append(count).append('\n');
+			out.append("proxy_phase_duration_seconds_sum{phase=\"").append(phase).append("\"} ");
+			appendSeconds(out, histogram.getTotalNanos());
+			out.append('\n');
+			out.append("proxy_phase_duration_seconds_count{phase=\"").append(phase).append("\"} ")
+					.append(count).append('\n');
+		}
+	}
+
+	private static void writeCounter(StringBuilder out, String name, String help, long value) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(" counter\n");
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void appendSeconds(StringBuilder out, long nanos) {
+		out.append(nanos / 1000000000L).append('.');
+		String fraction = Long.toString(nanos % 1000000000L);
+		for(int i = fraction.length(); i < 9; i++) {
+			out.append('0');
+		}
+		out.append(fraction);
+	}
+}
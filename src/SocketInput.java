@@ -0,0 +1,120 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+
+/**
+ * A buffered stream over a socket that can be read by lines and as raw bytes.
+ * The head of a message and its body come out of the same buffer, so nothing that
+ * was read ahead while looking for the end of a line is lost to the body.
+ * The buffer is taken from a {@link BufferPool} when bytes are first needed and is
+ * given back by {@link #release()}, an idle connection does not hold one.
+ */
+public class SocketInput extends InputStream {
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	private InputStream input;
+	private BufferPool buffers;
+	private byte[] buffer;
+	private int position = 0, limit = 0;
+
+	public SocketInput(InputStream input, BufferPool buffers) {
+		this.input = input;
+		this.buffers = buffers;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if(position == limit && fill() == -1)
+			return -1;
+		return buffer[position++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0)
+			return 0;
+		if(position == limit) {
+			// Nothing is buffered, a large read goes straight into the caller's array
+			if(len >= buffers.getBufferSize())
+				return input.read(b, off, len);
+			if(fill() == -1)
+				return -1;
+		}
+		int count = Math.min(len, limit - position);
+		System.arraycopy(buffer, position, b, off, count);
+		position += count;
+		return count;
+	}
+
+	/**
+	 * Read a line that ends with LF, a CR before the LF is dropped
+	 *
+	 * @param maxLength The longest line that is accepted
+	 * @return The line without its end, or null if the stream ended before the end of the line
+	 * @throws IOException If the line is longer than maxLength
+	 */
+	public String readLine(int maxLength) throws IOException {
+		StringBuilder line = new StringBuilder();
+		while(true) {
+			if(position == limit && fill() == -1)
+				return null;
+			int start = position;
+			while(position < limit && buffer[position] != '\n')
+				position++;
+			int end = position;
+			boolean found = position < limit;
+			if(found)
+				position++;
+			line.append(new String(buffer, start, end - start, ISO_8859_1));
+			if(line.length() > maxLength)
+				throw new IOException("Line is longer than " + maxLength + " bytes");
+			if(found) {
+				int length = line.length();
+				if(length > 0 && line.charAt(length - 1) == '\r')
+					line.setLength(length - 1);
+				return line.toString();
+			}
+		}
+	}
+
+	/**
+	 * @return The buffered bytes and the ones the socket has ready
+	 */
+	@Override
+	public int available() throws IOException {
+		return limit - position + input.available();
+	}
+
+	/**
+	 * Give the buffer back to the pool if everything in it was read
+	 */
+	public void release() {
+		if(buffer != null && position == limit) {
+			buffers.give(buffer);
+			buffer = null;
+			position = limit = 0;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			input.close();
+		} finally {
+			position = limit;
+			release();
+		}
+	}
+
+	private int fill() throws IOException {
+		if(buffer == null)
+			buffer = buffers.take();
+		position = limit = 0;
+		int len = input.read(buffer, 0, buffer.length);
+		if(len > 0)
+			limit = len;
+		return len;
+	}
+}
@@ -0,0 +1,87 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * A buffered stream over a socket. Small writes (status lines, headers, chunk sizes)
+ * are collected and leave together with the start of the body in one write, large
+ * writes go to the socket without being copied. Nothing is sent before the buffer
+ * fills up or {@link #flush()} is called at the end of a message.
+ * The buffer is taken from a {@link BufferPool} on the first write and given back on
+ * every flush, so a connection that waits for its next message does not hold one.
+ */
+public class SocketOutput extends OutputStream {
+
+	private OutputStream output;
+	private BufferPool buffers;
+	private byte[] buffer;
+	private int count = 0;
+
+	public SocketOutput(OutputStream output, BufferPool buffers) {
+		this.output = output;
+		this.buffers = buffers;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if(buffer == null)
+			buffer = buffers.take();
+		if(count == buffer.length)
+			drain();
+		buffer[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if(count == 0 && len >= buffers.getBufferSize()) {
+			output.write(b, off, len);
+			return;
+		}
+		if(buffer == null)
+			buffer = buffers.take();
+		if(len > buffer.length - count) {
+			// Top the buffer up, what was collected goes out with the start of these bytes
+			int part = buffer.length - count;
+			System.arraycopy(b, off, buffer, count, part);
+			count += part;
+			off += part;
+			len -= part;
+			drain();
+			if(len >= buffer.length) {
+				output.write(b, off, len);
+				return;
+			}
+		}
+		System.arraycopy(b, off, buffer, count, len);
+		count += len;
+	}
+
+	/**
+	 * Send what was collected and give the buffer back
+	 */
+	@Override
+	public void flush() throws IOException {
+		drain();
+		output.flush();
+		if(buffer != null) {
+			buffers.give(buffer);
+			buffer = null;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			output.close();
+		}
+	}
+
+	private void drain() throws IOException {
+		if(count > 0) {
+			output.write(buffer, 0, count);
+			count = 0;
+		}
+	}
+}
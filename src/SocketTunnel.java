@@ -0,0 +1,180 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * The tunnel of a CONNECT request in the blocking engine: raw bytes are copied between
+ * the client and the destination host in both directions until both sides closed.
+ * The connection thread copies from the client and a worker copies from the destination
+ * host, on virtual threads an idle tunnel costs no platform thread at all.
+ * When one side closes its output the other side gets a half close, so a client may
+ * still read the rest of the answer after it finished sending.
+ * A tunnel where no bytes moved in either direction for the idle timeout is closed.
+ */
+public class SocketTunnel {
+
+	private Socket client, destination;
+	private BufferPool buffers;
+	private int idleTimeout;
+	private volatile long lastActivity;
+	private volatile boolean aborted = false;
+	private AtomicLong sent = new AtomicLong(), received = new AtomicLong();
+
+	/**
+	 * @param idleTimeout Milliseconds without a byte in either direction before the tunnel is closed, 0 for no limit
+	 */
+	public SocketTunnel(Socket client, Socket destination, BufferPool buffers, int idleTimeout) {
+		this.client = client;
+		this.destination = destination;
+		this.buffers = buffers;
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Relay until both directions are done. The caller closes the sockets afterwards.
+	 *
+	 * @param clientInput The client stream, without the bytes that are already in pending
+	 * @param pending Bytes the client sent right after the CONNECT head, they go first
+	 */
+	public void run(final InputStream clientInput, ByteBuffer pending, ExecutorService workers) throws IOException {
+		lastActivity = System.currentTimeMillis();
+		client.setSoTimeout(idleTimeout);
+		destination.setSoTimeout(idleTimeout);
+		final OutputStream destinationOutput = destinationOutput();
+		if(pending.hasRemaining()) {
+			sent.addAndGet(pending.remaining());
+			destinationOutput.write(pending.array(), pending.position(), pending.remaining());
+			pending.position(pending.limit());
+		}
+
+		final CountDownLatch done = new CountDownLatch(1);
+		Runnable fromDestination = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					copy(destination.getInputStream(), client.getOutputStream(), client, received);
+				} catch (IOException e) {
+					abort();
+				} finally {
+					done.countDown();
+				}
+			}
+		};
+		try {
+			workers.execute(fromDestination);
+		} catch (RejectedExecutionException e) {
+			throw new IOException("No thread for the tunnel: " + e.getMessage());
+		}
+
+		try {
+			copy(clientInput, destinationOutput, destination, sent);
+		} catch (IOException e) {
+			abort();
+		}
+		boolean interrupted = false;
+		while(true) {
+			try {
+				done.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if(interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * @return Bytes relayed from the client to the destination host
+	 */
+	public long getSent() {
+		return sent.get();
+	}
+
+	/**
+	 * @return Bytes relayed from the destination host to the client
+	 */
+	public long getReceived() {
+		return received.get();
+	}
+
+	/**
+	 * Copy one direction until its end of stream, then half close the other side
+	 */
+	private void copy(InputStream input, OutputStream output, Socket to, AtomicLong counter) throws IOException {
+		byte[] buffer = buffers.take();
+		try {
+			while(!aborted) {
+				int len;
+				try {
+					len = input.read(buffer);
+				} catch (SocketTimeoutException e) {
+					// The other direction may still be busy
+					if(System.currentTimeMillis() - lastActivity >= idleTimeout)
+						throw e;
+					continue;
+				}
+				if(len == -1) {
+					to.shutdownOutput();
+					return;
+				}
+				output.write(buffer, 0, len);
+				output.flush();
+				counter.addAndGet(len);
+				lastActivity = System.currentTimeMillis();
+			}
+		} finally {
+			buffers.give(buffer);
+		}
+	}
+
+	/**
+	 * Writes to the destination go straight to its channel, the stream of the channel
+	 * would wait for a read of the other direction to return on older JVMs
+	 */
+	private OutputStream destinationOutput() throws IOException {
+		final SocketChannel channel = destination.getChannel();
+		if(channel == null)
+			return destination.getOutputStream();
+		return new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+				while(buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+		};
+	}
+
+	/**
+	 * One side failed or timed out, closing both sockets ends the other direction as well
+	 */
+	private void abort() {
+		aborted = true;
+		try {
+			client.close();
+		} catch (IOException e) {
+			// Nothing to do
+		}
+		try {
+			destination.close();
+		} catch (IOException e) {
+			// Nothing to do
+		}
+	}
+}
@@ -0,0 +1,404 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+
+/**
+ * Serves the files under the configured root, for requests that are addressed to the
+ * proxy itself. Files are sent with {@link java.nio.channels.FileChannel#transferTo}
+ * from an {@link OpenFileCache}, so a socket channel gets them by sendfile without
+ * passing through the heap.
+ * Responses carry an ETag and Last-Modified, If-None-Match and If-Modified-Since are
+ * answered with 304, and a single byte range (Range, If-Range) with 206.
+ * Clients that accept gzip get a precompressed sibling (file.gz) when there is one,
+ * else a variant compressed by the {@link ResponseCompressor} the first time it is asked
+ * for. Each encoding has its own ETag.
+ */
+public class StaticFiles {
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final String CRLF = "\r\n";
+	private static final String VARY = "Vary: Accept-Encoding" + CRLF;
+	private static final String GZIP = "Content-Encoding: gzip" + CRLF;
+	private static final HashMap<String, String> CONTENT_TYPES = new HashMap<String, String>();
+
+	static {
+		CONTENT_TYPES.put("html", "text/html; charset=utf-8");
+		CONTENT_TYPES.put("htm", "text/html; charset=utf-8");
+		CONTENT_TYPES.put("txt", "text/plain; charset=utf-8");
+		CONTENT_TYPES.put("css", "text/css; charset=utf-8");
+		CONTENT_TYPES.put("js", "text/javascript; charset=utf-8");
+		CONTENT_TYPES.put("json", "application/json");
+		CONTENT_TYPES.put("map", "application/json");
+		CONTENT_TYPES.put("xml", "application/xml");
+		CONTENT_TYPES.put("svg", "image/svg+xml");
+		CONTENT_TYPES.put("png", "image/png");
+		CONTENT_TYPES.put("jpg", "image/jpeg");
+		CONTENT_TYPES.put("jpeg", "image/jpeg");
+		CONTENT_TYPES.put("gif", "image/gif");
+		CONTENT_TYPES.put("bmp", "image/bmp");
+		CONTENT_TYPES.put("webp", "image/webp");
+		CONTENT_TYPES.put("ico", "image/x-icon");
+		CONTENT_TYPES.put("woff", "font/woff");
+		CONTENT_TYPES.put("woff2", "font/woff2");
+		CONTENT_TYPES.put("wasm", "application/wasm");
+		CONTENT_TYPES.put("pdf", "application/pdf");
+	}
+
+	private File root;
+	private String defaultPage;
+	private OpenFileCache files;
+	private ResponseCompressor compressor;
+
+	/**
+	 * @param maxOpenFiles The number of files to keep open
+	 * @param checkInterval Milliseconds before an open file is checked against the disk again
+	 * @param compressor Compresses files for clients that accept gzip, null to send them as they are
+	 */
+	public StaticFiles(File root, String defaultPage, int maxOpenFiles, long checkInterval,
+			ResponseCompressor compressor) throws IOException {
+		this.root = root;
+		this.defaultPage = defaultPage;
+		this.compressor = compressor;
+		files = new OpenFileCache(root, maxOpenFiles, checkInterval);
+	}
+
+	/**
+	 * A response that is ready to be sent: the head, and then the part of the file
+	 * (if any) that follows it
+	 */
+	public static class Response {
+
+		private int status;
+		private byte[] head;
+		private OpenFileCache.OpenFile file;
+		private byte[] body;
+		private long position, count;
+
+		private Response(int status, String head) {
+			this.status = status;
+			this.head = head.getBytes(ISO_8859_1);
+		}
+
+		public int getStatus() {
+			return status;
+		}
+
+		public byte[] getHead() {
+			return head;
+		}
+
+		/**
+		 * @return True if a part of the file or of the body follows the head
+		 */
+		public boolean hasBody() {
+			return file != null || body != null;
+		}
+
+		/**
+		 * @return The file to send after the head, null if the response has no body from a file
+		 */
+		public OpenFileCache.OpenFile getFile() {
+			return file;
+		}
+
+		/**
+		 * @return The body to send after the head when it is not a file (a compressed variant), or null
+		 */
+		public byte[] getBody() {
+			return body;
+		}
+
+		public long getPosition() {
+			return position;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Let the file go, once it was sent or when sending it failed
+		 */
+		public void release() {
+			if(file != null) {
+				file.release();
+				file = null;
+			}
+		}
+	}
+
+	/**
+	 * Send the response to a blocking stream. A stream has no channel to send the file to
+	 * without a copy, the file is copied through a transfer buffer.
+	 *
+	 * @param path The path of the request, without the query
+	 * @return The status code sent
+	 */
+	public int serve(HTTPRequest request, String path, OutputStream output) throws IOException {
+		Response response = prepare(request, path);
+		try {
+			output.write(response.getHead());
+			if(response.getBody() != null) {
+				output.write(response.getBody(), (int) response.getPosition(), (int) response.getCount());
+			} else if(response.getFile() != null) {
+				WritableByteChannel channel = Channels.newChannel(output);
+				long position = response.getPosition(), end = position + response.getCount();
+				while(position < end) {
+					long sent = response.getFile().getChannel().transferTo(position, end - position, channel);
+					if(sent <= 0)
+						throw new IOException("File is shorter than its length");
+					position += sent;
+				}
+			}
+			output.flush();
+		} finally {
+			response.release();
+		}
+		return response.getStatus();
+	}
+
+	/**
+	 * Find the file for the request and build the head of its response
+	 *
+	 * @param path The path of the request, without the query
+	 */
+	public Response prepare(HTTPRequest request, String path) throws IOException {
+		Method method = request.getMethod();
+		if(method != Method.GET && method != Method.HEAD)
+			return simple(405, "Method Not Allowed", "Allow: GET, HEAD" + CRLF);
+
+		String decoded = decode(path);
+		if(decoded == null)
+			return simple(400, "Bad Request", "");
+		File file = new File(root, decoded);
+		if(file.isDirectory()) {
+			if(!path.endsWith("/"))
+				return simple(301, "Moved Permanently", "Location: " + path + "/" + CRLF);
+			file = new File(file, defaultPage);
+		}
+
+		OpenFileCache.OpenFile open = files.acquire(file);
+		if(open == null)
+			return simple(404, "Not Found", "");
+		String contentType = contentType(file.getName());
+		boolean compressible = compressor != null && ResponseCompressor.isCompressible(contentType);
+		Response response = null;
+		try {
+			if(compressible && ResponseCompressor.acceptsGzip(request))
+				response = respondCompressed(request, file, open, contentType);
+			if(response == null)
+				response = respondFile(request, open, contentType, compressible ? VARY : "");
+			return response;
+		} finally {
+			if(response == null || response.file != open)
+				open.release();
+		}
+	}
+
+	/**
+	 * @return The gzip response, or null if the file is sent as it is
+	 */
+	private Response respondCompressed(HTTPRequest request, File file, OpenFileCache.OpenFile open,
+			String contentType) throws IOException {
+		OpenFileCache.OpenFile precompressed = files.acquire(new File(file.getPath() + ".gz"));
+		if(precompressed != null) {
+			Response response = null;
+			try {
+				// A sibling that is older than the file is out of date
+				if(precompressed.getLastModified() >= open.getLastModified())
+					response = respondFile(request, precompressed, contentType, VARY + GZIP);
+			} finally {
+				if(response == null || response.file != precompressed)
+					precompressed.release();
+			}
+			if(response != null)
+				return response;
+		}
+
+		long length = open.getLength();
+		if(!compressor.isWorthIt(length) || !compressor.fitsVariant(length))
+			return null;
+		String etag = open.getEtag().substring(0, open.getEtag().length() - 1) + "-gzip\"";
+		byte[] body = null;
+		if(!notModified(request, etag, open.getLastModified()))
+			body = compressor.compress(file.getPath() + etag, open.getChannel(), 0, length);
+		Response response = respond(request, etag, open.getLastModified(), open.getLastModifiedHeader(),
+				body != null ? body.length : 0, contentType, VARY + GZIP);
+		if(response.count > 0)
+			response.body = body;
+		return response;
+	}
+
+	private Response respondFile(HTTPRequest request, OpenFileCache.OpenFile open, String contentType, String headers) {
+		Response response = respond(request, open.getEtag(), open.getLastModified(), open.getLastModifiedHeader(),
+				open.getLength(), contentType, headers);
+		if(response.count > 0)
+			response.file = open;
+		return response;
+	}
+
+	/**
+	 * Build the head for a representation of the file and choose the part of it to send
+	 *
+	 * @param headers Header lines the response carries, for its encoding
+	 */
+	private Response respond(HTTPRequest request, String etag, long lastModified, String lastModifiedHeader,
+			long length, String contentType, String headers) {
+		String validators = "ETag: " + etag + CRLF + "Last-Modified: " + lastModifiedHeader + CRLF + headers;
+		if(notModified(request, etag, lastModified))
+			return new Response(304, "HTTP/1.1 304 Not Modified" + CRLF + validators + CRLF);
+
+		long first = 0, last = length - 1;
+		String range = request.getHeader("range");
+		if(range != null && ifRangeMatches(request, etag, lastModifiedHeader)) {
+			long[] bounds = parseRange(range, length);
+			if(bounds != null && bounds[0] < 0)
+				return simple(416, "Range Not Satisfiable", "Content-Range: bytes */" + length + CRLF);
+			if(bounds != null) {
+				first = bounds[0];
+				last = bounds[1];
+			}
+		}
+		boolean partial = first != 0 || last != length - 1;
+
+		StringBuilder head = new StringBuilder(256);
+		head.append(partial ? "HTTP/1.1 206 Partial Content" : "HTTP/1.1 200 OK").append(CRLF);
+		head.append("Content-Type: ").append(contentType).append(CRLF);
+		head.append("Content-Length: ").append(last - first + 1).append(CRLF);
+		if(partial)
+			head.append("Content-Range: bytes ").append(first).append('-').append(last).append('/').append(length).append(CRLF);
+		head.append("Accept-Ranges: bytes").append(CRLF);
+		head.append(validators).append(CRLF);
+
+		Response response = new Response(partial ? 206 : 200, head.toString());
+		if(request.getMethod() != Method.HEAD && last >= first) {
+			response.position = first;
+			response.count = last - first + 1;
+		}
+		return response;
+	}
+
+	/**
+	 * If-None-Match wins over If-Modified-Since (RFC 7232 section 6)
+	 */
+	private static boolean notModified(HTTPRequest request, String etag, long lastModified) {
+		String noneMatch = request.getHeader("if-none-match");
+		if(noneMatch != null) {
+			for(String tag : noneMatch.split(",")) {
+				tag = tag.trim();
+				if(tag.startsWith("W/"))
+					tag = tag.substring(2);
+				if(tag.equals("*") || tag.equals(etag))
+					return true;
+			}
+			return false;
+		}
+		String modifiedSince = request.getHeader("if-modified-since");
+		if(modifiedSince == null)
+			return false;
+		long since = ResponseCache.parseDate(modifiedSince);
+		// Dates in headers have whole seconds
+		return since > 0 && lastModified / 1000 <= since / 1000;
+	}
+
+	/**
+	 * A range is only served if the client still has the same version of the file
+	 */
+	private static boolean ifRangeMatches(HTTPRequest request, String etag, String lastModifiedHeader) {
+		String ifRange = request.getHeader("if-range");
+		if(ifRange == null)
+			return true;
+		ifRange = ifRange.trim();
+		if(ifRange.startsWith("\""))
+			return ifRange.equals(etag);
+		return ifRange.equals(lastModifiedHeader);
+	}
+
+	/**
+	 * Parse a single range of bytes=first-last, bytes=first- or bytes=-suffix.
+	 * Several ranges are not supported, the whole file is sent for them.
+	 *
+	 * @return {first, last}, {-1, -1} if the range is outside the file, or null to send the whole file
+	 */
+	static long[] parseRange(String range, long length) {
+		range = range.trim();
+		if(!range.regionMatches(true, 0, "bytes=", 0, 6) || range.indexOf(',') != -1)
+			return null;
+		String spec = range.substring(6).trim();
+		int dash = spec.indexOf('-');
+		if(dash == -1)
+			return null;
+		long first, last;
+		try {
+			if(dash == 0) {
+				long suffix = Long.parseLong(spec.substring(1));
+				if(suffix <= 0)
+					return new long[] { -1, -1 };
+				first = Math.max(0, length - suffix);
+				last = length - 1;
+			} else {
+				first = Long.parseLong(spec.substring(0, dash));
+				last = dash == spec.length() - 1 ? length - 1 : Long.parseLong(spec.substring(dash + 1));
+				if(last < first)
+					return null;
+				last = Math.min(last, length - 1);
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		if(first >= length || first < 0)
+			return new long[] { -1, -1 };
+		return new long[] { first, last };
+	}
+
+	private static Response simple(int status, String reason, String headers) {
+		return new Response(status, "HTTP/1.1 " + status + " " + reason + CRLF + headers
+				+ "Content-Length: 0" + CRLF + CRLF);
+	}
+
+	private static String contentType(String name) {
+		int dot = name.lastIndexOf('.');
+		String type = dot != -1 ? CONTENT_TYPES.get(name.substring(dot + 1).toLowerCase()) : null;
+		return type != null ? type : "application/octet-stream";
+	}
+
+	/**
+	 * Percent decode the path as UTF-8 and refuse anything that could leave the root
+	 *
+	 * @return The relative path, or null if it is not acceptable
+	 */
+	static String decode(String path) {
+		if(!path.startsWith("/"))
+			return null;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(path.length());
+		for(int i = 0; i < path.length(); i++) {
+			char c = path.charAt(i);
+			if(c == '%') {
+				if(i + 2 >= path.length())
+					return null;
+				int high = Character.digit(path.charAt(i + 1), 16), low = Character.digit(path.charAt(i + 2), 16);
+				if(high < 0 || low < 0)
+					return null;
+				bytes.write(high * 16 + low);
+				i += 2;
+			} else {
+				bytes.write(c);
+			}
+		}
+		String decoded = new String(bytes.toByteArray(), UTF_8);
+		if(decoded.indexOf('\0') != -1 || decoded.indexOf('\\') != -1)
+			return null;
+		for(String segment : decoded.split("/")) {
+			if(segment.equals(".."))
+				return null;
+		}
+		return decoded.substring(1);
+	}
+}
@@ -0,0 +1,123 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+
+/**
+ * A hashed timer wheel: timeouts are put in the slot of the tick they expire in, and
+ * one thread moves over the slots a tick at a time. Scheduling and cancelling cost
+ * the same for any number of timeouts, so every connection can have a deadline
+ * without a timer thread or a sorted queue of its own.
+ * A timeout fires up to one tick late, never early.
+ */
+public class TimerWheel implements Runnable {
+
+	private long tickMillis;
+	private ArrayList<LinkedHashSet<Timeout>> slots;
+	private long tick = 0;
+
+	/**
+	 * @param tickMillis The resolution of the timeouts
+	 * @param slotCount Timeouts further away than a turn of the wheel wait for more turns
+	 */
+	public TimerWheel(long tickMillis, int slotCount) {
+		this.tickMillis = tickMillis;
+		slots = new ArrayList<LinkedHashSet<Timeout>>(slotCount);
+		for(int i = 0; i < slotCount; i++) {
+			slots.add(new LinkedHashSet<Timeout>());
+		}
+	}
+
+	/**
+	 * Start the thread that turns the wheel
+	 */
+	public void start(String name) {
+		Thread thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @param task Runs on the thread of the wheel, it must not block
+	 * @param delay Milliseconds from now
+	 */
+	public synchronized Timeout schedule(Runnable task, long delay) {
+		// Part of the current tick is gone already, it does not count
+		long ticks = (delay + tickMillis - 1) / tickMillis + 1;
+		Timeout timeout = new Timeout(task, (int) ((tick + ticks) % slots.size()), (ticks - 1) / slots.size());
+		slots.get(timeout.slot).add(timeout);
+		return timeout;
+	}
+
+	@Override
+	public void run() {
+		long next = System.nanoTime();
+		while(true) {
+			next += tickMillis * 1000000L;
+			long sleep = (next - System.nanoTime()) / 1000000L;
+			if(sleep > 0) {
+				try {
+					Thread.sleep(sleep);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			for(Timeout timeout : advance()) {
+				try {
+					timeout.task.run();
+				} catch (RuntimeException e) {
+					Log.error("A timeout failed", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Move to the next tick
+	 *
+	 * @return The timeouts that expired
+	 */
+	private synchronized ArrayList<Timeout> advance() {
+		tick++;
+		ArrayList<Timeout> expired = new ArrayList<Timeout>();
+		Iterator<Timeout> iterator = slots.get((int) (tick % slots.size())).iterator();
+		while(iterator.hasNext()) {
+			Timeout timeout = iterator.next();
+			if(timeout.rounds > 0) {
+				timeout.rounds--;
+				continue;
+			}
+			iterator.remove();
+			timeout.done = true;
+			expired.add(timeout);
+		}
+		return expired;
+	}
+
+	public class Timeout {
+
+		private Runnable task;
+		private int slot;
+		private long rounds;
+		private boolean done = false;
+
+		private Timeout(Runnable task, int slot, long rounds) {
+			this.task = task;
+			this.slot = slot;
+			this.rounds = rounds;
+		}
+
+		/**
+		 * @return False if the timeout already fired
+		 */
+		public boolean cancel() {
+			synchronized(TimerWheel.this) {
+				if(done)
+					return false;
+				done = true;
+				slots.get(slot).remove(this);
+				return true;
+			}
+		}
+	}
+}
@@ -0,0 +1,81 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A token bucket that is refilled at a fixed rate and holds at most burst tokens.
+ * The bucket is kept as the single time at which it will be full again (the generic
+ * cell rate algorithm), so the tokens never have to be refilled by a timer and taking
+ * them is one compare and set, threads that share a bucket never block each other.
+ */
+public class TokenBucket {
+
+	private static final long NANOS_PER_SECOND = 1000000000L;
+
+	private long rate;
+	private long burstNanos;
+	// The bucket is full from this time on (System.nanoTime()), later means tokens are missing
+	private AtomicLong full;
+
+	/**
+	 * @param rate Tokens added per second
+	 * @param burst The tokens the bucket holds when it is full
+	 */
+	public TokenBucket(long rate, long burst) {
+		this(rate, burst, System.nanoTime());
+	}
+
+	/**
+	 * @param now System.nanoTime(), the bucket is full from then on
+	 */
+	public TokenBucket(long rate, long burst, long now) {
+		this.rate = rate;
+		burstNanos = cost(Math.max(burst, 1));
+		full = new AtomicLong(now);
+	}
+
+	/**
+	 * Take the tokens if the bucket has them all
+	 *
+	 * @param now System.nanoTime()
+	 * @return False if the bucket has too few, none were taken
+	 */
+	public boolean tryTake(long tokens, long now) {
+		long cost = cost(tokens);
+		while(true) {
+			long current = full.get();
+			long next = Math.max(current, now) + cost;
+			if(next - now > burstNanos)
+				return false;
+			if(full.compareAndSet(current, next))
+				return true;
+		}
+	}
+
+	/**
+	 * Take the tokens even if the bucket does not have them yet, for bytes that are
+	 * going to be sent anyway
+	 *
+	 * @param now System.nanoTime()
+	 * @return The nanoseconds to wait until the tokens are there, 0 if they already are
+	 */
+	public long take(long tokens, long now) {
+		long cost = cost(tokens);
+		while(true) {
+			long current = full.get();
+			long next = Math.max(current, now) + cost;
+			if(full.compareAndSet(current, next))
+				return Math.max(0, next - now - burstNanos);
+		}
+	}
+
+	/**
+	 * @return True if the bucket is full, it then does the same as a new one
+	 */
+	public boolean isFull(long now) {
+		return full.get() - now <= 0;
+	}
+
+	private long cost(long tokens) {
+		return tokens * NANOS_PER_SECOND / rate;
+	}
+}
@@ -0,0 +1,36 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * A DataOutputStream whose writes do not take the monitor of the stream. The writes of
+ * DataOutputStream are synchronized, a virtual thread that blocks on a slow client
+ * under that monitor is pinned to its carrier thread. A response stream is only
+ * written by one thread at a time, so it does not need the monitor.
+ */
+public class UnlockedDataOutputStream extends DataOutputStream {
+
+	public UnlockedDataOutputStream(OutputStream output) {
+		super(output);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		out.write(b);
+		count(1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		count(len);
+	}
+
+	private void count(int bytes) {
+		written += bytes;
+		// Stays at the largest int like DataOutputStream does
+		if(written < 0)
+			written = Integer.MAX_VALUE;
+	}
+}
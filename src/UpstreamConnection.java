@@ -0,0 +1,99 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+
+/**
+ * A socket to a destination host together with its streams, so it can be kept
+ * in the {@link UpstreamPool} and used again by a later request.
+ */
+public class UpstreamConnection {
+
+	private String key;
+	private Socket socket;
+	private SocketInput input;
+	private SocketOutput output;
+	private long lastUsed;
+	private boolean reused = false;
+
+	/**
+	 * @param buffers The buffers of the socket streams come from here while a request uses them
+	 */
+	public UpstreamConnection(String key, Socket socket, BufferPool buffers) throws IOException {
+		this.key = key;
+		this.socket = socket;
+		input = new SocketInput(socket.getInputStream(), buffers);
+		output = new SocketOutput(socket.getOutputStream(), buffers);
+		lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Check that the destination host did not close the socket while it was idle.
+	 * An idle socket should have nothing to read: a non blocking read that finds nothing
+	 * means it is alive, while the end of the stream or data we can not use means it is dead.
+	 * The FIN of the host is only seen by reading, available() does not report it.
+	 * A socket without a channel can only be checked for unread data.
+	 */
+	public boolean isAlive() {
+		if(socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown())
+			return false;
+		try {
+			if(input.available() > 0)
+				return false;
+			SocketChannel channel = socket.getChannel();
+			if(channel == null)
+				return true;
+			channel.configureBlocking(false);
+			try {
+				return channel.read(ByteBuffer.allocate(1)) == 0;
+			} finally {
+				channel.configureBlocking(true);
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	public void close() {
+		try {
+			input.close();
+			socket.close();
+		} catch (IOException e) {
+			// Nothing to do
+		}
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public Socket getSocket() {
+		return socket;
+	}
+
+	public SocketInput getInput() {
+		return input;
+	}
+
+	public SocketOutput getOutput() {
+		return output;
+	}
+
+	public long getLastUsed() {
+		return lastUsed;
+	}
+
+	void markIdle() {
+		input.release();
+		lastUsed = System.currentTimeMillis();
+		reused = true;
+	}
+
+	/**
+	 * @return True if the connection already carried a previous request
+	 */
+	public boolean isReused() {
+		return reused;
+	}
+}
@@ -0,0 +1,165 @@
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+
+/**
+ * Opens connections to destination hosts with a time limit, racing the addresses of a
+ * host like Happy Eyeballs (RFC 8305): the first address is tried, and if it has not
+ * connected after a short delay the next one is tried beside it, and so on. The first
+ * connection that succeeds is used and the others are closed, so one dead address
+ * costs a request the delay and not the whole connect timeout.
+ * The attempts are non blocking channels on a selector of the calling thread, no other
+ * thread is used.
+ */
+public class UpstreamConnector {
+
+	private int connectTimeout;
+	private int readTimeout;
+	private int attemptDelay;
+
+	/**
+	 * @param connectTimeout Milliseconds to wait for any address to connect, 0 for no limit
+	 * @param readTimeout Milliseconds a read from the connected socket may wait, 0 for no limit
+	 * @param attemptDelay Milliseconds to give an address before the next one is tried as well
+	 */
+	public UpstreamConnector(int connectTimeout, int readTimeout, int attemptDelay) {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		this.attemptDelay = attemptDelay;
+	}
+
+	/**
+	 * @param addresses The addresses of the host, in the order of preference
+	 * @return A connected blocking socket with the read timeout set
+	 * @throws SocketTimeoutException If no address connected in time
+	 * @throws ConnectException If every address refused or failed
+	 */
+	public Socket connect(InetAddress[] addresses, int port) throws IOException {
+		InetAddress[] ordered = interleave(addresses);
+		long deadline = connectTimeout > 0 ? System.nanoTime() + connectTimeout * 1000000L : Long.MAX_VALUE;
+		ArrayList<SocketChannel> attempts = new ArrayList<SocketChannel>(ordered.length);
+		SocketChannel winner = null;
+		IOException lastError = null;
+		int next = 0, pending = 0;
+		long nextAttempt = 0;
+
+		Selector selector = Selector.open();
+		try {
+			while(winner == null) {
+				long now = System.nanoTime();
+				if(now >= deadline)
+					throw new SocketTimeoutException("Connect timed out after " + connectTimeout + " ms");
+				// Start the next address when the delay passed, or right away when nothing is pending
+				if(next < ordered.length && (now >= nextAttempt || pending == 0)) {
+					try {
+						SocketChannel channel = startAttempt(selector, ordered[next], port);
+						attempts.add(channel);
+						if(channel.isConnected())
+							winner = channel;
+						else
+							pending++;
+					} catch (IOException e) {
+						lastError = e;
+					}
+					next++;
+					nextAttempt = now + attemptDelay * 1000000L;
+					continue;
+				}
+				if(pending == 0)
+					throw lastError != null ? lastError : new ConnectException("No address to connect to");
+
+				long wait = deadline - now;
+				if(next < ordered.length)
+					wait = Math.min(wait, nextAttempt - now);
+				selector.select(Math.max(1, wait / 1000000L));
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext() && winner == null) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					SocketChannel channel = (SocketChannel) key.channel();
+					try {
+						if(channel.finishConnect())
+							winner = channel;
+					} catch (IOException e) {
+						// This address failed, the next one may start right away
+						lastError = e;
+						channel.close();
+						pending--;
+						nextAttempt = 0;
+					}
+				}
+			}
+		} finally {
+			selector.close();
+			for(SocketChannel channel : attempts) {
+				if(channel != winner)
+					channel.close();
+			}
+		}
+
+		winner.configureBlocking(true);
+		Socket socket = winner.socket();
+		socket.setSoTimeout(readTimeout);
+		socket.setTcpNoDelay(true);
+		return socket;
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	private static SocketChannel startAttempt(Selector selector, InetAddress address, int port) throws IOException {
+		SocketChannel channel = SocketChannel.open();
+		try {
+			channel.configureBlocking(false);
+			if(!channel.connect(new InetSocketAddress(address, port)))
+				channel.register(selector, SelectionKey.OP_CONNECT);
+			return channel;
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Alternate the address families, starting with the family of the first address,
+	 * so a broken IPv6 or IPv4 path costs only one delay
+	 */
+	static InetAddress[] interleave(InetAddress[] addresses) {
+		if(addresses.length < 3)
+			return addresses;
+		boolean firstIsV6 = addresses[0] instanceof Inet6Address;
+		ArrayList<InetAddress> same = new ArrayList<InetAddress>();
+		ArrayList<InetAddress> other = new ArrayList<InetAddress>();
+		for(InetAddress address : addresses) {
+			if((address instanceof Inet6Address) == firstIsV6)
+				same.add(address);
+			else
+				other.add(address);
+		}
+		InetAddress[] ordered = new InetAddress[addresses.length];
+		int i = 0, a = 0, b = 0;
+		while(a < same.size() || b < other.size()) {
+			if(a < same.size())
+				ordered[i++] = same.get(a++);
+			if(b < other.size())
+				ordered[i++] = other.get(b++);
+		}
+		return ordered;
+	}
+}
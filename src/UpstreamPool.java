@@ -0,0 +1,127 @@
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Keeps idle persistent connections to destination hosts, per host and port
+ * ({@link RequestTarget#getKey()}).
+ * The most recently used connection is handed out first so the rest of the idle
+ * connections of a host can time out, a background task closes them.
+ */
+public class UpstreamPool {
+
+	private int maxIdlePerHost;
+	private long idleTimeout;
+	private ConcurrentHashMap<String, ConcurrentLinkedDeque<UpstreamConnection>> idle;
+
+	public UpstreamPool(int maxIdlePerHost, long idleTimeout) {
+		this.maxIdlePerHost = maxIdlePerHost;
+		this.idleTimeout = idleTimeout;
+		idle = new ConcurrentHashMap<String, ConcurrentLinkedDeque<UpstreamConnection>>();
+
+		if(maxIdlePerHost > 0 && idleTimeout > 0) {
+			ScheduledExecutorService cleaner = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "upstream-pool-cleaner");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			cleaner.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					closeExpired();
+				}
+			}, idleTimeout, idleTimeout, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Take an idle connection to the given host
+	 *
+	 * @return A live connection, or null if the pool has none
+	 */
+	public UpstreamConnection checkout(String key) {
+		ConcurrentLinkedDeque<UpstreamConnection> connections = idle.get(key);
+		if(connections == null)
+			return null;
+
+		UpstreamConnection connection;
+		long now = System.currentTimeMillis();
+		while((connection = connections.pollFirst()) != null) {
+			if(now - connection.getLastUsed() < idleTimeout && connection.isAlive())
+				return connection;
+			connection.close();
+		}
+		removeIfEmpty(key, connections);
+		return null;
+	}
+
+	/**
+	 * Return a connection that finished reading exactly one response
+	 */
+	public void release(UpstreamConnection connection) {
+		if(maxIdlePerHost <= 0) {
+			connection.close();
+			return;
+		}
+
+		connection.markIdle();
+		ConcurrentLinkedDeque<UpstreamConnection> connections;
+		while(true) {
+			connections = idle.get(connection.getKey());
+			if(connections == null) {
+				connections = new ConcurrentLinkedDeque<UpstreamConnection>();
+				ConcurrentLinkedDeque<UpstreamConnection> previous = idle.putIfAbsent(connection.getKey(), connections);
+				if(previous != null)
+					connections = previous;
+			}
+			connections.offerFirst(connection);
+			if(idle.get(connection.getKey()) == connections)
+				break;
+			// The list was removed as empty meanwhile, unless its remover closed the connection it goes to the new one
+			if(!connections.remove(connection))
+				return;
+		}
+
+		// Drop the least recently used connections over the limit
+		UpstreamConnection extra;
+		while(connections.size() > maxIdlePerHost && (extra = connections.pollLast()) != null) {
+			extra.close();
+		}
+	}
+
+	private void closeExpired() {
+		long now = System.currentTimeMillis();
+		for(Map.Entry<String, ConcurrentLinkedDeque<UpstreamConnection>> entry : idle.entrySet()) {
+			Iterator<UpstreamConnection> iterator = entry.getValue().iterator();
+			while(iterator.hasNext()) {
+				UpstreamConnection connection = iterator.next();
+				if(now - connection.getLastUsed() >= idleTimeout && entry.getValue().remove(connection))
+					connection.close();
+			}
+			removeIfEmpty(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Forget a host that has no idle connections left, so the map does not keep every
+	 * host ever contacted. A connection that is released into the list while it is
+	 * removed is closed here, or moved to a new list by {@link #release(UpstreamConnection)}.
+	 */
+	private void removeIfEmpty(String key, ConcurrentLinkedDeque<UpstreamConnection> connections) {
+		if(!connections.isEmpty() || !idle.remove(key, connections))
+			return;
+		UpstreamConnection late;
+		while((late = connections.pollFirst()) != null) {
+			late.close();
+		}
+	}
+}
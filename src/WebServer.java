@@ -1,5 +1,6 @@
-import java.io.File;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.concurrent.ExecutorService;
@@ -11,37 +12,131 @@ import java.util.concurrent.Executors;
  *
  */
 public class WebServer {
-	
-	private int port, maxThreads;
-	private String defaultPage;
-	private File root;
+
+	private static final String ENGINE_NIO = "nio";
+	private static final long REAPER_TICK = 100;
+	private static final int REAPER_SLOTS = 512;
+
+	private int port;
 	private ServerSocket server;
 	private ExecutorService threadsPool;
+	private NioServer nioServer;
+	private ServerContext context;
+
+	public WebServer(ServerConfig config) throws IOException {
+
+		this.port = config.getPort();
+		context = new ServerContext(config);
+		startMetricsServer(config);
+
+		String engine = config.getString("engine", "blocking");
+		if(engine.equalsIgnoreCase(ENGINE_NIO)) {
+			int loops = config.getInt("ioThreads", Runtime.getRuntime().availableProcessors());
+			nioServer = new NioServer(port, loops, context);
+			Log.info("Listening port: " + this.port + " (nio engine, " + loops + " event loops)");
+			warnNioLimits();
+			return;
+		}
 
-	public WebServer(File root, String defaultPage, int port, int maxThreads) throws IOException {
-		
-		this.port = port;
-		this.maxThreads = maxThreads;
-		this.root = root;
-		this.defaultPage = defaultPage;
-		threadsPool = Executors.newFixedThreadPool(this.maxThreads);
+		threadsPool = createThreadsPool();
+		context.setWorkers(threadsPool);
+		// A blocked read has no timeout of its own, the reaper closes the sockets of idle clients
+		TimerWheel reaper = new TimerWheel(REAPER_TICK, REAPER_SLOTS);
+		reaper.start("Connection reaper");
+		context.setReaper(reaper);
 		server = new ServerSocket(port);
-		System.out.println("Listening port: " + this.port);
+		Log.info("Listening port: " + this.port);
+	}
+
+	/**
+	 * The non blocking engine only relays requests and serves the static files, say so
+	 * when the config turns on something that only the blocking engine does
+	 */
+	private void warnNioLimits() {
+		if(context.getResponseCache().isEnabled())
+			Log.warn("The response cache is not used by the nio engine");
+		if(context.getCompressor() != null)
+			Log.warn("The nio engine only compresses static files, relayed responses are sent as they are");
+		if(context.getCoalescer() != null)
+			Log.warn("Identical requests are not coalesced by the nio engine");
+	}
+
+	/**
+	 * Open the admin port if one is configured, it only listens on the loopback address
+	 * unless adminAddress says otherwise
+	 */
+	private void startMetricsServer(ServerConfig config) {
+		int adminPort = config.getInt("adminPort", 0);
+		if(adminPort <= 0)
+			return;
+		String adminAddress = config.getString("adminAddress", "127.0.0.1");
+		try {
+			new MetricsServer(InetAddress.getByName(adminAddress), adminPort, context.getMetrics()).start();
+			Log.info("Metrics on http://" + adminAddress + ":" + adminPort + "/metrics");
+		} catch (IOException e) {
+			Log.error("Failed to open the admin port " + adminPort + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Every connection gets its own thread, the number of connections is bounded by
+	 * the {@link ConnectionLimiter} and not by the size of the pool.
+	 * Virtual threads are used when the JVM has them (Java 21 and above).
+	 */
+	private ExecutorService createThreadsPool() {
+		try {
+			java.lang.reflect.Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			Log.info("Using virtual threads for connections");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			// Older JVM, fall back to platform threads
+			return Executors.newCachedThreadPool();
+		}
 	}
 
 
 	public void run() {
+		if(nioServer != null) {
+			nioServer.run();
+			return;
+		}
+
 		while(true) {
 			try {
 				Socket connectiont = server.accept();
-				HTTPConnection HttpConnection = new HTTPConnection(connectiont, root, defaultPage);
-				threadsPool.execute(HttpConnection);
-				
+				String clientAddress = connectiont.getInetAddress().getHostAddress();
+				if(!context.getLimiter().tryAcquireClient(clientAddress)) {
+					rejectConnection(connectiont);
+					continue;
+				}
+				try {
+					HTTPConnection HttpConnection = new HTTPConnection(connectiont, context);
+					threadsPool.execute(HttpConnection);
+				} catch (IOException e) {
+					context.getLimiter().releaseClient(clientAddress);
+					throw e;
+				}
+
 			} catch (IOException e) {
-				System.out.println("WARN: Failed to create the new connection");
-			}				
+				Log.warn("Failed to create the new connection: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Answer 503 to a connection that is over the limits and close it
+	 */
+	private void rejectConnection(Socket connection) {
+		try {
+			new HTTPResponse(new DataOutputStream(connection.getOutputStream())).generateSpecificResponse(503);
+		} catch (IOException e) {
+			// Nothing to do
+		}
+		try {
+			connection.close();
+		} catch (IOException e) {
+			// Nothing to do
 		}
 	}
-	
 
 }
@@ -0,0 +1,123 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+
+public class ChunkedDecoderTest {
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	private static ChunkedDecoder decoder(String body) {
+		return new ChunkedDecoder(new ByteArrayInputStream(body.getBytes(ISO_8859_1)));
+	}
+
+	private static String readAll(ChunkedDecoder decoder, int bufferSize) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[bufferSize];
+		int len;
+		while((len = decoder.read(buffer, 0, buffer.length)) != -1) {
+			bytes.write(buffer, 0, len);
+		}
+		return new String(bytes.toByteArray(), ISO_8859_1);
+	}
+
+	@Test
+	public void chunksAreJoined() throws Exception {
+		ChunkedDecoder decoder = decoder("6\r\nhello \r\n8\r\nchunked \r\n6\r\nworld\n\r\n0\r\n\r\n");
+		assertEquals("hello chunked world\n", readAll(decoder, 3));
+		assertTrue(decoder.isDone());
+		assertTrue(decoder.getTrailers().isEmpty());
+	}
+
+	@Test
+	public void extensionsAreSkippedAndTrailersKept() throws Exception {
+		ChunkedDecoder decoder = decoder("A;name=value\r\n0123456789\r\n0\r\nX-Trailer: yes\r\nX-Other: 1\r\n\r\n");
+		assertEquals("0123456789", readAll(decoder, 64));
+		assertEquals(Arrays.asList("X-Trailer: yes", "X-Other: 1"), decoder.getTrailers());
+	}
+
+	@Test
+	public void bareLineFeedsAreAccepted() throws Exception {
+		assertEquals("abc", readAll(decoder("3\nabc\n0\n\n"), 64));
+	}
+
+	@Test
+	public void nothingIsReadAfterTheLastChunk() throws Exception {
+		ByteArrayInputStream input = new ByteArrayInputStream("1\r\na\r\n0\r\n\r\nGET".getBytes(ISO_8859_1));
+		ChunkedDecoder decoder = new ChunkedDecoder(input);
+		assertEquals("a", readAll(decoder, 64));
+		assertEquals(-1, decoder.read(new byte[8], 0, 8));
+		assertEquals(3, input.available());
+	}
+
+	@Test
+	public void encodedBodyDecodesToTheSameBytes() throws Exception {
+		byte[] body = new byte[10000];
+		for(int i = 0; i < body.length; i++) {
+			body[i] = (byte) (i * 31);
+		}
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		ChunkedEncoder encoder = new ChunkedEncoder(encoded, new byte[1000]);
+		encoder.write(body, 0, 10);
+		encoder.write(body, 10, 4000);
+		encoder.write(body, 4010, body.length - 4010);
+		encoder.finish(null);
+
+		ChunkedDecoder decoder = new ChunkedDecoder(new ByteArrayInputStream(encoded.toByteArray()));
+		ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+		byte[] buffer = new byte[777];
+		int len;
+		while((len = decoder.read(buffer, 0, buffer.length)) != -1) {
+			decoded.write(buffer, 0, len);
+		}
+		assertArrayEquals(body, decoded.toByteArray());
+	}
+
+	@Test
+	public void bodyCutInAChunkFails() throws Exception {
+		ChunkedDecoder decoder = decoder("a\r\n01234");
+		try {
+			readAll(decoder, 64);
+			fail("The chunk is cut");
+		} catch (EOFException e) {
+			assertFalse(decoder.isDone());
+		}
+	}
+
+	@Test
+	public void bodyCutBeforeTheLastChunkFails() throws Exception {
+		try {
+			readAll(decoder("3\r\nabc\r\n"), 64);
+			fail("The last chunk is missing");
+		} catch (EOFException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void brokenFramingFails() throws Exception {
+		String[] broken = { "x\r\nabc\r\n0\r\n\r\n", "\r\nabc\r\n0\r\n\r\n", "3\r\nabcX\r\n0\r\n\r\n",
+				"1000000000000000\r\n" };
+		for(String body : broken) {
+			try {
+				readAll(decoder(body), 64);
+				fail("Accepted " + body);
+			} catch (EOFException e) {
+				fail("Not a framing error " + body);
+			} catch (IOException e) {
+				// Expected
+			}
+		}
+	}
+}
@@ -0,0 +1,76 @@
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+
+public class ChunkedEncoderTest {
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	private static byte[] bytes(String value) {
+		return value.getBytes(ISO_8859_1);
+	}
+
+	private static String string(ByteArrayOutputStream output) {
+		return new String(output.toByteArray(), ISO_8859_1);
+	}
+
+	@Test
+	public void smallWritesLeaveAsOneChunk() throws Exception {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ChunkedEncoder encoder = new ChunkedEncoder(output, new byte[64]);
+		encoder.write(bytes("hello "), 0, 6);
+		encoder.write('w');
+		encoder.write(bytes("orld"), 0, 4);
+		assertEquals("", string(output));
+		encoder.flush();
+		assertEquals("b\r\nhello world\r\n", string(output));
+	}
+
+	@Test
+	public void fullBufferIsSentAsAChunk() throws Exception {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ChunkedEncoder encoder = new ChunkedEncoder(output, new byte[4]);
+		encoder.write(bytes("ab"), 0, 2);
+		encoder.write(bytes("cdef"), 0, 4);
+		assertEquals("4\r\nabcd\r\n", string(output));
+		encoder.finish(null);
+		assertEquals("4\r\nabcd\r\n2\r\nef\r\n0\r\n\r\n", string(output));
+	}
+
+	@Test
+	public void largeWriteIsOneChunk() throws Exception {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ChunkedEncoder encoder = new ChunkedEncoder(output, new byte[16]);
+		byte[] body = new byte[300];
+		Arrays.fill(body, (byte) 'x');
+		encoder.write(body, 0, body.length);
+		String encoded = string(output);
+		assertEquals("12c\r\n", encoded.substring(0, 5));
+		assertEquals(5 + 300 + 2, encoded.length());
+	}
+
+	@Test
+	public void finishWritesTheTrailersOnce() throws Exception {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ChunkedEncoder encoder = new ChunkedEncoder(output, new byte[16]);
+		encoder.write(bytes("abc"), 0, 3);
+		encoder.finish(Arrays.asList("X-Trailer: yes"));
+		encoder.finish(null);
+		encoder.close();
+		assertEquals("3\r\nabc\r\n0\r\nX-Trailer: yes\r\n\r\n", string(output));
+	}
+
+	@Test
+	public void emptyBodyIsOnlyTheLastChunk() throws Exception {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ChunkedEncoder encoder = new ChunkedEncoder(output, new byte[16]);
+		encoder.flush();
+		encoder.close();
+		assertEquals("0\r\n\r\n", string(output));
+	}
+}
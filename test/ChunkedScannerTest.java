@@ -0,0 +1,67 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+
+public class ChunkedScannerTest {
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	private static ByteBuffer buffer(String value) {
+		return ByteBuffer.wrap(value.getBytes(ISO_8859_1));
+	}
+
+	@Test
+	public void endOfTheBodyIsFound() throws Exception {
+		String body = "5\r\nhello\r\n3;ext=1\r\nabc\r\n0\r\n\r\n";
+		ByteBuffer buffer = buffer(body + "GET / HTTP/1.1\r\n");
+		ChunkedScanner scanner = new ChunkedScanner();
+		assertEquals(body.length(), scanner.scan(buffer, 0, buffer.limit()));
+		assertTrue(scanner.isDone());
+		assertEquals(0, buffer.position());
+	}
+
+	@Test
+	public void bodyIsScannedInPieces() throws Exception {
+		String body = "a\r\n0123456789\r\n0\r\nX-Trailer: yes\r\n\r\n";
+		ByteBuffer buffer = buffer(body + "next");
+		ChunkedScanner scanner = new ChunkedScanner();
+		int scanned = 0;
+		for(int i = 0; i < body.length(); i++) {
+			assertFalse(scanner.isDone());
+			scanned += scanner.scan(buffer, i, i + 1);
+		}
+		assertTrue(scanner.isDone());
+		assertEquals(body.length(), scanned);
+		assertEquals(0, scanner.scan(buffer, body.length(), buffer.limit()));
+	}
+
+	@Test
+	public void scanningStopsInsideAChunk() throws Exception {
+		ByteBuffer buffer = buffer("10\r\n0123");
+		ChunkedScanner scanner = new ChunkedScanner();
+		assertEquals(buffer.limit(), scanner.scan(buffer, 0, buffer.limit()));
+		assertFalse(scanner.isDone());
+	}
+
+	@Test
+	public void brokenFramingFails() throws Exception {
+		String[] broken = { "x\r\n", "3\r\nabcX", "3\nabc", "\r\n", "3\r\nabc\r\n0\r\nX\rY" };
+		for(String body : broken) {
+			ByteBuffer buffer = buffer(body);
+			try {
+				new ChunkedScanner().scan(buffer, 0, buffer.limit());
+				fail("Accepted " + body);
+			} catch (IOException e) {
+				// Expected
+			}
+		}
+	}
+}
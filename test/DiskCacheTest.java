@@ -0,0 +1,117 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * The disk cache is written directly with put and compact, on the test thread, in a
+ * temporary directory.
+ */
+public class DiskCacheTest {
+
+	private static final int BODY_SIZE = 300;
+	private static final String HEAD = "HTTP/1.1 200 OK\r\nContent-Length: " + BODY_SIZE + "\r\n";
+
+	private File directory;
+
+	@Before
+	public void createDirectory() throws IOException {
+		directory = Files.createTempDirectory("disk-cache-test").toFile();
+	}
+
+	@After
+	public void deleteDirectory() {
+		File[] files = directory.listFiles();
+		if(files != null) {
+			for(File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	private static CacheEntry entry(String key, int fill) {
+		byte[] body = new byte[BODY_SIZE];
+		Arrays.fill(body, (byte) fill);
+		return new CacheEntry(key, HEAD, body, System.currentTimeMillis() + 60000, new HashMap<String, String>());
+	}
+
+	private static long recordSize(CacheEntry entry) {
+		// Prefix, times, key, vary, head, body length, body and CRC
+		return 8 + 16 + 4 + entry.getKey().length() + 4 + 4 + entry.getHead().length() + 8 + BODY_SIZE + 8;
+	}
+
+	private static void assertBody(DiskCache cache, String key, int fill) throws IOException {
+		DiskEntry entry = cache.get(key, new HashMap<String, String>());
+		assertNotNull(key + " is gone", entry);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		assertTrue(entry.writeTo(new DataOutputStream(bytes), ""));
+		byte[] response = bytes.toByteArray();
+		assertEquals(fill, response[response.length - 1]);
+		assertEquals(fill, response[response.length - BODY_SIZE]);
+	}
+
+	@Test
+	public void compactionNearTheSizeKeepsTheLiveRecords() throws Exception {
+		long record = recordSize(entry("/a", 0));
+		// Four records per segment, the log holds two segments and a bit
+		DiskCache cache = new DiskCache(directory, record * 8 + record / 2, record * 4);
+
+		cache.put(entry("/a", 1));
+		cache.put(entry("/b", 2));
+		cache.put(entry("/c", 3));
+		cache.put(entry("/d", 4));
+		// Half of the first segment is dead now
+		cache.put(entry("/c", 5));
+		cache.put(entry("/d", 6));
+		cache.put(entry("/e", 7));
+		cache.put(entry("/f", 8));
+
+		// Copying /a passes the size while the first segment still holds /b
+		cache.compact();
+
+		assertBody(cache, "/a", 1);
+		assertBody(cache, "/b", 2);
+		assertBody(cache, "/c", 5);
+		assertBody(cache, "/d", 6);
+		assertBody(cache, "/e", 7);
+		assertBody(cache, "/f", 8);
+		assertEquals(2, countSegments());
+	}
+
+	@Test
+	public void oldestSegmentIsDroppedWhenTheLogIsFull() throws Exception {
+		long record = recordSize(entry("/a", 0));
+		DiskCache cache = new DiskCache(directory, record * 4, record * 2);
+
+		for(int i = 0; i < 6; i++) {
+			cache.put(entry("/" + i, i));
+		}
+
+		assertEquals(null, cache.get("/0", new HashMap<String, String>()));
+		assertEquals(null, cache.get("/1", new HashMap<String, String>()));
+		assertBody(cache, "/4", 4);
+		assertBody(cache, "/5", 5);
+	}
+
+	private int countSegments() {
+		int count = 0;
+		for(String name : directory.list()) {
+			if(name.endsWith(".log"))
+				count++;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,158 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+
+/**
+ * The cache is tested against a stub resolver that answers from a table and counts
+ * how often it was asked, the times to live are short so they run out during a test.
+ */
+public class DnsCacheTest {
+
+	private static final long TTL = 200;
+	private static final long NEGATIVE_TTL = 100;
+
+	private static class StubResolver implements HostResolver {
+
+		private InetAddress[] addresses;
+		private AtomicInteger lookups = new AtomicInteger();
+
+		StubResolver(InetAddress... addresses) {
+			this.addresses = addresses;
+		}
+
+		@Override
+		public InetAddress[] resolve(String host) throws UnknownHostException {
+			lookups.incrementAndGet();
+			if(addresses.length == 0)
+				throw new UnknownHostException(host);
+			return addresses.clone();
+		}
+	}
+
+	private static InetAddress address(int last) throws UnknownHostException {
+		return InetAddress.getByAddress(new byte[] {10, 0, 0, (byte) last});
+	}
+
+	@Test
+	public void answerIsKeptUntilItExpires() throws Exception {
+		StubResolver resolver = new StubResolver(address(1));
+		DnsCache cache = new DnsCache(resolver, TTL, NEGATIVE_TTL, 0, 16);
+
+		assertEquals(address(1), cache.resolveAll("example.com")[0]);
+		assertEquals(address(1), cache.resolveAll("EXAMPLE.com")[0]);
+		assertEquals(1, resolver.lookups.get());
+
+		Thread.sleep(TTL + 50);
+		cache.resolveAll("example.com");
+		assertEquals(2, resolver.lookups.get());
+	}
+
+	@Test
+	public void failedLookupIsKeptForTheNegativeTtl() throws Exception {
+		StubResolver resolver = new StubResolver();
+		DnsCache cache = new DnsCache(resolver, TTL, NEGATIVE_TTL, 0, 16);
+
+		for(int i = 0; i < 3; i++) {
+			try {
+				cache.resolveAll("missing.example");
+				fail("The host has no addresses");
+			} catch (UnknownHostException e) {
+				// Expected
+			}
+		}
+		assertEquals(1, resolver.lookups.get());
+
+		Thread.sleep(NEGATIVE_TTL + 50);
+		try {
+			cache.resolveAll("missing.example");
+			fail("The host has no addresses");
+		} catch (UnknownHostException e) {
+			// Expected
+		}
+		assertEquals(2, resolver.lookups.get());
+	}
+
+	@Test
+	public void addressesAreHandedOutInTurn() throws Exception {
+		StubResolver resolver = new StubResolver(address(1), address(2), address(3));
+		DnsCache cache = new DnsCache(resolver, TTL, NEGATIVE_TTL, 0, 16);
+
+		for(int i = 0; i < 6; i++) {
+			InetAddress[] rotation = cache.resolveAll("example.com");
+			assertArrayEquals(new InetAddress[] {address(1 + i % 3), address(1 + (i + 1) % 3), address(1 + (i + 2) % 3)},
+					rotation);
+		}
+		assertEquals(1, resolver.lookups.get());
+	}
+
+	@Test
+	public void cachedAnswerIsGivenOnTheCallingThread() throws Exception {
+		StubResolver resolver = new StubResolver(address(1));
+		DnsCache cache = new DnsCache(resolver, TTL, NEGATIVE_TTL, 0, 16);
+		cache.resolveAll("example.com");
+
+		final AtomicReference<Thread> thread = new AtomicReference<Thread>();
+		final AtomicReference<InetAddress[]> answer = new AtomicReference<InetAddress[]>();
+		cache.resolveAll("example.com", new DnsCache.Callback() {
+			@Override
+			public void resolved(InetAddress[] addresses) {
+				thread.set(Thread.currentThread());
+				answer.set(addresses);
+			}
+		});
+		assertSame(Thread.currentThread(), thread.get());
+		assertEquals(address(1), answer.get()[0]);
+		assertEquals(1, resolver.lookups.get());
+	}
+
+	@Test
+	public void missIsLookedUpOnAnotherThread() throws Exception {
+		StubResolver resolver = new StubResolver(address(1));
+		DnsCache cache = new DnsCache(resolver, TTL, NEGATIVE_TTL, 0, 16);
+		StubResolver failing = new StubResolver();
+		DnsCache failingCache = new DnsCache(failing, TTL, NEGATIVE_TTL, 0, 16);
+
+		final CountDownLatch done = new CountDownLatch(2);
+		final AtomicReference<Thread> thread = new AtomicReference<Thread>();
+		final AtomicReference<InetAddress[]> answer = new AtomicReference<InetAddress[]>();
+		final AtomicReference<InetAddress[]> failed = new AtomicReference<InetAddress[]>(new InetAddress[0]);
+		cache.resolveAll("example.com", new DnsCache.Callback() {
+			@Override
+			public void resolved(InetAddress[] addresses) {
+				thread.set(Thread.currentThread());
+				answer.set(addresses);
+				done.countDown();
+			}
+		});
+		failingCache.resolveAll("missing.example", new DnsCache.Callback() {
+			@Override
+			public void resolved(InetAddress[] addresses) {
+				failed.set(addresses);
+				done.countDown();
+			}
+		});
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+
+		assertNotNull(thread.get());
+		assertTrue(thread.get() != Thread.currentThread());
+		assertEquals(address(1), answer.get()[0]);
+		assertNull(failed.get());
+		// The answer of the lookup thread is cached for the next request
+		cache.resolveAll("example.com");
+		assertEquals(1, resolver.lookups.get());
+	}
+}
@@ -0,0 +1,169 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * A connection of the blocking engine between a client socket and a destination host
+ * that is a scripted server socket, both on the loopback address.
+ */
+public class HTTPConnectionTest {
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	private ServerSocket origin, proxy;
+	private ServerContext context;
+
+	@Before
+	public void open() throws IOException {
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		origin = new ServerSocket(0, 50, loopback);
+		proxy = new ServerSocket(0, 50, loopback);
+		ServerConfig config = new ServerConfig(new File("."), "index.html", proxy.getLocalPort(), 10);
+		context = new ServerContext(config);
+	}
+
+	@After
+	public void close() throws IOException {
+		origin.close();
+		proxy.close();
+	}
+
+	/**
+	 * Answer one request of the destination host with the given bytes and close
+	 */
+	private void answerOnce(final String response) {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Socket socket = origin.accept();
+					try {
+						readHead(socket.getInputStream());
+						socket.getOutputStream().write(response.getBytes(ISO_8859_1));
+						socket.getOutputStream().flush();
+					} finally {
+						socket.close();
+					}
+				} catch (IOException e) {
+					// The test fails on the client side
+				}
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private static void readHead(InputStream input) throws IOException {
+		int last = 0, b;
+		while((b = input.read()) != -1) {
+			last = (last << 8) | b;
+			if(last == 0x0d0a0d0a)
+				return;
+		}
+	}
+
+	/**
+	 * Connect a client to a new connection of the proxy and send it the requests
+	 */
+	private Socket connect(String requests) throws IOException {
+		Socket client = new Socket(proxy.getInetAddress(), proxy.getLocalPort());
+		Thread thread = new Thread(new HTTPConnection(proxy.accept(), context));
+		thread.setDaemon(true);
+		thread.start();
+		client.setSoTimeout(5000);
+		OutputStream output = client.getOutputStream();
+		output.write(requests.getBytes(ISO_8859_1));
+		output.flush();
+		return client;
+	}
+
+	/**
+	 * @return Everything the proxy sent until it closed the connection
+	 */
+	private static String readUntilClose(Socket client) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		InputStream input = client.getInputStream();
+		byte[] buffer = new byte[4096];
+		int len;
+		while((len = input.read(buffer)) != -1) {
+			bytes.write(buffer, 0, len);
+		}
+		client.close();
+		return new String(bytes.toByteArray(), ISO_8859_1);
+	}
+
+	private String request(String path) {
+		String host = "127.0.0.1:" + origin.getLocalPort();
+		return "GET http://" + host + path + " HTTP/1.1\r\nHost: " + host + "\r\n\r\n";
+	}
+
+	@Test
+	public void bodyShorterThanItsLengthClosesTheClient() throws Exception {
+		answerOnce("HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\nabcd");
+		Socket client = connect(request("/short"));
+
+		// Waiting for the other 6 bytes would time out the read instead
+		String response = readUntilClose(client);
+		assertTrue(response, response.startsWith("HTTP/1.1 200 OK\r\n"));
+		assertTrue(response, response.endsWith("\r\n\r\nabcd"));
+	}
+
+	private static int countResponses(String received) {
+		int count = 0;
+		for(int i = received.indexOf("HTTP/1.1 "); i != -1; i = received.indexOf("HTTP/1.1 ", i + 1)) {
+			count++;
+		}
+		return count;
+	}
+
+	@Test
+	public void refusedMethodWithABodyClosesTheClient() throws Exception {
+		answerOnce("HTTP/1.1 200 OK\r\nContent-Length: 9\r\n\r\nsmuggled!");
+		String hidden = request("/hidden");
+		Socket client = connect("PUT /upload HTTP/1.1\r\nHost: example.com\r\nContent-Length: " + hidden.length()
+				+ "\r\n\r\n" + hidden);
+
+		// The body is not read as a request of its own
+		String response = readUntilClose(client);
+		assertTrue(response, response.startsWith("HTTP/1.1 501 "));
+		assertEquals(response, 1, countResponses(response));
+	}
+
+	@Test
+	public void missingHostWithAChunkedBodyClosesTheClient() throws Exception {
+		answerOnce("HTTP/1.1 200 OK\r\nContent-Length: 9\r\n\r\nsmuggled!");
+		String hidden = request("/hidden");
+		Socket client = connect("POST /upload HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+				+ Integer.toHexString(hidden.length()) + "\r\n" + hidden + "\r\n0\r\n\r\n");
+
+		String response = readUntilClose(client);
+		assertTrue(response, response.startsWith("HTTP/1.1 400 "));
+		assertEquals(response, 1, countResponses(response));
+	}
+
+	@Test
+	public void refusedMethodWithoutABodyKeepsTheClient() throws Exception {
+		answerOnce("HTTP/1.1 200 OK\r\nContent-Length: 4\r\nConnection: close\r\n\r\nnext");
+		String next = request("/next").replace("\r\n\r\n", "\r\nConnection: close\r\n\r\n");
+		Socket client = connect("DELETE /item HTTP/1.1\r\nHost: example.com\r\nContent-Length: 0\r\n\r\n" + next);
+
+		String response = readUntilClose(client);
+		assertTrue(response, response.startsWith("HTTP/1.1 501 "));
+		assertTrue(response, response.endsWith("\r\n\r\nnext"));
+		assertEquals(response, 2, countResponses(response));
+	}
+}
@@ -0,0 +1,120 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+
+public class HostPolicyTest {
+
+	private static HostPolicy policy(String... lines) {
+		return HostPolicy.compile(Arrays.asList(lines), "test");
+	}
+
+	private static InetAddress[] addresses(String... literals) throws Exception {
+		InetAddress[] addresses = new InetAddress[literals.length];
+		for(int i = 0; i < literals.length; i++) {
+			addresses[i] = InetAddress.getByName(literals[i]);
+		}
+		return addresses;
+	}
+
+	@Test
+	public void namesMatchByTheirLabels() {
+		HostPolicy policy = policy("deny example.com", "deny *.example.org", "deny .example.net", "deny www.Example.info.");
+		assertTrue(policy.isAllowed("www.example.com", "/", null));
+		assertFalse(policy.isAllowed("EXAMPLE.com", "/", null));
+		assertFalse(policy.isAllowed("www.example.org", "/", null));
+		assertTrue(policy.isAllowed("example.org", "/", null));
+		assertFalse(policy.isAllowed("example.net", "/", null));
+		assertFalse(policy.isAllowed("a.b.example.net", "/", null));
+		assertFalse(policy.isAllowed("www.example.info.", "/", null));
+		assertTrue(policy.isAllowed("other.com", "/", null));
+		assertEquals(4, policy.getRuleCount());
+	}
+
+	@Test
+	public void defaultAppliesWhenNoRuleMatches() {
+		HostPolicy policy = policy("# Only the intranet", "default deny", "allow .intranet.example  # and its hosts");
+		assertFalse(policy.isAllowed("example.com", "/", null));
+		assertTrue(policy.isAllowed("wiki.intranet.example", "/", null));
+		assertEquals(1, policy.getRuleCount());
+	}
+
+	@Test
+	public void wrongLinesAreSkipped() {
+		HostPolicy policy = policy("deny", "block example.com", "default maybe", "deny a*.example.com", "deny example..com",
+				"deny example.com");
+		assertEquals(1, policy.getRuleCount());
+		assertFalse(policy.isAllowed("example.com", "/", null));
+	}
+
+	@Test
+	public void allowEverythingLetsMoreSpecificDenialsStand() throws Exception {
+		HostPolicy policy = policy("allow *", "deny 10.0.0.0/8", "deny internal.example.com");
+		assertTrue(policy.isAllowed("example.com", "/", addresses("93.184.216.34")));
+		assertFalse(policy.isAllowed("example.com", "/", addresses("93.184.216.34", "10.1.2.3")));
+		assertFalse(policy.isAllowed("internal.example.com", "/", addresses("93.184.216.34")));
+		assertTrue(policy.hasAddressRules());
+	}
+
+	@Test
+	public void longestAddressPrefixWins() throws Exception {
+		HostPolicy policy = policy("deny 10.0.0.0/8", "allow 10.1.0.0/16", "deny 10.1.2.3", "deny ::1");
+		assertFalse(policy.isAllowed("a", "/", addresses("10.2.0.1")));
+		assertTrue(policy.isAllowed("a", "/", addresses("10.1.0.1")));
+		assertFalse(policy.isAllowed("a", "/", addresses("10.1.2.3")));
+		assertFalse(policy.isAllowed("a", "/", addresses("::1")));
+		assertTrue(policy.isAllowed("a", "/", addresses("::2")));
+	}
+
+	@Test
+	public void namedHostWinsOverItsAddresses() throws Exception {
+		HostPolicy policy = policy("deny 10.0.0.0/8", "allow wiki.intranet.example");
+		assertTrue(policy.isAllowed("wiki.intranet.example", "/", addresses("10.0.0.5")));
+		assertFalse(policy.isAllowed("mail.intranet.example", "/", addresses("10.0.0.6")));
+	}
+
+	@Test
+	public void denyWinsAnEqualMatch() {
+		HostPolicy policy = policy("allow example.com", "deny example.com", "allow .example.org", "deny *.example.org");
+		assertFalse(policy.isAllowed("example.com", "/", null));
+		assertFalse(policy.isAllowed("www.example.org", "/", null));
+		assertTrue(policy.isAllowed("example.org", "/", null));
+	}
+
+	@Test
+	public void longestPathPrefixWins() {
+		HostPolicy policy = policy("default deny", "allow .example.com", "deny example.com/admin/",
+				"allow example.com/admin/public/", "deny */private/");
+		assertTrue(policy.isAllowed("example.com", "/index.html", null));
+		assertFalse(policy.isAllowed("example.com", "/admin/users", null));
+		assertTrue(policy.isAllowed("example.com", "/admin/public/logo.png", null));
+		assertTrue(policy.isAllowed("www.example.com", "/admin/users", null));
+		// The host rule names more labels than the path rule of every host
+		assertTrue(policy.isAllowed("example.com", "/private/", null));
+		assertFalse(policy.isAllowed("other.com", "/private/", null));
+		// A tunnel has no path
+		assertTrue(policy.isAllowed("example.com", null, null));
+	}
+
+	@Test
+	public void pathIsNormalizedBeforeItIsMatched() {
+		HostPolicy policy = policy("allow *", "deny example.com/admin/", "deny example.com/%62ackup/");
+		assertFalse(policy.isAllowed("example.com", "//admin/", null));
+		assertFalse(policy.isAllowed("example.com", "/%61dmin/", null));
+		assertFalse(policy.isAllowed("example.com", "/%61%64%6D%69%6E/x", null));
+		assertFalse(policy.isAllowed("example.com", "/./admin/x", null));
+		assertFalse(policy.isAllowed("example.com", "/public/../admin/x", null));
+		assertFalse(policy.isAllowed("example.com", "/../../admin/x", null));
+		assertFalse(policy.isAllowed("example.com", "/admin/.", null));
+		assertFalse(policy.isAllowed("example.com", "/admin//?x=1", null));
+		assertFalse(policy.isAllowed("example.com", "/backup/", null));
+		assertTrue(policy.isAllowed("example.com", "/administrator/", null));
+		assertTrue(policy.isAllowed("example.com", "/public/?next=/../admin/", null));
+		assertTrue(policy.isAllowed("example.com", "/a%2", null));
+	}
+}
@@ -0,0 +1,159 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+
+public class HttpRequestParserTest {
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	private static ByteBuffer buffer(String value) {
+		return ByteBuffer.wrap(value.getBytes(ISO_8859_1));
+	}
+
+	private static String part(ByteBuffer buffer, int start, int end) {
+		byte[] bytes = new byte[end - start];
+		for(int i = 0; i < bytes.length; i++) {
+			bytes[i] = buffer.get(start + i);
+		}
+		return new String(bytes, ISO_8859_1);
+	}
+
+	private static int parse(String head) {
+		return new HttpRequestParser().parse(buffer(head));
+	}
+
+	private static String repeat(char c, int count) {
+		StringBuilder builder = new StringBuilder(count);
+		for(int i = 0; i < count; i++) {
+			builder.append(c);
+		}
+		return builder.toString();
+	}
+
+	@Test
+	public void partsOfTheHeadAreFound() {
+		String head = "GET http://example.com/a/b?x=1&y=2 HTTP/1.1\r\nHost: example.com\r\nAccept:  text/html  \r\nX-Empty:\r\n\r\n";
+		ByteBuffer buffer = buffer(head + "body");
+		HttpRequestParser parser = new HttpRequestParser();
+
+		assertEquals(HttpRequestParser.OK, parser.parse(buffer));
+		assertEquals(head.length(), parser.getHeadEnd());
+		assertEquals("GET", part(buffer, parser.getMethodStart(), parser.getMethodEnd()));
+		assertEquals("http://example.com/a/b?x=1&y=2", part(buffer, parser.getTargetStart(), parser.getTargetEnd()));
+		assertEquals("http://example.com/a/b", part(buffer, parser.getTargetStart(), parser.getPathEnd()));
+		assertEquals("x=1&y=2", part(buffer, parser.getQueryStart(), parser.getTargetEnd()));
+		assertEquals("HTTP/1.1", part(buffer, parser.getVersionStart(), parser.getVersionEnd()));
+		assertEquals(3, parser.getHeaderCount());
+		assertEquals("Host", part(buffer, parser.getNameStart(0), parser.getNameEnd(0)));
+		assertEquals("example.com", part(buffer, parser.getValueStart(0), parser.getValueEnd(0)));
+		// Whitespace around a value is not part of it
+		assertEquals("text/html", part(buffer, parser.getValueStart(1), parser.getValueEnd(1)));
+		assertEquals("", part(buffer, parser.getValueStart(2), parser.getValueEnd(2)));
+	}
+
+	@Test
+	public void headArrivingByteByByteIsParsedTheSame() {
+		String head = "POST /form HTTP/1.0\r\nContent-Length: 3\r\n\r\n";
+		ByteBuffer buffer = buffer(head);
+		HttpRequestParser parser = new HttpRequestParser();
+		for(int limit = 0; limit < head.length(); limit++) {
+			buffer.limit(limit);
+			assertEquals(HttpRequestParser.INCOMPLETE, parser.parse(buffer));
+		}
+		buffer.limit(head.length());
+		assertEquals(HttpRequestParser.OK, parser.parse(buffer));
+		assertEquals(head.length(), parser.getHeadEnd());
+		assertEquals("/form", part(buffer, parser.getTargetStart(), parser.getPathEnd()));
+		assertEquals(-1, parser.getQueryStart());
+		assertEquals("3", part(buffer, parser.getValueStart(0), parser.getValueEnd(0)));
+	}
+
+	@Test
+	public void emptyLinesBeforeTheRequestAndBareLineFeedsAreAccepted() {
+		String head = "\r\n\nGET / HTTP/1.1\nHost: a\n\n";
+		ByteBuffer buffer = buffer(head);
+		HttpRequestParser parser = new HttpRequestParser();
+		assertEquals(HttpRequestParser.OK, parser.parse(buffer));
+		assertEquals(3, parser.getMethodStart());
+		assertEquals(head.length(), parser.getHeadEnd());
+		assertEquals("a", part(buffer, parser.getValueStart(0), parser.getValueEnd(0)));
+	}
+
+	@Test
+	public void pipelinedHeadsAreParsedOneAfterTheOther() {
+		String first = "GET /1 HTTP/1.1\r\nHost: a\r\n\r\n";
+		String second = "GET /2 HTTP/1.1\r\nHost: b\r\n\r\n";
+		ByteBuffer buffer = buffer(first + second);
+		HttpRequestParser parser = new HttpRequestParser();
+		assertEquals(HttpRequestParser.OK, parser.parse(buffer));
+		assertEquals(first.length(), parser.getHeadEnd());
+
+		buffer.position(parser.getHeadEnd());
+		parser.reset();
+		assertEquals(HttpRequestParser.OK, parser.parse(buffer));
+		assertEquals("/2", part(buffer, parser.getTargetStart(), parser.getTargetEnd()));
+		assertEquals(first.length() + second.length(), parser.getHeadEnd());
+	}
+
+	@Test
+	public void brokenHeadsAreBadRequests() {
+		String[] broken = {
+			"GET  HTTP/1.1\r\n\r\n",
+			"G(T / HTTP/1.1\r\n\r\n",
+			"GET / FTP/1.1\r\n\r\n",
+			"GET / HTTP/1.1\rX\r\n\r\n",
+			"GET / HTTP/1.1\r\nHost: a\r\n folded\r\n\r\n",
+			"GET / HTTP/1.1\r\nBad Name: a\r\n\r\n",
+			"GET / HTTP/1.1\r\nHost: a\r\r\n",
+			"GET /a\tb HTTP/1.1\r\n\r\n",
+		};
+		for(String head : broken) {
+			assertEquals(head, 400, parse(head));
+		}
+	}
+
+	@Test
+	public void limitsAreEnforced() {
+		assertEquals(414, parse("GET /" + repeat('a', HttpRequestParser.MAX_REQUEST_LINE) + " HTTP/1.1\r\n\r\n"));
+		assertEquals(431, parse("GET / HTTP/1.1\r\nX: " + repeat('a', HttpRequestParser.MAX_HEADER_LINE) + "\r\n\r\n"));
+
+		StringBuilder head = new StringBuilder("GET / HTTP/1.1\r\n");
+		for(int i = 0; i <= HttpRequestParser.MAX_HEADERS; i++) {
+			head.append("X-" + i + ": a\r\n");
+		}
+		assertEquals(431, parse(head + "\r\n"));
+	}
+
+	@Test
+	public void requestTakesItsPartsFromTheParser() {
+		String head = "get /path?q=1 http/1.1\r\nHost: example.com\r\nContent-Length: 5\r\nhost: other\r\n\r\n";
+		ByteBuffer buffer = buffer(head);
+		HttpRequestParser parser = new HttpRequestParser();
+		assertEquals(HttpRequestParser.OK, parser.parse(buffer));
+
+		HTTPRequest request = new HTTPRequest();
+		assertEquals(0, request.parseHead(parser, buffer));
+		assertEquals(Method.GET, request.getMethod());
+		assertEquals("HTTP/1.1", request.getVersion());
+		assertEquals("/path", request.getPath());
+		assertEquals("?q=1", request.getQuery());
+		// The last of repeated headers wins
+		assertEquals("other", request.getHeader("host"));
+		assertNull(request.getHeader("accept"));
+		assertEquals(0, request.checkBody());
+		assertEquals(5, request.getBodyLength());
+	}
+
+	@Test
+	public void unknownMethodIsNotImplemented() {
+		ByteBuffer buffer = buffer("BREW /pot HTTP/1.1\r\nHost: a\r\n\r\n");
+		HttpRequestParser parser = new HttpRequestParser();
+		assertEquals(HttpRequestParser.OK, parser.parse(buffer));
+		assertEquals(501, new HTTPRequest().parseHead(parser, buffer));
+	}
+}
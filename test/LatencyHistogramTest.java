@@ -0,0 +1,71 @@
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+
+/**
+ * The buckets are seen through countBelow, a value is counted once the limit passes the
+ * lowest value of its bucket.
+ */
+public class LatencyHistogramTest {
+
+	private static LatencyHistogram histogramOf(long micros) {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(micros * 1000);
+		return histogram;
+	}
+
+	@Test
+	public void smallValuesAreExact() {
+		for(long micros = 0; micros < 16; micros++) {
+			LatencyHistogram histogram = histogramOf(micros);
+			assertEquals(0, histogram.countBelow(micros));
+			assertEquals(1, histogram.countBelow(micros + 1));
+		}
+	}
+
+	@Test
+	public void valueIsKeptToASixteenthOfItself() {
+		for(long micros = 1; micros < 1L << 36; micros = micros * 3 / 2 + 1) {
+			LatencyHistogram histogram = histogramOf(micros);
+			assertEquals("below " + micros, 0, histogram.countBelow(micros - micros / 16));
+			assertEquals("above " + micros, 1, histogram.countBelow(micros + micros / 16 + 1));
+		}
+	}
+
+	@Test
+	public void bucketStartsAtItsLowestValue() {
+		// 1000 has the exponent 9, its buckets are 32 wide and this one starts at 992
+		LatencyHistogram histogram = histogramOf(1000);
+		assertEquals(0, histogram.countBelow(992));
+		assertEquals(1, histogram.countBelow(993));
+
+		// Powers of two start a bucket of their own
+		histogram = histogramOf(1024);
+		assertEquals(0, histogram.countBelow(1024));
+		assertEquals(1, histogram.countBelow(1025));
+		histogram = histogramOf(1023);
+		assertEquals(1, histogram.countBelow(1024));
+	}
+
+	@Test
+	public void hugeValueGoesToTheLastBucket() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(Long.MAX_VALUE);
+		assertEquals(0, histogram.countBelow(1L << 39));
+		assertEquals(1, histogram.countBelow(Long.MAX_VALUE));
+		assertEquals(Long.MAX_VALUE, histogram.getTotalNanos());
+	}
+
+	@Test
+	public void negativeDurationIsIgnored() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(-1);
+		histogram.record(1500);
+		histogram.record(2500);
+		assertEquals(2, histogram.getCount());
+		assertEquals(4000, histogram.getTotalNanos());
+		assertEquals(1, histogram.countBelow(2));
+		assertEquals(2, histogram.countBelow(3));
+	}
+}
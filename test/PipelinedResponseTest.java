@@ -0,0 +1,171 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+
+public class PipelinedResponseTest {
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	/**
+	 * The client side, it remembers if a monitor of the responses was held while it was written
+	 */
+	private static class Client extends ByteArrayOutputStream {
+
+		private Object[] watched = new Object[0];
+		private volatile boolean lockedWrite, closed;
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			for(Object object : watched) {
+				if(Thread.holdsLock(object))
+					lockedWrite = true;
+			}
+			super.write(b, off, len);
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+
+		String text() {
+			return new String(toByteArray(), ISO_8859_1);
+		}
+	}
+
+	private static void write(PipelinedResponse response, String text) throws IOException {
+		byte[] bytes = text.getBytes(ISO_8859_1);
+		response.write(bytes, 0, bytes.length);
+	}
+
+	@Test
+	public void responsesReachTheClientInOrder() throws Exception {
+		Client client = new Client();
+		PipelinedResponse first = PipelinedResponse.first(client, 1024);
+		PipelinedResponse second = first.append();
+		PipelinedResponse third = second.append();
+
+		write(third, "3");
+		write(second, "2");
+		write(first, "1");
+		assertEquals("1", client.text());
+		third.finish(true);
+		second.finish(true);
+		assertEquals("1", client.text());
+		first.finish(true);
+		assertEquals("123", client.text());
+
+		// Later writes of a current response go straight to the client
+		PipelinedResponse fourth = third.append();
+		write(fourth, "4");
+		assertEquals("1234", client.text());
+	}
+
+	@Test
+	public void writerWaitsWhenItsBufferIsFull() throws Exception {
+		Client client = new Client();
+		PipelinedResponse first = PipelinedResponse.first(client, 4);
+		final PipelinedResponse second = first.append();
+		final CountDownLatch written = new CountDownLatch(1);
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					write(second, "abcdefgh");
+					written.countDown();
+				} catch (IOException e) {
+					// The latch is not counted down
+				}
+			}
+		});
+		writer.start();
+
+		assertFalse(written.await(200, TimeUnit.MILLISECONDS));
+		write(first, "1");
+		first.finish(true);
+		assertTrue(written.await(5, TimeUnit.SECONDS));
+		assertEquals("1abcdefgh", client.text());
+	}
+
+	@Test
+	public void clientIsClosedAfterTheResponseThatEndsTheConnection() throws Exception {
+		Client client = new Client();
+		PipelinedResponse first = PipelinedResponse.first(client, 1024);
+		PipelinedResponse second = first.append();
+		second.closeConnection();
+		assertTrue(first.isClosing());
+
+		write(second, "2");
+		second.finish(true);
+		assertFalse(client.closed);
+		first.finish(true);
+		assertTrue(client.closed);
+		assertEquals("2", client.text());
+		second.awaitSent();
+	}
+
+	@Test
+	public void failedResponseClosesTheClient() throws Exception {
+		Client client = new Client();
+		PipelinedResponse first = PipelinedResponse.first(client, 1024);
+		first.finish(false);
+		assertTrue(client.closed);
+	}
+
+	@Test
+	public void awaitSentReturnsOnceTheResponsesBeforeWereSent() throws Exception {
+		Client client = new Client();
+		PipelinedResponse first = PipelinedResponse.first(client, 1024);
+		final PipelinedResponse second = first.append();
+		second.finish(true);
+		final AtomicBoolean sent = new AtomicBoolean();
+		Thread waiter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					second.awaitSent();
+					sent.set(true);
+				} catch (IOException e) {
+					// Not sent
+				}
+			}
+		});
+		waiter.start();
+		waiter.join(200);
+		assertFalse(sent.get());
+		first.finish(true);
+		waiter.join(5000);
+		assertTrue(sent.get());
+	}
+
+	@Test
+	public void clientIsWrittenWithoutAMonitorOfTheResponse() throws Exception {
+		Client client = new Client();
+		PipelinedResponse first = PipelinedResponse.first(client, 1024);
+		PipelinedResponse second = first.append();
+		DataOutputStream firstOutput = new UnlockedDataOutputStream(first);
+		DataOutputStream secondOutput = new UnlockedDataOutputStream(second);
+		client.watched = new Object[] { first, second, firstOutput, secondOutput };
+
+		secondOutput.write("buffered".getBytes(ISO_8859_1));
+		firstOutput.write("direct".getBytes(ISO_8859_1));
+		first.finish(true);
+		secondOutput.write('!');
+		second.finish(true);
+
+		assertEquals("directbuffered!", client.text());
+		assertEquals(9, secondOutput.size());
+		assertFalse(client.lockedWrite);
+	}
+}
@@ -0,0 +1,84 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+/**
+ * The rates are low enough that no tokens come back while a test runs, the sweeper is
+ * off unless a test needs it.
+ */
+public class RateLimiterTest {
+
+	private static final long MILLIS = 1000000L;
+
+	@Test
+	public void requestsAreCountedPerClient() {
+		RateLimiter limiter = new RateLimiter(1, 2, 0, 0, 0, 0);
+		assertTrue(limiter.allowRequest("10.0.0.1"));
+		assertTrue(limiter.allowRequest("10.0.0.1"));
+		assertFalse(limiter.allowRequest("10.0.0.1"));
+		assertTrue(limiter.allowRequest("10.0.0.2"));
+	}
+
+	@Test
+	public void zeroRatesLimitNothing() {
+		RateLimiter limiter = new RateLimiter(0, 0, 0, 0, 65536, 0);
+		for(int i = 0; i < 100; i++) {
+			assertTrue(limiter.allowRequest("10.0.0.1"));
+		}
+		assertNull(limiter.newBandwidth("10.0.0.1"));
+	}
+
+	@Test
+	public void connectionHasItsOwnBytes() {
+		RateLimiter limiter = new RateLimiter(0, 0, 0, 1000, 100, 0);
+		RateLimiter.Bandwidth first = limiter.newBandwidth("10.0.0.1");
+		RateLimiter.Bandwidth second = limiter.newBandwidth("10.0.0.1");
+		long now = System.nanoTime();
+		assertEquals(0, first.take(100, now));
+		assertEquals(100 * MILLIS, first.take(100, now));
+		assertEquals(0, second.take(100, now));
+	}
+
+	@Test
+	public void connectionsOfAClientShareItsBytes() {
+		RateLimiter limiter = new RateLimiter(0, 0, 1000, 0, 100, 0);
+		RateLimiter.Bandwidth first = limiter.newBandwidth("10.0.0.1");
+		RateLimiter.Bandwidth second = limiter.newBandwidth("10.0.0.1");
+		RateLimiter.Bandwidth other = limiter.newBandwidth("10.0.0.2");
+		long now = System.nanoTime();
+		assertEquals(0, first.take(100, now));
+		assertEquals(100 * MILLIS, second.take(100, now));
+		assertEquals(0, other.take(100, now));
+	}
+
+	@Test
+	public void slowerLimitSetsTheWait() {
+		RateLimiter limiter = new RateLimiter(0, 0, 1000, 500, 100, 0);
+		RateLimiter.Bandwidth bandwidth = limiter.newBandwidth("10.0.0.1");
+		long now = System.nanoTime();
+		assertEquals(0, bandwidth.take(100, now));
+		// The connection refills in 200 ms, the client in 100 ms
+		assertEquals(200 * MILLIS, bandwidth.take(100, now));
+	}
+
+	@Test
+	public void sliceIsTheBurstUpToALimit() {
+		assertEquals(100, new RateLimiter(0, 0, 1000, 0, 100, 0).getSliceSize());
+		assertEquals(64 * 1024, new RateLimiter(0, 0, 1000, 0, 1 << 20, 0).getSliceSize());
+		assertEquals(1, new RateLimiter(0, 0, 1000, 0, 0, 0).getSliceSize());
+	}
+
+	@Test
+	public void sweptClientStartsWithFullBuckets() throws Exception {
+		// A request token comes back every 10 ms, the sweeper passes every shard in 16 ms
+		RateLimiter limiter = new RateLimiter(100, 1, 0, 0, 0, 16);
+		assertTrue(limiter.allowRequest("10.0.0.1"));
+		assertFalse(limiter.allowRequest("10.0.0.1"));
+		Thread.sleep(100);
+		assertTrue(limiter.allowRequest("10.0.0.1"));
+	}
+}
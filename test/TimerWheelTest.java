@@ -0,0 +1,117 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+
+/**
+ * The wheel is turned by its own thread in real time, with a short tick and few slots
+ * so that the delays of a test take several turns.
+ */
+public class TimerWheelTest {
+
+	private static final long TICK = 10;
+	private static final int SLOTS = 4;
+
+	private static TimerWheel startWheel() {
+		TimerWheel wheel = new TimerWheel(TICK, SLOTS);
+		wheel.start("Test wheel");
+		return wheel;
+	}
+
+	@Test
+	public void timeoutNeverFiresEarly() throws Exception {
+		TimerWheel wheel = startWheel();
+		final int count = 10;
+		final long delay = 25;
+		final List<Long> elapsed = Collections.synchronizedList(new ArrayList<Long>());
+		final CountDownLatch fired = new CountDownLatch(count);
+		// Scheduled at different moments of a tick
+		for(int i = 0; i < count; i++) {
+			final long start = System.nanoTime();
+			wheel.schedule(new Runnable() {
+				@Override
+				public void run() {
+					elapsed.add((System.nanoTime() - start) / 1000000L);
+					fired.countDown();
+				}
+			}, delay);
+			Thread.sleep(3);
+		}
+		assertTrue(fired.await(5, TimeUnit.SECONDS));
+		for(long millis : elapsed) {
+			assertTrue(elapsed.toString(), millis >= delay);
+		}
+	}
+
+	@Test
+	public void timeoutsFireInTheOrderOfTheirDelays() throws Exception {
+		TimerWheel wheel = startWheel();
+		final List<Long> order = Collections.synchronizedList(new ArrayList<Long>());
+		final CountDownLatch fired = new CountDownLatch(3);
+		// 130 takes more than three turns of the wheel, 60 lands in the same slot as 20
+		for(final long delay : new long[] {130, 20, 60}) {
+			wheel.schedule(new Runnable() {
+				@Override
+				public void run() {
+					order.add(delay);
+					fired.countDown();
+				}
+			}, delay);
+		}
+		assertTrue(fired.await(5, TimeUnit.SECONDS));
+		assertEquals("[20, 60, 130]", order.toString());
+	}
+
+	@Test
+	public void cancelledTimeoutDoesNotFire() throws Exception {
+		TimerWheel wheel = startWheel();
+		final CountDownLatch fired = new CountDownLatch(1);
+		final CountDownLatch cancelledFired = new CountDownLatch(1);
+		TimerWheel.Timeout cancelled = wheel.schedule(new Runnable() {
+			@Override
+			public void run() {
+				cancelledFired.countDown();
+			}
+		}, 30);
+		TimerWheel.Timeout later = wheel.schedule(new Runnable() {
+			@Override
+			public void run() {
+				fired.countDown();
+			}
+		}, 60);
+
+		assertTrue(cancelled.cancel());
+		assertFalse(cancelled.cancel());
+		assertTrue(fired.await(5, TimeUnit.SECONDS));
+		assertEquals(1, cancelledFired.getCount());
+		// Too late once it fired
+		assertFalse(later.cancel());
+	}
+
+	@Test
+	public void failingTaskDoesNotStopTheWheel() throws Exception {
+		TimerWheel wheel = startWheel();
+		final CountDownLatch fired = new CountDownLatch(1);
+		wheel.schedule(new Runnable() {
+			@Override
+			public void run() {
+				throw new IllegalStateException("Expected by the test");
+			}
+		}, 10);
+		wheel.schedule(new Runnable() {
+			@Override
+			public void run() {
+				fired.countDown();
+			}
+		}, 50);
+		assertTrue(fired.await(5, TimeUnit.SECONDS));
+	}
+}
@@ -0,0 +1,73 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+/**
+ * The times are given to the bucket, so the tests do not depend on the clock except
+ * for the start: a new bucket is full at the time it was made.
+ */
+public class TokenBucketTest {
+
+	private static final long MILLIS = 1000000L;
+
+	@Test
+	public void burstIsTakenAtOnceThenTheRate() {
+		TokenBucket bucket = new TokenBucket(10, 5);
+		long now = System.nanoTime();
+		for(int i = 0; i < 5; i++) {
+			assertTrue(bucket.tryTake(1, now));
+		}
+		assertFalse(bucket.tryTake(1, now));
+
+		// One token every 100 ms
+		assertFalse(bucket.tryTake(1, now + 99 * MILLIS));
+		assertTrue(bucket.tryTake(1, now + 100 * MILLIS));
+		assertFalse(bucket.tryTake(1, now + 100 * MILLIS));
+		assertTrue(bucket.tryTake(2, now + 300 * MILLIS));
+	}
+
+	@Test
+	public void refusedTakeTakesNothing() {
+		TokenBucket bucket = new TokenBucket(10, 5);
+		long now = System.nanoTime();
+		assertFalse(bucket.tryTake(6, now));
+		assertTrue(bucket.tryTake(4, now));
+		assertFalse(bucket.tryTake(2, now));
+		assertTrue(bucket.tryTake(1, now));
+	}
+
+	@Test
+	public void quietTimeDoesNotGrowTheBurst() {
+		TokenBucket bucket = new TokenBucket(10, 5);
+		long later = System.nanoTime() + 60000 * MILLIS;
+		assertTrue(bucket.tryTake(5, later));
+		assertFalse(bucket.tryTake(1, later));
+	}
+
+	@Test
+	public void takeTellsHowLongToWait() {
+		// 1000 bytes per second, so a byte costs a millisecond
+		TokenBucket bucket = new TokenBucket(1000, 100);
+		long now = System.nanoTime();
+		assertEquals(0, bucket.take(100, now));
+		assertEquals(100 * MILLIS, bucket.take(100, now));
+		assertEquals(150 * MILLIS, bucket.take(50, now));
+		// The waits were counted, the bucket is behind until they are over
+		assertEquals(0, bucket.take(0, now + 150 * MILLIS));
+		assertFalse(bucket.tryTake(1, now + 150 * MILLIS));
+	}
+
+	@Test
+	public void bucketIsFullOnceItCaughtUp() {
+		TokenBucket bucket = new TokenBucket(1000, 100);
+		long now = System.nanoTime();
+		assertTrue(bucket.isFull(now));
+		bucket.take(30, now);
+		assertFalse(bucket.isFull(now));
+		assertFalse(bucket.isFull(now + 29 * MILLIS));
+		assertTrue(bucket.isFull(now + 30 * MILLIS));
+	}
+}